@@ -0,0 +1,172 @@
+package ClientServer;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides, before a datagram is decoded, whether the server should spend any work on it.
+ *
+ * Three checks, cheapest first:
+ * - Every source address has a token bucket of sourceRate messages a second with room for
+ *   a burst, so one flooding sender is held to its own share. Only the datagram that starts
+ *   a message is charged, so a large listing costs the same as a small one.
+ * - A global bucket of globalRate datagrams a second bounds what unknown sources (new or
+ *   spoofed addresses) can get in all together. Known clients draw from it too but are
+ *   never refused by it, so a flood from unknown addresses cannot crowd them out.
+ * - Heartbeats that carry a sequence number are dropped when they repeat or go back on the
+ *   last one accepted from that node, unless their timestamp is newer, which is how a
+ *   restarted client (whose numbering starts over) gets back in.
+ *
+ * The buckets are kept as a theoretical arrival time (the generic cell rate algorithm), one
+ * AtomicLong each, so a check is a read and a compare-and-set and allocates nothing for a
+ * known source. At most maxSources buckets are kept for unknown sources; those beyond that
+ * share one bucket, while known sources always get their own. sweep() drops buckets that
+ * have refilled, since those are the same as new ones. A rate of 0 turns that check off.
+ */
+public class AdmissionControl {
+    private static final int SEQUENCE_HALF = (Protocol.SEQUENCE_MASK + 1) / 2;
+
+    private final long sourceInterval; // Nanos per datagram, or 0 for no limit
+    private final long sourceTolerance; // How far ahead of now a bucket may run: the burst
+    private final long globalInterval;
+    private final long globalTolerance;
+    private final int maxSources;
+    private final ConcurrentHashMap<InetSocketAddress, AtomicLong> sources = new ConcurrentHashMap<>();
+    private final AtomicLong overflow = new AtomicLong(System.nanoTime()); // Shared by sources beyond maxSources
+    private final AtomicLong global = new AtomicLong(System.nanoTime());
+    private final ConcurrentHashMap<String, Sequence> sequences = new ConcurrentHashMap<>();
+
+    private final Metrics metrics = Metrics.get();
+    private final Metrics.Counter shedSource = metrics.counter("admission.shed.source");
+    private final Metrics.Counter shedGlobal = metrics.counter("admission.shed.global");
+    private final Metrics.Counter shedDuplicate = metrics.counter("admission.shed.duplicate");
+    private final Metrics.Counter shedStale = metrics.counter("admission.shed.stale");
+
+    /**
+     * @param sourceRate messages a second per source address, 0 for no limit
+     * @param sourceBurst messages a source may send at once after being quiet
+     * @param globalRate datagrams a second from unknown sources in total, 0 for no limit
+     * @param globalBurst the global bucket's burst
+     * @param maxSources source buckets to keep before unknown sources share one
+     */
+    public AdmissionControl(double sourceRate, int sourceBurst, double globalRate, int globalBurst, int maxSources) {
+        sourceInterval = sourceRate > 0 ? (long) (1e9 / sourceRate) : 0;
+        sourceTolerance = sourceInterval * Math.max(1, sourceBurst);
+        globalInterval = globalRate > 0 ? (long) (1e9 / globalRate) : 0;
+        globalTolerance = globalInterval * Math.max(1, globalBurst);
+        this.maxSources = maxSources;
+    }
+
+    public int getSourceCount() { return sources.size(); }
+
+    /**
+     * Whether to handle a datagram from the source at all. known says whether the source is
+     * an established client (or a cluster peer), which the global budget never refuses.
+     * startsMessage says whether the datagram is a whole message or its first fragment; the
+     * rest of a fragmented message is only held to the global budget.
+     */
+    public boolean admit(InetSocketAddress source, boolean known, boolean startsMessage, long nowNanos) {
+        if (sourceInterval > 0 && startsMessage
+                && !take(bucketOf(source, known, nowNanos), sourceInterval, sourceTolerance, nowNanos, false)) {
+            shedSource.increment();
+            return false;
+        }
+        if (globalInterval > 0 && !take(global, globalInterval, globalTolerance, nowNanos, known)) {
+            shedGlobal.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether a heartbeat is new rather than a repeat or a late copy of an older one. A
+     * sequence of 0 means the sender does not number its heartbeats. Nothing is recorded
+     * here, so senders that never become clients leave nothing behind; see accepted().
+     */
+    public boolean isFresh(String nodeId, int sequence, long timestamp) {
+        Sequence last = sequence != 0 ? sequences.get(nodeId) : null;
+        if (last == null) {
+            return true;
+        }
+        synchronized (last) {
+            int ahead = (sequence - last.sequence) & Protocol.SEQUENCE_MASK; // Wraps around
+            if ((ahead == 0 || ahead >= SEQUENCE_HALF) && timestamp <= last.timestamp) {
+                (ahead == 0 ? shedDuplicate : shedStale).increment();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Records the heartbeat a client's entry was just updated from, which later copies are
+     * checked against. Entries live until forget() is called for the node.
+     */
+    public void accepted(String nodeId, int sequence, long timestamp) {
+        if (sequence == 0) {
+            return;
+        }
+        Sequence last = sequences.get(nodeId);
+        if (last == null) {
+            last = sequences.computeIfAbsent(nodeId, id -> new Sequence());
+        }
+        synchronized (last) {
+            last.sequence = sequence;
+            last.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Forgets a node's sequence, when it expires.
+     */
+    public void forget(String nodeId) {
+        sequences.remove(nodeId);
+    }
+
+    /**
+     * Drops the buckets of sources that have been quiet long enough to refill.
+     */
+    public void sweep() {
+        long now = System.nanoTime();
+        sources.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+
+    private AtomicLong bucketOf(InetSocketAddress source, boolean known, long now) {
+        AtomicLong bucket = sources.get(source);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (!known && sources.size() >= maxSources) {
+            return overflow; // A flood of new addresses cannot push known clients into here
+        }
+        return sources.computeIfAbsent(source, address -> new AtomicLong(now)); // Full
+    }
+
+    /**
+     * Takes one datagram's worth from a bucket. The bucket holds the time at which it would be
+     * full again; a datagram is refused if that is more than the burst ahead of now. With
+     * force the datagram is always taken, and the debt is capped at one burst.
+     */
+    private static boolean take(AtomicLong bucket, long interval, long tolerance, long now, boolean force) {
+        while (true) {
+            long full = bucket.get();
+            long base = full - now > 0 ? full : now; // A bucket that has refilled starts from now
+            long next = base + interval;
+            if (next - now > tolerance) {
+                if (!force) {
+                    return false;
+                }
+                next = now + tolerance;
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return true;
+            }
+        }
+    }
+
+    private static final class Sequence {
+        int sequence;
+        long timestamp;
+    }
+}
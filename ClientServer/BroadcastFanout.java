@@ -0,0 +1,147 @@
+package ClientServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a broadcast to many clients in parallel.
+ *
+ * Recipients are split across a fixed number of lanes, each with its own DatagramChannel,
+ * so one slow or unreachable address only delays the clients in its own lane. Every
+ * encoding is copied once into direct buffers and each send uses a duplicate view, so
+ * the payload bytes are never copied again per recipient. Lanes run on virtual threads
+ * when the JVM has them, otherwise on a fixed pool.
+ */
+public class BroadcastFanout implements Closeable {
+
+    /**
+     * One recipient and the datagrams it should get.
+     */
+    public static class Delivery {
+        final InetSocketAddress target;
+        final List<ByteBuffer> datagrams;
+
+        Delivery(InetSocketAddress target, List<ByteBuffer> datagrams) {
+            this.target = target;
+            this.datagrams = datagrams;
+        }
+    }
+
+    /**
+     * Outcome of one broadcast, for logging and metrics.
+     */
+    public static class Result {
+        public final int recipients;
+        public final int datagrams;
+        public final int failures;
+        public final long elapsedNanos;
+
+        Result(int recipients, int datagrams, int failures, long elapsedNanos) {
+            this.recipients = recipients;
+            this.datagrams = datagrams;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double elapsedMillis() { return elapsedNanos / 1_000_000.0; }
+    }
+
+    private final DatagramChannel[] channels;
+    private final ExecutorService lanes;
+    private final Metrics.Counter packetsSent = Metrics.get().counter("packets.sent");
+    private final Metrics.Counter bytesSent = Metrics.get().counter("bytes.sent");
+
+    public BroadcastFanout(InetAddress localAddress, int laneCount, boolean useVirtualThreads) throws IOException {
+        int count = Math.max(1, laneCount);
+        channels = new DatagramChannel[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                channels[i] = DatagramChannel.open();
+                channels[i].bind(new InetSocketAddress(localAddress, 0));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        ExecutorService virtualThreads = useVirtualThreads ? NodeRuntime.newVirtualThreadExecutor() : null;
+        lanes = virtualThreads != null ? virtualThreads : Executors.newFixedThreadPool(count);
+    }
+
+    public int getLaneCount() { return channels.length; }
+
+    /**
+     * Copies an encoded message into direct buffers, once, for sharing across recipients.
+     */
+    public static List<ByteBuffer> toDirect(List<byte[]> datagrams) {
+        List<ByteBuffer> buffers = new ArrayList<>(datagrams.size());
+        for (byte[] datagram : datagrams) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(datagram.length);
+            buffer.put(datagram).flip();
+            buffers.add(buffer.asReadOnlyBuffer());
+        }
+        return buffers;
+    }
+
+    public static Delivery delivery(InetSocketAddress target, List<ByteBuffer> datagrams) {
+        return new Delivery(target, datagrams);
+    }
+
+    /**
+     * Sends every delivery and waits for all lanes to finish.
+     */
+    public Result broadcast(List<Delivery> deliveries) throws InterruptedException {
+        long start = System.nanoTime();
+        AtomicInteger datagramsSent = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+
+        int laneCount = Math.min(channels.length, deliveries.size());
+        CountDownLatch done = new CountDownLatch(laneCount);
+        for (int lane = 0; lane < laneCount; lane++) {
+            DatagramChannel channel = channels[lane];
+            int first = lane;
+            lanes.execute(() -> {
+                try {
+                    // Lanes take every laneCount-th recipient so slow addresses are spread out
+                    for (int i = first; i < deliveries.size(); i += laneCount) {
+                        Delivery delivery = deliveries.get(i);
+                        try {
+                            for (ByteBuffer datagram : delivery.datagrams) {
+                                bytesSent.add(channel.send(datagram.duplicate(), delivery.target));
+                                packetsSent.increment();
+                                datagramsSent.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        done.await();
+        return new Result(deliveries.size(), datagramsSent.get(), failures.get(), System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() {
+        if (lanes != null) {
+            lanes.shutdown();
+        }
+        for (DatagramChannel channel : channels) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
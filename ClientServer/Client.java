@@ -2,34 +2,62 @@ package ClientServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import ClientServer.*;
 
-public class Client extends Node {
-    private String serverIP;
-    private int serverPort;
+public class Client extends Node implements Closeable {
+    private volatile String serverIP; // Changes when a cluster shard redirects us to our owner
+    private volatile int serverPort;
+    private volatile long lastRedirect; // ms; immediate re-sends are limited to one per REDIRECT_HOLDOFF
+    private List<InetSocketAddress> shards; // Redirect targets to accept, from cluster_shards; null for any
     private DatagramSocket socket;
-    private ExecutorService executorService;
+    private NodeRuntime runtime; // Scheduled tasks, receive loop and shutdown
+    private long heartbeatInterval; // Heartbeats are due every interval plus a random 0..jitter
+    private long heartbeatJitter;
+    private boolean console; // Read commands from stdin; off for clients embedded in another program
+    private boolean servingMetrics; // This client started the metrics HTTP endpoint
+    private Fragmenter fragmenter;
+    private Reassembler reassembler;
+    private ListingTracker listingTracker; // Set when delta heartbeats are enabled
+    private DirectoryIndex directoryIndex; // Null if the home directory could not be created
+    private FileTransferService fileTransfer; // Serves the home directory over TCP
+    private final ConcurrentHashMap<String, CompletableFuture<List<String>>> pendingLookups = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, CompletableFuture<FileSearch.Page>> pendingSearches = new ConcurrentHashMap<>();
+    private final AtomicInteger searchTags = new AtomicInteger();
+    private final AtomicInteger heartbeatSequence = new AtomicInteger(); // Lets the server drop repeats
+    private static final int LOOKUP_TIMEOUT = 5000; // 5s to wait for a lookup or search response
+    private static final int SEARCH_PAGE_SIZE = 50; // Names per page in console searches
+    private static final int REDIRECT_HOLDOFF = 1000;
+    private boolean compressionEnabled;
+    private volatile boolean serverAcceptsCompression; // Learned from the flags on server messages
+    private ViewReplica viewReplica; // Set when incremental view updates are enabled
     private volatile String lastServerUpdate = "Waiting for updates...";
+    private final Metrics metrics = Metrics.get();
+    private final Metrics.Counter packetsReceived = metrics.counter("packets.received");
+    private final Metrics.Counter bytesReceived = metrics.counter("bytes.received");
+    private final Metrics.Counter packetsSent = metrics.counter("packets.sent");
+    private final Metrics.Counter bytesSent = metrics.counter("bytes.sent");
+    private final Metrics.Counter redirectsIgnored = metrics.counter("redirects.ignored");
     private static final String CONFIG_FILE = "ClientServer/client_config.properties"; // Default config file path
 
     public Client() {
+        this(loadConfig());
+        start();
+    }
+
+    /**
+     * Binds the socket and indexes the home directory without starting any threads, so
+     * several clients can be embedded in one JVM. Call start() to begin and close() to stop.
+     */
+    public Client(Properties properties) {
         try {
             System.out.println("Client is starting...");
-
-            // Load configuration manually
-            Properties properties = new Properties();
-            File configFile = new File(CONFIG_FILE);
-
-            if (!configFile.exists()) {
-                System.err.println("ERROR: Configuration file not found: " + CONFIG_FILE);
-                System.exit(1);
-            }
-
-            try (FileInputStream fis = new FileInputStream(CONFIG_FILE)) {
-                properties.load(fis);
-            }
+            runtime = new NodeRuntime("Client", Long.parseLong(properties.getProperty("shutdown_drain",
+                    Long.toString(NodeRuntime.DEFAULT_DRAIN))));
 
             // Set Node attributes using inherited setters
             setIpAddress(properties.getProperty("client_ip", InetAddress.getLocalHost().getHostAddress())); // Get actual IP
@@ -40,114 +68,520 @@ public class Client extends Node {
             // Read server details from properties
             serverIP = properties.getProperty("server_ip", "127.0.0.1");
             serverPort = Integer.parseInt(properties.getProperty("server_port", "5000"));
+            String shardList = properties.getProperty("cluster_shards");
+            if (shardList != null && !shardList.isBlank()) {
+                shards = ShardRing.parse(shardList);
+            }
+
+            compressionEnabled = Boolean.parseBoolean(properties.getProperty("compression", "false"));
+            heartbeatInterval = Long.parseLong(properties.getProperty("heartbeat_interval", "15000"));
+            heartbeatJitter = Long.parseLong(properties.getProperty("heartbeat_jitter", "15000"));
+            console = Boolean.parseBoolean(properties.getProperty("console", "true"));
+
+            if (Boolean.parseBoolean(properties.getProperty("view_updates", "false"))) {
+                viewReplica = new ViewReplica();
+            }
+
+            // Delta heartbeats need a server that understands them, so they are opt-in
+            if (Boolean.parseBoolean(properties.getProperty("delta_heartbeats", "false"))) {
+                listingTracker = new ListingTracker();
+            }
 
             // Create socket for communication
-            socket = new DatagramSocket(getPort(), InetAddress.getByName(getIpAddress()));
-            executorService = Executors.newCachedThreadPool();
+            socket = runtime.closeOnShutdown(new DatagramSocket(getPort(), InetAddress.getByName(getIpAddress())));
+            fragmenter = Fragmenter.forLocalAddress(socket.getLocalAddress());
+            reassembler = new Reassembler();
+
+            // Index the home directory once and keep it current from file system events
+            directoryIndex = openDirectoryIndex();
+            if (directoryIndex != null) {
+                runtime.closeOnShutdown(directoryIndex::close);
+            }
 
-            System.out.println("Client " + getIpAddress() + " running at " +
-                    getIpAddress() + ":" + getPort() +
-                    " -> Server " + serverIP + ":" + serverPort);
+            // TCP has its own port space, so the file endpoint defaults to the heartbeat port number
+            int transferPort = Integer.parseInt(properties.getProperty("transfer_port", Integer.toString(getPort())));
+            int maxTransfers = Integer.parseInt(properties.getProperty("max_transfers", "4"));
+            fileTransfer = runtime.closeOnShutdown(new FileTransferService(getHomeDirectory(),
+                    new InetSocketAddress(InetAddress.getByName(getIpAddress()), transferPort), maxTransfers));
 
-            // Start threads for communication
-            executorService.execute(this::sendHeartbeat);
-            executorService.execute(this::listenForUpdates);
-            executorService.execute(this::printUpdates);
+            metrics.gauge("reassembler.pending", reassembler::getPendingCount);
+            metrics.gauge("lookups.pending", pendingLookups::size);
+            metrics.gauge("view.epoch", () -> viewReplica != null ? viewReplica.getEpoch() : -1);
+            metrics.registerMBean("client");
+            if (properties.getProperty("metrics_port") != null) {
+                metrics.startHttp(Integer.parseInt(properties.getProperty("metrics_port")));
+                servingMetrics = true;
+            }
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private static Properties loadConfig() {
+        // Load configuration manually
+        Properties properties = new Properties();
+        File configFile = new File(CONFIG_FILE);
+
+        if (!configFile.exists()) {
+            System.err.println("ERROR: Configuration file not found: " + CONFIG_FILE);
+            System.exit(1);
+        }
+
+        try (FileInputStream fis = new FileInputStream(CONFIG_FILE)) {
+            properties.load(fis);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return properties;
+    }
+
+    /**
+     * Starts the receive loop, the file endpoint and directory watcher, and schedules the
+     * heartbeats and status printing.
+     */
+    public void start() {
+        System.out.println("Client " + getIpAddress() + " running at " +
+                getIpAddress() + ":" + getPort() +
+                " -> Server " + serverIP + ":" + serverPort);
+
+        if (directoryIndex != null) {
+            directoryIndex.start(runtime.getExecutor());
+        }
+        fileTransfer.start(runtime.getExecutor());
+        runtime.execute("receive", this::listenForUpdates);
+        // Spread over 0..jitter like the original random 0-30s delay, but without drifting
+        runtime.scheduleAtFixedRate("heartbeat", this::sendHeartbeat, 0, heartbeatInterval, heartbeatJitter);
+        runtime.scheduleAtFixedRate("status", this::printUpdates, 30000, 30000, 0);
+        if (console) {
+            runtime.execute("console", this::readCommands);
+        }
+    }
+
+    /**
+     * Stops the schedule, lets a heartbeat in progress finish, then closes the socket, the
+     * file endpoint and the directory watcher.
+     */
+    @Override
+    public void close() {
+        if (runtime == null || !runtime.isRunning()) {
+            return;
+        }
+        runtime.close();
+        if (servingMetrics) {
+            metrics.stopHttp();
+        }
+        System.out.println("[Client " + getIpAddress() + "] Stopped.");
+    }
+
     /**
-     * Thread 1: Sends periodic heartbeat messages with file listings.
+     * Every heartbeat_interval plus jitter: sends a heartbeat message with the file listing.
      */
-    private void sendHeartbeat() {
-        Random random = new Random();
-        while (true) {
+    private void sendHeartbeat() throws IOException {
+        Protocol heartbeat;
+        if (listingTracker != null && directoryIndex != null) {
+            heartbeat = listingTracker.nextHeartbeat(getNodeId(), false, directoryIndex);
+        } else {
+            String fileListing = getFileListing();
+            heartbeat = new Protocol(1, false, getNodeId(), System.currentTimeMillis(), 0, fileListing);
+        }
+        InetAddress serverAddress = InetAddress.getByName(serverIP);
+        heartbeat.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        heartbeat.setSequence(heartbeatSequence.updateAndGet(Protocol::nextSequence));
+        byte[] encoded = heartbeat.serialize(compressionEnabled && serverAcceptsCompression);
+
+        // Large listings are split across several datagrams
+        for (byte[] data : fragmenter.split(encoded)) {
+            DatagramPacket packet = new DatagramPacket(data, data.length, serverAddress, serverPort);
+            send(packet);
+        }
+
+        System.out.println("[Client " + getIpAddress() + "] Sent heartbeat with file listing.");
+    }
+
+    /**
+     * Receive loop: listens for updates from the server until the socket is closed.
+     */
+    private void listenForUpdates() {
+        byte[] buffer = new byte[Fragmenter.MAX_DATAGRAM_SIZE];
+        while (runtime.isRunning()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (runtime.isRunning()) {
+                    System.err.println("[Client " + getIpAddress() + "] Receive failed: " + e.getMessage());
+                }
+                continue; // The loop ends once close() has closed the socket
+            }
+
+            // One bad datagram must not stop the loop
             try {
-                int delay = random.nextInt(30000); // Random delay (0-30s)
-                Thread.sleep(delay);
+                handleDatagram(packet);
+            } catch (Exception e) {
+                System.err.println("[Client " + getIpAddress() + "] Dropped datagram from "
+                        + packet.getSocketAddress() + ": " + e);
+            }
+        }
+    }
+
+    private void handleDatagram(DatagramPacket packet) throws IOException, ClassNotFoundException {
+        packetsReceived.increment();
+        bytesReceived.add(packet.getLength());
+
+        // The server's combined update is usually fragmented once several clients are connected
+        byte[] data = packet.getData();
+        int offset = packet.getOffset();
+        int length = packet.getLength();
+        if (Fragmenter.isFragment(data, offset, length)) {
+            data = reassembler.add(packet.getSocketAddress(), data, offset, length);
+            if (data == null) {
+                return;
+            }
+            offset = 0;
+            length = data.length;
+        }
+
+        Protocol receivedProtocol = Protocol.deserialize(data, offset, length);
+        int type = receivedProtocol.getType();
+
+        // Only the server's own updates and acks say what it can read; replies and strays do not
+        if ((type == Protocol.TYPE_FULL || type == Protocol.TYPE_LISTING_ACK || type == Protocol.TYPE_VIEW_SNAPSHOT
+                || type == Protocol.TYPE_VIEW_DELTA) && isFromServer(packet.getSocketAddress())) {
+            serverAcceptsCompression = receivedProtocol.hasFlag(Protocol.FLAG_ACCEPTS_COMPRESSION);
+        }
+
+        if (type == Protocol.TYPE_LISTING_ACK) {
+            if (listingTracker != null) {
+                listingTracker.acknowledge(FileListing.parseGeneration(receivedProtocol.getPayload()));
+            }
+            return;
+        }
+
+        if (type == Protocol.TYPE_LOOKUP_RESPONSE) {
+            completeLookup(receivedProtocol.getPayload());
+            return;
+        }
+
+        if (type == Protocol.TYPE_SEARCH_RESPONSE) {
+            completeSearch(receivedProtocol.getPayload());
+            return;
+        }
 
-                String fileListing = getFileListing();
-                Protocol heartbeat = new Protocol(1, false, getNodeId(), System.currentTimeMillis(), 0, fileListing);
-                byte[] data = heartbeat.serialize();
+        if (type == Protocol.TYPE_REDIRECT) {
+            followRedirect(packet.getSocketAddress(), receivedProtocol.getPayload());
+            return;
+        }
 
-                DatagramPacket packet = new DatagramPacket(data, data.length, InetAddress.getByName(serverIP), serverPort);
-                socket.send(packet);
+        if (viewReplica != null && (type == Protocol.TYPE_VIEW_SNAPSHOT || type == Protocol.TYPE_VIEW_DELTA)) {
+            if (viewReplica.apply(receivedProtocol)) {
+                lastServerUpdate = viewReplica.render();
+            }
+            sendViewAck();
+            return;
+        }
 
-                System.out.println("[Client " + getIpAddress() + "] Sent heartbeat with file listing.");
+        lastServerUpdate = receivedProtocol.getPayload(); // Store received update for printing
+
+        // A full-text update means the server does not know our epoch yet
+        if (viewReplica != null) {
+            sendViewAck();
+        }
+    }
+
+    /**
+     * Switches to the cluster shard that owns this client and heartbeats there at once.
+     * Within REDIRECT_HOLDOFF of the last redirect it only switches, so shards that disagree
+     * about ownership cannot make the client loop. Only the server we are talking to can
+     * redirect us, and only to one of the configured shards, or to any resolvable host:port
+     * when none are configured.
+     */
+    private void followRedirect(SocketAddress from, String owner) throws IOException {
+        if (!isFromServer(from)) {
+            redirectsIgnored.increment();
+            return;
+        }
+        InetSocketAddress target = parseShard(owner);
+        if (target == null || (shards != null && !shards.contains(target))) {
+            redirectsIgnored.increment();
+            return;
+        }
+        String ip = owner.substring(0, owner.lastIndexOf(':'));
+        int port = target.getPort();
+        if (ip.equals(serverIP) && port == serverPort) {
+            return;
+        }
+        serverIP = ip;
+        serverPort = port;
+        System.out.println("[Client " + getIpAddress() + "] Redirected to server shard " + owner + ".");
+
+        long now = System.currentTimeMillis();
+        if (now - lastRedirect >= REDIRECT_HOLDOFF) {
+            lastRedirect = now;
+            sendHeartbeat();
+        }
+    }
+
+    private boolean isFromServer(SocketAddress from) throws UnknownHostException {
+        return from.equals(new InetSocketAddress(InetAddress.getByName(serverIP), serverPort));
+    }
 
-            } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
+    /**
+     * Parses a redirect's host:port, or returns null if it is malformed or does not resolve.
+     */
+    private static InetSocketAddress parseShard(String owner) {
+        int colon = owner.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        try {
+            int port = Integer.parseInt(owner.substring(colon + 1).trim());
+            if (port <= 0 || port > 0xFFFF) {
+                return null;
             }
+            InetSocketAddress address = new InetSocketAddress(owner.substring(0, colon), port);
+            return address.isUnresolved() ? null : address;
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
 
+    private void send(DatagramPacket packet) throws IOException {
+        socket.send(packet);
+        packetsSent.increment();
+        bytesSent.add(packet.getLength());
+    }
+
     /**
-     * Thread 2: Listens for updates from the server.
+     * Asks the server which nodes have the file. Completes with an empty list if nobody does.
      */
-    private void listenForUpdates() {
+    public CompletableFuture<List<String>> lookup(String fileName) throws IOException {
+        CompletableFuture<List<String>> result = pendingLookups.computeIfAbsent(fileName, name -> new CompletableFuture<>());
+
+        Protocol request = new Protocol(1, false, getNodeId(), System.currentTimeMillis(), 0, fileName);
+        request.setType(Protocol.TYPE_LOOKUP_REQUEST);
+        request.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        byte[] data = request.serialize();
+        send(new DatagramPacket(data, data.length, InetAddress.getByName(serverIP), serverPort));
+
+        return result.orTimeout(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS)
+                .whenComplete((nodes, error) -> pendingLookups.remove(fileName, result));
+    }
+
+    private void completeLookup(String payload) {
+        int newline = payload.indexOf('\n');
+        if (newline < 0) {
+            return;
+        }
+        CompletableFuture<List<String>> pending = pendingLookups.remove(payload.substring(0, newline));
+        if (pending != null) {
+            pending.complete(FileListing.split(payload.substring(newline + 1)));
+        }
+    }
+
+    /**
+     * Asks the server for one page of file names matching the pattern. Pass the previous
+     * page's next token to continue, or null to start. Fails with an IOException if the
+     * server rejects the search.
+     */
+    public CompletableFuture<FileSearch.Page> search(FileSearch.Kind kind, String pattern, int limit, String token)
+            throws IOException {
+        int tag = searchTags.incrementAndGet();
+        CompletableFuture<FileSearch.Page> result = new CompletableFuture<>();
+        pendingSearches.put(tag, result);
+
+        String query = tag + "\n" + kind.name().toLowerCase() + "\n" + limit + "\n"
+                + (token != null ? token : "") + "\n" + pattern;
+        Protocol request = new Protocol(1, false, getNodeId(), System.currentTimeMillis(), 0, query);
+        request.setType(Protocol.TYPE_SEARCH_REQUEST);
+        request.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        byte[] data = request.serialize();
+        send(new DatagramPacket(data, data.length, InetAddress.getByName(serverIP), serverPort));
+
+        return result.orTimeout(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS)
+                .whenComplete((page, error) -> pendingSearches.remove(tag, result));
+    }
+
+    private void completeSearch(String payload) {
+        String[] lines = payload.split("\n", 3);
+        if (lines.length < 3) {
+            return;
+        }
+        CompletableFuture<FileSearch.Page> pending;
         try {
-            byte[] buffer = new byte[1024];
-            while (true) {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
+            pending = pendingSearches.remove(Integer.parseInt(lines[0]));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (pending == null) {
+            return;
+        }
+        if (lines[1].startsWith("error")) {
+            pending.completeExceptionally(new IOException("Search rejected: " + lines[1].substring("error".length()).trim()));
+        } else {
+            String next = lines[1].startsWith("more ") ? lines[1].substring("more ".length()) : null;
+            pending.complete(new FileSearch.Page(FileListing.split(lines[2]), next));
+        }
+    }
+
+    /**
+     * Downloads a file from another node into the home directory. Bytes land in a ".part"
+     * file first, so an interrupted download resumes from where it stopped.
+     */
+    public void fetch(InetSocketAddress source, String fileName) throws IOException {
+        File partial = new File(getHomeDirectory(), fileName + ".part");
+        long start = System.nanoTime();
+        FileTransferService.Range range;
+        try (FileChannel target = FileChannel.open(partial.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long have = target.size();
+            range = FileTransferService.fetch(source, fileName, have, -1, target, have);
+        }
+
+        File complete = new File(getHomeDirectory(), fileName);
+        if (!partial.renameTo(complete)) {
+            throw new IOException("Could not move " + partial + " to " + complete);
+        }
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+        System.out.printf("[Client %s] Fetched %s from %s: %d bytes (resumed at %d), %.1f MB/s%n",
+                getIpAddress(), fileName, source, range.count, range.offset, range.count / 1e6 / seconds);
+    }
 
-                Protocol receivedProtocol = Protocol.deserialize(packet.getData());
-                lastServerUpdate = receivedProtocol.getPayload(); // Store received update for printing
+    /**
+     * Console loop: reads commands. "lookup <file>" asks the server who has a file,
+     * "search <text or glob>" and "prefix <text>" find file names, "more" shows the next
+     * page of the last search, and "fetch <host[:port]> <file>" downloads a file.
+     */
+    private void readCommands() {
+        try (BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            FileSearch.Kind searchKind = null; // The last search, for "more"
+            String searchPattern = null;
+            String searchToken = null;
+            while ((line = console.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("search ") || line.startsWith("prefix ") || line.equals("more")) {
+                    if (line.equals("more")) {
+                        if (searchToken == null) {
+                            System.out.println("[Client " + getIpAddress() + "] No more results.");
+                            continue;
+                        }
+                    } else {
+                        searchPattern = line.substring(line.indexOf(' ') + 1).trim();
+                        searchKind = line.startsWith("prefix ") ? FileSearch.Kind.PREFIX
+                                : searchPattern.contains("*") || searchPattern.contains("?") ? FileSearch.Kind.GLOB
+                                : FileSearch.Kind.SUBSTRING;
+                        searchToken = null;
+                    }
+                    try {
+                        FileSearch.Page page = search(searchKind, searchPattern, SEARCH_PAGE_SIZE, searchToken).get();
+                        searchToken = page.next;
+                        System.out.println("[Client " + getIpAddress() + "] Files matching " + searchPattern + ": "
+                                + (page.names.isEmpty() ? "none" : String.join(", ", page.names))
+                                + (searchToken != null ? " (\"more\" for the next page)" : ""));
+                    } catch (ExecutionException e) {
+                        searchToken = null;
+                        System.out.println("[Client " + getIpAddress() + "] Search failed: " + e.getCause().getMessage());
+                    }
+                } else if (line.startsWith("lookup ")) {
+                    String fileName = line.substring("lookup ".length()).trim();
+                    try {
+                        List<String> nodes = lookup(fileName).get();
+                        System.out.println("[Client " + getIpAddress() + "] " + fileName + " is on: "
+                                + (nodes.isEmpty() ? "no active node" : String.join(", ", nodes)));
+                    } catch (ExecutionException e) {
+                        System.out.println("[Client " + getIpAddress() + "] No lookup response for " + fileName);
+                    }
+                } else if (line.startsWith("fetch ")) {
+                    String[] parts = line.split("\\s+", 3);
+                    if (parts.length < 3) {
+                        System.out.println("Usage: fetch <host[:port]> <file>");
+                        continue;
+                    }
+                    int colon = parts[1].lastIndexOf(':');
+                    String host = colon > 0 ? parts[1].substring(0, colon) : parts[1];
+                    int port;
+                    try {
+                        port = colon > 0 ? Integer.parseInt(parts[1].substring(colon + 1)) : fileTransfer.getPort();
+                    } catch (NumberFormatException e) {
+                        port = -1;
+                    }
+                    if (port <= 0 || port > 0xFFFF) {
+                        System.out.println("Usage: fetch <host[:port]> <file>");
+                        continue;
+                    }
+                    try {
+                        fetch(new InetSocketAddress(host, port), parts[2]);
+                    } catch (IOException e) {
+                        System.out.println("[Client " + getIpAddress() + "] Fetch failed: " + e.getMessage());
+                    }
+                } else if (!line.isEmpty()) {
+                    System.out.println("Commands: lookup <file>, search <text or glob>, prefix <text>, more, "
+                            + "fetch <host[:port]> <file>");
+                }
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Thread 3: Prints the latest server update every 30 seconds.
+     * Reports the view epoch held here, so the server only sends what is missing.
+     */
+    private void sendViewAck() throws IOException {
+        Protocol ack = new Protocol(1, false, getNodeId(), System.currentTimeMillis(), 0,
+                Long.toString(viewReplica.getEpoch()));
+        ack.setType(Protocol.TYPE_VIEW_ACK);
+        ack.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        byte[] data = ack.serialize();
+        // Broadcasts come from the server's fan-out sockets, so reply to the configured address
+        send(new DatagramPacket(data, data.length, InetAddress.getByName(serverIP), serverPort));
+    }
+
+    /**
+     * Every 30 seconds: prints the latest server update.
      */
     private void printUpdates() {
-        while (true) {
-            try {
-                Thread.sleep(30000); // Print every 30 seconds
-                System.out.println("\n[Client " + getIpAddress() + "] Received Update from Server ");
-                System.out.println("--------------------------------------------------");
-                System.out.println(lastServerUpdate);
-                System.out.println("--------------------------------------------------\n");
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        System.out.println("\n[Client " + getIpAddress() + "] Received Update from Server ");
+        System.out.println("--------------------------------------------------");
+        System.out.println(lastServerUpdate);
+        System.out.println("--------------------------------------------------\n");
     }
 
     /**
      * Retrieves a file listing from the home directory.
      */
     private String getFileListing() {
-        File folder = new File(getHomeDirectory());
+        if (directoryIndex == null) {
+            return "ERROR: Could not create home directory!";
+        }
+        return directoryIndex.getListing(); // Cached, rebuilt only after the directory changes
+    }
 
-        // If the directory doesn't exist, create it
-        if (!folder.exists()) {
+    /**
+     * Creates the home directory if needed and starts indexing it, or returns null on failure.
+     */
+    private DirectoryIndex openDirectoryIndex() {
+        // If the directory doesn't exist, DirectoryIndex creates it
+        boolean missing = !new File(getHomeDirectory()).exists();
+        if (missing) {
             System.out.println("Home directory not found. Creating: " + getHomeDirectory());
-            boolean created = folder.mkdirs();
-            if (created) {
-                System.out.println("Home directory created successfully!");
-            } else {
-                return "ERROR: Could not create home directory!";
-            }
         }
 
-        // List files in the directory
-        StringBuilder fileList = new StringBuilder();
-        File[] files = folder.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                fileList.append(file.getName()).append(",");
+        try {
+            DirectoryIndex index = new DirectoryIndex(getHomeDirectory());
+            if (missing) {
+                System.out.println("Home directory created successfully!");
             }
+            return index;
+        } catch (IOException e) {
+            System.err.println("ERROR: Could not create home directory: " + e.getMessage());
+            return null;
         }
-        return fileList.length() > 0 ? fileList.toString() : "No files available.";
     }
 
     public static void main(String[] args) {
-        new Client(); // 
+        Client client = new Client();
+        Runtime.getRuntime().addShutdownHook(new Thread(client::close));
     }
 }
@@ -0,0 +1,132 @@
+package ClientServer;
+
+import java.util.*;
+
+/**
+ * The server's versioned view of active clients and their listings.
+ *
+ * Every join, leave or listing change bumps the epoch and is appended to a short log,
+ * encoded once as a text line. A client that reports the epoch it holds gets just the
+ * lines after that epoch, or a full snapshot when it has fallen behind the log.
+ *
+ * Payload formats:
+ *   snapshot: epoch, then one "nodeId TAB listing" line per active node
+ *   delta:    from epoch, to epoch, then one change line per change
+ *   change:   "epoch TAB + TAB nodeId TAB listing" (join or update) or "epoch TAB - TAB nodeId"
+ */
+public class ClusterView {
+    private static final int DEFAULT_LOG_SIZE = 1024; // Changes kept for incremental updates
+
+    private final int maxLogSize;
+    private long epoch;
+    private final Map<String, String> members = new LinkedHashMap<>(); // nodeId -> listing
+    private final ArrayDeque<Change> log = new ArrayDeque<>();
+    private String snapshotPayload; // Cached for the current epoch
+
+    public ClusterView() {
+        this(DEFAULT_LOG_SIZE);
+    }
+
+    public ClusterView(int maxLogSize) {
+        this.maxLogSize = maxLogSize;
+    }
+
+    public synchronized long getEpoch() { return epoch; }
+
+    public synchronized int size() { return members.size(); }
+
+    /**
+     * Continues numbering after an epoch used before a restart, so a client still holding
+     * one of the old epochs can never look current and is sent a snapshot instead.
+     */
+    public synchronized void resumeAfter(long previousEpoch) {
+        if (previousEpoch >= epoch) {
+            epoch = previousEpoch + 1;
+            log.clear();
+            snapshotPayload = null;
+        }
+    }
+
+    /**
+     * Records a node's listing. Only bumps the epoch if the node is new or its listing changed.
+     */
+    public synchronized void update(String nodeId, String listing) {
+        String previous = members.put(nodeId, listing);
+        if (Objects.equals(previous, listing)) {
+            return;
+        }
+        append(new Change(++epoch, nodeId + "\t" + listing, "+"));
+    }
+
+    public synchronized void remove(String nodeId) {
+        if (members.remove(nodeId) == null) {
+            return;
+        }
+        append(new Change(++epoch, nodeId, "-"));
+    }
+
+    /**
+     * Builds the message that brings a client from heldEpoch to the current epoch, or returns
+     * null if the client is already up to date.
+     */
+    public synchronized Protocol toMessage(long heldEpoch) {
+        if (heldEpoch == epoch) {
+            return null;
+        }
+
+        Protocol message;
+        Change oldest = log.peekFirst();
+        if (heldEpoch > 0 && heldEpoch < epoch && oldest != null && oldest.epoch <= heldEpoch + 1) {
+            StringBuilder payload = new StringBuilder();
+            payload.append(heldEpoch).append('\n').append(epoch).append('\n');
+            Iterator<Change> changes = log.descendingIterator();
+            Deque<Change> pending = new ArrayDeque<>();
+            while (changes.hasNext()) {
+                Change change = changes.next();
+                if (change.epoch <= heldEpoch) {
+                    break;
+                }
+                pending.push(change);
+            }
+            for (Change change : pending) {
+                payload.append(change.line).append('\n');
+            }
+            message = new Protocol(1, false, "server", System.currentTimeMillis(), 0, payload.toString());
+            message.setType(Protocol.TYPE_VIEW_DELTA);
+        } else {
+            message = new Protocol(1, false, "server", System.currentTimeMillis(), 0, snapshot());
+            message.setType(Protocol.TYPE_VIEW_SNAPSHOT);
+        }
+        return message;
+    }
+
+    private String snapshot() {
+        if (snapshotPayload == null) {
+            StringBuilder payload = new StringBuilder();
+            payload.append(epoch).append('\n');
+            for (Map.Entry<String, String> member : members.entrySet()) {
+                payload.append(member.getKey()).append('\t').append(member.getValue()).append('\n');
+            }
+            snapshotPayload = payload.toString();
+        }
+        return snapshotPayload;
+    }
+
+    private void append(Change change) {
+        log.addLast(change);
+        while (log.size() > maxLogSize) {
+            log.removeFirst();
+        }
+        snapshotPayload = null;
+    }
+
+    private static class Change {
+        final long epoch;
+        final String line;
+
+        Change(long epoch, String body, String kind) {
+            this.epoch = epoch;
+            this.line = epoch + "\t" + kind + "\t" + body;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package ClientServer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index from file name to the nodes that advertise it.
+ *
+ * Kept current from heartbeats: delta heartbeats touch only the changed names, full
+ * listings are diffed against what the node had before, and expired nodes are removed.
+ * Lookups are a single map read. A Listener, such as FileSearch, can follow the set of
+ * distinct names.
+ */
+public class FileIndex {
+
+    /**
+     * Told when a file name gains its first node or loses its last one, while the name's
+     * entry is locked, so the calls for one name arrive in order.
+     */
+    public interface Listener {
+        void changed(String fileName, boolean listed);
+    }
+
+    private final ConcurrentHashMap<String, Set<String>> nodesByFile = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> filesByNode = new ConcurrentHashMap<>();
+    private final Listener listener; // May be null
+
+    public FileIndex() {
+        this(null);
+    }
+
+    public FileIndex(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the nodes that advertise the file, or an empty set.
+     */
+    public Set<String> lookup(String fileName) {
+        Set<String> nodes = nodesByFile.get(fileName);
+        return nodes != null ? Collections.unmodifiableSet(nodes) : Collections.emptySet();
+    }
+
+    public int getFileCount() { return nodesByFile.size(); }
+
+    /**
+     * Records one added or removed file for a node.
+     */
+    public void record(String nodeId, String fileName, boolean added) {
+        Set<String> files = filesByNode.computeIfAbsent(nodeId, id -> ConcurrentHashMap.newKeySet());
+        if (added) {
+            if (files.add(fileName)) {
+                link(fileName, nodeId);
+            }
+        } else if (files.remove(fileName)) {
+            unlink(fileName, nodeId);
+        }
+    }
+
+    /**
+     * Replaces a node's files, touching only the names that differ.
+     */
+    public void replace(String nodeId, Collection<String> latest) {
+        Set<String> latestSet = latest instanceof Set ? (Set<String>) latest : new HashSet<>(latest);
+        Set<String> files = filesByNode.computeIfAbsent(nodeId, id -> ConcurrentHashMap.newKeySet());
+
+        for (String fileName : new ArrayList<>(files)) {
+            if (!latestSet.contains(fileName)) {
+                record(nodeId, fileName, false);
+            }
+        }
+        for (String fileName : latestSet) {
+            if (!files.contains(fileName)) {
+                record(nodeId, fileName, true);
+            }
+        }
+    }
+
+    public void remove(String nodeId) {
+        Set<String> files = filesByNode.remove(nodeId);
+        if (files != null) {
+            for (String fileName : files) {
+                unlink(fileName, nodeId);
+            }
+        }
+    }
+
+    // Both run inside compute so a set is never emptied and dropped while another node joins it
+    private void link(String fileName, String nodeId) {
+        nodesByFile.compute(fileName, (name, nodes) -> {
+            Set<String> result = nodes != null ? nodes : ConcurrentHashMap.newKeySet();
+            result.add(nodeId);
+            if (nodes == null && listener != null) {
+                listener.changed(name, true);
+            }
+            return result;
+        });
+    }
+
+    private void unlink(String fileName, String nodeId) {
+        nodesByFile.computeIfPresent(fileName, (name, nodes) -> {
+            nodes.remove(nodeId);
+            if (nodes.isEmpty()) {
+                if (listener != null) {
+                    listener.changed(name, false);
+                }
+                return null;
+            }
+            return nodes;
+        });
+    }
+}
@@ -0,0 +1,633 @@
+package ClientServer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Pattern search over the distinct file names in a FileIndex: prefix, substring and glob
+ * ('*' any run, '?' any one character) queries, answered a page at a time.
+ *
+ * Prefix queries walk a radix trie, so they return names in order and cost the length of
+ * the prefix plus the page. Substring and glob queries use an index from each three-character
+ * sequence (trigram) to the ids of the names that contain it: the rarest trigram of the
+ * pattern gives the candidates, which are checked against the pattern, in id order. Names
+ * get increasing ids as they appear, so the lists only ever grow at the end; removed names
+ * are dropped from a list once they make up half of it. Globs without a three-character
+ * literal fall back to the trie on their literal prefix, or to a scan of all names.
+ *
+ * A page ends after limit results or after scanBudget candidates, whichever comes first,
+ * so one query cannot stall the caller. Its continuation token records where the search
+ * stopped, and the next page resumes from there instead of running the search again.
+ * The token is null once there is nothing left to look at, so the last page can be empty.
+ * Names added or removed while a client pages through may or may not show up; the others
+ * are returned exactly once.
+ *
+ * Names are matched case-sensitively, as lookups are. Updates come from FileIndex (see
+ * update()) and take a write lock; searches share a read lock.
+ */
+public class FileSearch {
+    public static final int DEFAULT_SCAN_BUDGET = 10000;
+    private static final int CHUNK_SHIFT = 16; // Names are stored in chunks of 64K ids
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+    public enum Kind { PREFIX, SUBSTRING, GLOB }
+
+    /**
+     * One page of results.
+     */
+    public static final class Page {
+        static final Page EMPTY = new Page(Collections.emptyList(), null);
+
+        public final List<String> names;
+        public final String next; // Continuation token, or null after the last page
+
+        public Page(List<String> names, String next) {
+            this.names = names;
+            this.next = next;
+        }
+    }
+
+    private final int scanBudget;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private String[][] chunks = new String[16][]; // id -> name; null once removed
+    private int[] liveInChunk = new int[16];
+    private int nextId;
+    private int generation; // Bumped when ids are renumbered, which invalidates id tokens
+    private final HashMap<Long, Postings> postings = new HashMap<>(); // Trigram -> ids of names containing it
+    private final TrieNode root = new TrieNode("", 0, 0);
+
+    public FileSearch() {
+        this(DEFAULT_SCAN_BUDGET);
+    }
+
+    public FileSearch(int scanBudget) {
+        this.scanBudget = Math.max(1, scanBudget);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ids.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds or removes a name, as a FileIndex.Listener.
+     */
+    public void update(String fileName, boolean listed) {
+        lock.writeLock().lock();
+        try {
+            if (listed) {
+                add(fileName);
+            } else {
+                remove(fileName);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns up to limit names matching the pattern, continuing after token if it is not
+     * null. Throws IllegalArgumentException for a token this index did not issue for the
+     * same kind of search, or one from before the ids were renumbered.
+     */
+    public Page search(Kind kind, String pattern, int limit, String token) {
+        limit = Math.max(1, limit);
+        lock.readLock().lock();
+        try {
+            switch (kind) {
+                case PREFIX:
+                    return triePage(pattern, null, limit, token);
+                case SUBSTRING:
+                    return indexedPage("", Collections.singletonList(pattern), name -> name.contains(pattern), limit, token);
+                default:
+                    int wildcard = firstWildcard(pattern, 0);
+                    if (wildcard < 0) {
+                        return ids.containsKey(pattern) && token == null
+                                ? new Page(Collections.singletonList(pattern), null) : Page.EMPTY;
+                    }
+                    String literalPrefix = pattern.substring(0, wildcard);
+                    if (wildcard == pattern.length() - 1 && pattern.charAt(wildcard) == '*') {
+                        return triePage(literalPrefix, null, limit, token);
+                    }
+                    return indexedPage(literalPrefix, literals(pattern), name -> globMatches(pattern, name), limit, token);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void add(String fileName) {
+        if (ids.containsKey(fileName)) {
+            return;
+        }
+        if (nextId == Integer.MAX_VALUE) {
+            renumber();
+        }
+        int id = nextId++;
+        int chunk = id >>> CHUNK_SHIFT;
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            liveInChunk = Arrays.copyOf(liveInChunk, liveInChunk.length * 2);
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new String[CHUNK_SIZE];
+        }
+        chunks[chunk][id & (CHUNK_SIZE - 1)] = fileName;
+        liveInChunk[chunk]++;
+        ids.put(fileName, id);
+
+        for (long trigram : trigrams(fileName)) {
+            postings.computeIfAbsent(trigram, key -> new Postings()).append(id);
+        }
+        trieInsert(fileName, id);
+    }
+
+    private void remove(String fileName) {
+        Integer id = ids.remove(fileName);
+        if (id == null) {
+            return;
+        }
+        int chunk = id >>> CHUNK_SHIFT;
+        chunks[chunk][id & (CHUNK_SIZE - 1)] = null;
+        // A chunk that is full and has no names left is never written again
+        if (--liveInChunk[chunk] == 0 && nextId >= (chunk + 1) << CHUNK_SHIFT) {
+            chunks[chunk] = null;
+        }
+
+        // The id stays in the lists until removed names make up half of one
+        for (long trigram : trigrams(fileName)) {
+            Postings list = postings.get(trigram);
+            if (list != null && ++list.dead * 2 > list.size) {
+                list.compact();
+                if (list.size == 0) {
+                    postings.remove(trigram);
+                }
+            }
+        }
+        trieRemove(fileName);
+    }
+
+    /**
+     * Gives the live names ids from 0 again. Only needed once 2^31 names have been added.
+     */
+    private void renumber() {
+        List<String> live = new ArrayList<>(ids.size());
+        for (int id = 0; id < nextId; id++) {
+            String name = nameOf(id);
+            if (name != null) {
+                live.add(name);
+            }
+        }
+        ids.clear();
+        chunks = new String[16][];
+        liveInChunk = new int[16];
+        nextId = 0;
+        postings.clear();
+        root.children = NO_CHILDREN;
+        root.id = -1;
+        generation++;
+        for (String name : live) {
+            add(name);
+        }
+    }
+
+    private String nameOf(int id) {
+        String[] chunk = chunks[id >>> CHUNK_SHIFT];
+        return chunk != null ? chunk[id & (CHUNK_SIZE - 1)] : null;
+    }
+
+    // ---- Substring and glob queries: trigram candidates in id order ----
+
+    private Page indexedPage(String literalPrefix, List<String> literals, Predicate<String> test, int limit, String token) {
+        boolean indexed = false;
+        for (String literal : literals) {
+            indexed |= literal.length() >= 3;
+        }
+        if (!indexed && !literalPrefix.isEmpty()) {
+            return triePage(literalPrefix, test, limit, token);
+        }
+
+        int after = token != null ? parseIdToken(token) : -1;
+        Postings rarest = null;
+        for (String literal : literals) {
+            for (long trigram : trigrams(literal)) {
+                Postings list = postings.get(trigram);
+                if (list == null) {
+                    return Page.EMPTY; // No name contains this part of the pattern
+                }
+                if (rarest == null || list.size < rarest.size) {
+                    rarest = list;
+                }
+            }
+        }
+        List<String> names = new ArrayList<>();
+        int examined = 0;
+        if (rarest != null) {
+            for (int i = rarest.indexAfter(after); i < rarest.size; i++) {
+                int id = rarest.ids[i];
+                String name = nameOf(id);
+                if (name != null && test.test(name)) {
+                    names.add(name);
+                }
+                if (names.size() == limit || ++examined == scanBudget) {
+                    return new Page(names, i + 1 < rarest.size ? idToken(id) : null);
+                }
+            }
+            return new Page(names, null);
+        }
+
+        // Nothing to narrow it down: look at every name
+        for (int id = after + 1; id < nextId; id++) {
+            if (chunks[id >>> CHUNK_SHIFT] == null) {
+                id |= CHUNK_SIZE - 1; // Skip the whole removed chunk
+                continue;
+            }
+            String name = nameOf(id);
+            if (name != null && test.test(name)) {
+                names.add(name);
+            }
+            if (names.size() == limit || ++examined == scanBudget) {
+                return new Page(names, id + 1 < nextId ? idToken(id) : null);
+            }
+        }
+        return new Page(names, null);
+    }
+
+    private String idToken(int id) {
+        return "i" + generation + "." + id;
+    }
+
+    private int parseIdToken(String token) {
+        int dot = token.indexOf('.');
+        try {
+            if (token.startsWith("i") && dot > 0 && Integer.parseInt(token.substring(1, dot)) == generation) {
+                return Integer.parseInt(token.substring(dot + 1));
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid or expired continuation token: " + token);
+    }
+
+    /**
+     * Ids of the names containing one trigram, ascending. Removed ids linger until compact().
+     */
+    private final class Postings {
+        int[] ids = new int[4];
+        int size;
+        int dead;
+
+        void append(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size + (size >> 1));
+            }
+            ids[size++] = id;
+        }
+
+        /**
+         * Index of the first id greater than after.
+         */
+        int indexAfter(int after) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (ids[middle] <= after) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        void compact() {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (nameOf(ids[i]) != null) {
+                    ids[kept++] = ids[i];
+                }
+            }
+            size = kept;
+            dead = 0;
+            if (ids.length > 4 * Math.max(4, size)) {
+                ids = Arrays.copyOf(ids, Math.max(4, size * 2));
+            }
+        }
+    }
+
+    /**
+     * The distinct trigrams of a string, each packed into a long.
+     */
+    private static long[] trigrams(String text) {
+        if (text.length() < 3) {
+            return new long[0];
+        }
+        long[] trigrams = new long[text.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = (long) text.charAt(i) << 32 | (long) text.charAt(i + 1) << 16 | text.charAt(i + 2);
+        }
+        Arrays.sort(trigrams);
+        int distinct = 0;
+        for (int i = 0; i < trigrams.length; i++) {
+            if (i == 0 || trigrams[i] != trigrams[i - 1]) {
+                trigrams[distinct++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, distinct);
+    }
+
+    // ---- Globs ----
+
+    private static int firstWildcard(String pattern, int from) {
+        for (int i = from; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The literal runs between a glob's wildcards; every match contains all of them.
+     */
+    private static List<String> literals(String pattern) {
+        List<String> literals = new ArrayList<>();
+        int start = 0;
+        while (start <= pattern.length()) {
+            int wildcard = firstWildcard(pattern, start);
+            int end = wildcard < 0 ? pattern.length() : wildcard;
+            if (end > start) {
+                literals.add(pattern.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return literals;
+    }
+
+    /**
+     * Whether the whole name matches the glob. On a mismatch after a '*', the star takes
+     * one more character and the rest is retried, so this is linear for typical patterns.
+     */
+    static boolean globMatches(String pattern, String name) {
+        int p = 0;
+        int n = 0;
+        int star = -1;
+        int starMatch = 0;
+        while (n < name.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))
+                    && pattern.charAt(p) != '*') {
+                p++;
+                n++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                starMatch = n;
+            } else if (star >= 0) {
+                p = star + 1;
+                n = ++starMatch;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    // ---- Prefix queries: a radix trie, in name order ----
+
+    /**
+     * A trie node. Its edge label is key[start, end), where key is any name below the node
+     * and start is the node's depth, so labels share the names' strings instead of copying.
+     */
+    private static final class TrieNode {
+        String key;
+        int start;
+        int end;
+        int id = -1; // Id of the name ending here, or -1
+        TrieNode[] children = NO_CHILDREN; // Sorted by the first label character
+
+        TrieNode(String key, int start, int end) {
+            this.key = key;
+            this.start = start;
+            this.end = end;
+        }
+
+        char first() { return key.charAt(start); }
+
+        int indexOf(char c) {
+            int low = 0;
+            int high = children.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                char first = children[middle].first();
+                if (first < c) {
+                    low = middle + 1;
+                } else if (first > c) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+
+        void insertChild(int at, TrieNode child) {
+            TrieNode[] grown = new TrieNode[children.length + 1];
+            System.arraycopy(children, 0, grown, 0, at);
+            grown[at] = child;
+            System.arraycopy(children, at, grown, at + 1, children.length - at);
+            children = grown;
+        }
+
+        void removeChild(int at) {
+            TrieNode[] shrunk = new TrieNode[children.length - 1];
+            System.arraycopy(children, 0, shrunk, 0, at);
+            System.arraycopy(children, at + 1, shrunk, at, shrunk.length - at);
+            children = shrunk.length > 0 ? shrunk : NO_CHILDREN;
+        }
+    }
+
+    private void trieInsert(String name, int id) {
+        TrieNode node = root;
+        int depth = 0;
+        while (depth < name.length()) {
+            int at = node.indexOf(name.charAt(depth));
+            if (at < 0) {
+                TrieNode leaf = new TrieNode(name, depth, name.length());
+                leaf.id = id;
+                node.insertChild(-at - 1, leaf);
+                return;
+            }
+            TrieNode child = node.children[at];
+            int common = depth;
+            int limit = Math.min(child.end, name.length());
+            while (common < limit && child.key.charAt(common) == name.charAt(common)) {
+                common++;
+            }
+            if (common < child.end) {
+                // The name leaves the edge part way: split it at the last shared character
+                TrieNode split = new TrieNode(child.key, depth, common);
+                child.start = common;
+                split.children = new TrieNode[] {child};
+                node.children[at] = split;
+                child = split;
+            }
+            node = child;
+            depth = common;
+        }
+        node.id = id;
+    }
+
+    private void trieRemove(String name) {
+        List<TrieNode> path = new ArrayList<>();
+        TrieNode node = root;
+        int depth = 0;
+        while (depth < name.length()) {
+            int at = node.indexOf(name.charAt(depth));
+            if (at < 0) {
+                return;
+            }
+            path.add(node);
+            node = node.children[at];
+            depth = node.end;
+        }
+        if (depth != name.length() || node.id < 0) {
+            return;
+        }
+        node.id = -1;
+        if (path.isEmpty()) {
+            return; // The empty name lives on the root
+        }
+
+        // Drop the node if it is now a leaf, and merge any node left with a single child
+        TrieNode parent = path.get(path.size() - 1);
+        if (node.children.length == 0) {
+            parent.removeChild(parent.indexOf(node.first()));
+            if (parent != root && parent.id < 0 && parent.children.length == 1) {
+                merge(path.get(path.size() - 2), parent);
+            }
+        } else if (node.children.length == 1) {
+            merge(parent, node);
+        }
+    }
+
+    /**
+     * Replaces node, which has one child and no name of its own, by that child.
+     */
+    private static void merge(TrieNode parent, TrieNode node) {
+        TrieNode child = node.children[0];
+        child.start = node.start;
+        parent.children[parent.indexOf(node.first())] = child;
+    }
+
+    private Page triePage(String prefix, Predicate<String> test, int limit, String token) {
+        String after = token != null ? parseNameToken(token) : null;
+        TrieNode node = root;
+        int depth = 0;
+        while (depth < prefix.length()) {
+            int at = node.indexOf(prefix.charAt(depth));
+            if (at < 0) {
+                return Page.EMPTY;
+            }
+            node = node.children[at];
+            for (int i = depth; i < Math.min(node.end, prefix.length()); i++) {
+                if (node.key.charAt(i) != prefix.charAt(i)) {
+                    return Page.EMPTY;
+                }
+            }
+            depth = node.end;
+        }
+        TrieWalk walk = new TrieWalk(test, limit, after);
+        boolean finished = walk.visit(node, after != null);
+        return new Page(walk.names, finished ? null : nameToken(walk.last));
+    }
+
+    /**
+     * Depth-first, in-order walk below a node that collects one page.
+     */
+    private final class TrieWalk {
+        final Predicate<String> test;
+        final int limit;
+        final String after;
+        final List<String> names = new ArrayList<>();
+        int examined;
+        String last;
+
+        TrieWalk(Predicate<String> test, int limit, String after) {
+            this.test = test;
+            this.limit = limit;
+            this.after = after;
+        }
+
+        /**
+         * Returns false once the page is full. While bounded, the node's path is a prefix of
+         * the token and only what sorts after the token is visited.
+         */
+        boolean visit(TrieNode node, boolean bounded) {
+            if (bounded) {
+                int order = comparePath(node);
+                if (order < 0) {
+                    return true; // Everything below sorts before the token
+                }
+                bounded = order == 0;
+            }
+            if (node.id >= 0 && !bounded) {
+                String name = nameOf(node.id);
+                if (test == null || test.test(name)) {
+                    names.add(name);
+                }
+                last = name;
+                if (names.size() == limit || ++examined == scanBudget) {
+                    return false;
+                }
+            }
+            for (TrieNode child : node.children) {
+                if (!visit(child, bounded)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Compares the node's path with the token: 0 if the path is a prefix of it (or equal),
+         * otherwise the order of the two.
+         */
+        int comparePath(TrieNode node) {
+            int shared = Math.min(node.end, after.length());
+            for (int i = 0; i < shared; i++) {
+                int difference = node.key.charAt(i) - after.charAt(i);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return node.end <= after.length() ? 0 : 1;
+        }
+    }
+
+    private static String nameToken(String name) {
+        return "n" + Base64.getUrlEncoder().withoutPadding().encodeToString(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String parseNameToken(String token) {
+        try {
+            if (token.startsWith("n")) {
+                return new String(Base64.getUrlDecoder().decode(token.substring(1)), StandardCharsets.UTF_8);
+            }
+        } catch (IllegalArgumentException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid continuation token: " + token);
+    }
+}
@@ -0,0 +1,371 @@
+package ClientServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * The server's membership and listings on disk, so a restart does not begin with an empty
+ * view.
+ *
+ * Changes (a node joined, moved, changed its listing, or left) are appended to a write-ahead
+ * log; heartbeats that change nothing are not written. Every so often the whole table is
+ * written as a compacted snapshot and the log starts over, so recovery reads one snapshot
+ * plus at most one snapshot interval of changes, however long the server has been up.
+ * Snapshots are written and read through memory-mapped files: recovery walks the mapped
+ * pages directly instead of copying them through stream buffers.
+ *
+ * Files in the state directory:
+ *   snapshot.dat  magic, version, first log generation not covered, epoch, count, records, CRC32
+ *   wal-N.log     records, each prefixed by its length and CRC32
+ *
+ * A torn record at the end of a log (the process died mid-write) fails its checksum and
+ * ends the replay of that log. A new log generation is started on every open, so nothing
+ * is ever appended after a torn record.
+ */
+public class MembershipStore implements Closeable {
+    private static final int MAGIC = 0x43535354; // "CSST"
+    private static final int VERSION = 1;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int MAX_RECORD = 16 * 1024 * 1024; // Sanity bound when reading lengths
+    private static final String SNAPSHOT = "snapshot.dat";
+
+    /**
+     * What is known about one node.
+     */
+    public static class Entry {
+        public final String nodeId;
+        public final InetSocketAddress address;
+        public final boolean compression; // Accepts compressed payloads
+        public final String listing;
+
+        public Entry(String nodeId, InetSocketAddress address, boolean compression, String listing) {
+            this.nodeId = nodeId;
+            this.address = address;
+            this.compression = compression;
+            this.listing = listing;
+        }
+
+        boolean sameAs(InetSocketAddress address, boolean compression, String listing) {
+            return this.address.equals(address) && this.compression == compression && this.listing.equals(listing);
+        }
+    }
+
+    private final Path directory;
+    private final boolean fsync;
+    private final Map<String, Entry> image = new LinkedHashMap<>(); // Current state, for snapshots
+    private final Object snapshotLock = new Object(); // One snapshot at a time
+    private long epoch; // Highest view epoch recorded
+    private long logGeneration;
+    private FileChannel log;
+    private long logRecords;
+    private final Metrics.Counter recordsWritten = Metrics.get().counter("state.log.records");
+    private final Metrics.Histogram snapshotTime = Metrics.get().histogram("state.snapshot", "ns");
+
+    /**
+     * Opens the directory, creating it if needed, and recovers whatever it holds.
+     *
+     * @param fsync force every log record to disk; otherwise records survive a process
+     *              crash but not a power failure, and only snapshots are forced
+     */
+    public MembershipStore(Path directory, boolean fsync) throws IOException {
+        this.directory = directory;
+        this.fsync = fsync;
+        Files.createDirectories(directory);
+
+        long firstLog = readSnapshot();
+        List<Long> generations = logGenerations();
+        long replayed = 0;
+        for (long generation : generations) {
+            if (generation >= firstLog) {
+                replayed += replayLog(generation);
+            }
+        }
+        long last = generations.isEmpty() ? 0 : generations.get(generations.size() - 1);
+        logGeneration = Math.max(firstLog, last + 1);
+        log = openLog(logGeneration);
+        if (!image.isEmpty()) {
+            System.out.println("[Server] Recovered " + image.size() + " node(s) from " + directory
+                    + " (" + replayed + " logged change(s) after the snapshot).");
+        }
+    }
+
+    /**
+     * The nodes recovered on open, or the current state after that.
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(image.values());
+    }
+
+    /**
+     * The highest view epoch written before the restart.
+     */
+    public synchronized long getEpoch() { return epoch; }
+
+    /**
+     * Records a node's address and listing. Returns false without writing if nothing changed.
+     */
+    public synchronized boolean put(String nodeId, InetSocketAddress address, boolean compression, String listing,
+                                    long viewEpoch) throws IOException {
+        Entry previous = image.get(nodeId);
+        if (previous != null && previous.sameAs(address, compression, listing)) {
+            return false;
+        }
+        Entry entry = new Entry(nodeId, address, compression, listing);
+        append(encode(PUT, viewEpoch, entry));
+        image.put(nodeId, entry);
+        epoch = Math.max(epoch, viewEpoch);
+        return true;
+    }
+
+    /**
+     * Records that a node left.
+     */
+    public synchronized void remove(String nodeId, long viewEpoch) throws IOException {
+        if (image.remove(nodeId) == null) {
+            return;
+        }
+        append(encode(REMOVE, viewEpoch, new Entry(nodeId, null, false, "")));
+        epoch = Math.max(epoch, viewEpoch);
+    }
+
+    /**
+     * Changes logged since the last snapshot.
+     */
+    public synchronized long getLogRecords() { return logRecords; }
+
+    /**
+     * Writes the current state as a snapshot and drops the logs it covers. Appends carry on
+     * meanwhile into a new log generation, which the snapshot does not cover.
+     */
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long start = System.nanoTime();
+            List<Entry> entries;
+            long snapshotEpoch;
+            long firstLog;
+            synchronized (this) {
+                log.close();
+                firstLog = ++logGeneration;
+                log = openLog(firstLog);
+                logRecords = 0;
+                entries = new ArrayList<>(image.values());
+                snapshotEpoch = epoch;
+            }
+            writeSnapshot(entries, snapshotEpoch, firstLog);
+            for (long generation : logGenerations()) {
+                if (generation < firstLog) {
+                    Files.deleteIfExists(logFile(generation));
+                }
+            }
+            snapshotTime.recordSince(start);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    private void append(byte[] record) throws IOException {
+        ByteBuffer framed = ByteBuffer.allocate(8 + record.length);
+        framed.putInt(record.length).putInt(checksum(record, 0, record.length)).put(record).flip();
+        while (framed.hasRemaining()) {
+            log.write(framed);
+        }
+        if (fsync) {
+            log.force(false);
+        }
+        logRecords++;
+        recordsWritten.increment();
+    }
+
+    /**
+     * Writes to a temporary file through a mapping, forces it, then moves it into place so a
+     * crash leaves either the old snapshot or the new one.
+     */
+    private void writeSnapshot(List<Entry> entries, long snapshotEpoch, long firstLog) throws IOException {
+        List<byte[]> records = new ArrayList<>(entries.size());
+        long size = 4 + 4 + 8 + 8 + 4 + 4; // Header and trailing checksum
+        for (Entry entry : entries) {
+            byte[] record = encode(PUT, snapshotEpoch, entry);
+            records.add(record);
+            size += 4 + record.length;
+        }
+
+        Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.putInt(MAGIC).putInt(VERSION).putLong(firstLog).putLong(snapshotEpoch).putInt(records.size());
+            for (byte[] record : records) {
+                map.putInt(record.length).put(record);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(map.duplicate().flip());
+            map.putInt((int) crc.getValue());
+            map.force();
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the snapshot, if there is a valid one, and returns the first log generation it
+     * does not cover.
+     */
+    private long readSnapshot() throws IOException {
+        Path file = directory.resolve(SNAPSHOT);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 32 || size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot has an impossible size: " + size);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            crc.update(map.duplicate().limit((int) size - 4));
+            if (map.getInt((int) size - 4) != (int) crc.getValue() || map.getInt() != MAGIC || map.getInt() != VERSION) {
+                throw new IOException("Snapshot " + file + " is damaged");
+            }
+            long firstLog = map.getLong();
+            epoch = map.getLong();
+            int count = map.getInt();
+            for (int i = 0; i < count; i++) {
+                int length = map.getInt();
+                ByteBuffer record = map.slice(map.position(), length);
+                map.position(map.position() + length);
+                apply(record);
+            }
+            return firstLog;
+        } catch (IOException | RuntimeException e) {
+            // Recover what the logs still hold rather than refusing to start
+            System.err.println("[Server] Ignoring state snapshot: " + e.getMessage());
+            image.clear();
+            epoch = 0;
+            return 0;
+        }
+    }
+
+    /**
+     * Applies one log generation. Returns the number of records applied.
+     */
+    private long replayLog(long generation) throws IOException {
+        long applied = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(logFile(generation))))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int expected = in.readInt();
+                if (length < 0 || length > MAX_RECORD) {
+                    throw new EOFException("Bad record length " + length);
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                if (checksum(record, 0, length) != expected) {
+                    throw new EOFException("Checksum mismatch");
+                }
+                apply(ByteBuffer.wrap(record));
+                applied++;
+            }
+        } catch (EOFException e) {
+            System.err.println("[Server] " + logFile(generation).getFileName()
+                    + " ends in a torn record; replayed " + applied + " record(s) before it.");
+        }
+        return applied;
+    }
+
+    private void apply(ByteBuffer record) throws IOException {
+        byte op = record.get();
+        long recordEpoch = record.getLong();
+        String nodeId = readString(record);
+        epoch = Math.max(epoch, recordEpoch);
+        if (op == REMOVE) {
+            image.remove(nodeId);
+            return;
+        }
+        String ip = readString(record);
+        int port = record.getInt();
+        boolean compression = record.get() != 0;
+        String listing = readString(record);
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(ip), port); // Literal, no lookup
+        image.put(nodeId, new Entry(nodeId, address, compression, listing));
+    }
+
+    /**
+     * Record body: op, view epoch, node id, and for PUT the ip, port, compression flag and
+     * listing. Strings are UTF-8 prefixed by their length.
+     */
+    private static byte[] encode(byte op, long viewEpoch, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entry.listing.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op);
+        out.writeLong(viewEpoch);
+        writeString(out, entry.nodeId);
+        if (op == PUT) {
+            writeString(out, entry.address.getAddress().getHostAddress());
+            out.writeInt(entry.address.getPort());
+            out.writeByte(entry.compression ? 1 : 0);
+            writeString(out, entry.listing);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private FileChannel openLog(long generation) throws IOException {
+        return FileChannel.open(logFile(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private Path logFile(long generation) {
+        return directory.resolve("wal-" + generation + ".log");
+    }
+
+    private List<Long> logGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path file : logs) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(4, name.length() - 4)));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+}
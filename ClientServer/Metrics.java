@@ -0,0 +1,265 @@
+package ClientServer;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+/**
+ * Counters, gauges and latency histograms for one process.
+ *
+ * Recording is a LongAdder increment or a few atomic adds, cheap enough for the receive
+ * and codec paths. Histograms use power-of-two buckets, so percentiles are accurate to a
+ * factor of two, which is enough to see where time goes. Everything is readable through a
+ * JMX MBean (one attribute per metric) and, when a port is configured, as plain text over
+ * HTTP at /metrics.
+ */
+public class Metrics implements DynamicMBean {
+    private static final Metrics DEFAULT = new Metrics();
+
+    /**
+     * The process-wide registry, also used by the Protocol codec.
+     */
+    public static Metrics get() { return DEFAULT; }
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() { value.increment(); }
+        public void add(long amount) { value.add(amount); }
+        public long get() { return value.sum(); }
+    }
+
+    /**
+     * Distribution of recorded values in power-of-two buckets.
+     */
+    public static class Histogram {
+        private final String unit;
+        private final AtomicLongArray buckets = new AtomicLongArray(64); // Bucket i holds [2^(i-1), 2^i)
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String unit) {
+            this.unit = unit;
+        }
+
+        public void record(long value) {
+            long v = Math.max(0, value);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+            count.increment();
+            sum.add(v);
+            long seen;
+            while (v > (seen = max.get()) && !max.compareAndSet(seen, v)) {
+                // Retry until the max is at least v
+            }
+        }
+
+        /**
+         * Records the nanoseconds since a System.nanoTime() start.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() { return count.sum(); }
+
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        public long getMax() { return max.get(); }
+
+        /**
+         * Upper bound of the bucket holding the given quantile (0..1).
+         */
+        public long percentile(double quantile) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * n);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+
+        String describe() {
+            return String.format("count=%d mean=%.1f p50=%d p99=%d max=%d unit=%s",
+                    getCount(), getMean(), percentile(0.5), percentile(0.99), getMax(), unit);
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private HttpServer httpServer;
+
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public Histogram histogram(String name, String unit) {
+        return histograms.computeIfAbsent(name, n -> new Histogram(unit));
+    }
+
+    /**
+     * Registers a value that is read when the metrics are, such as a map size.
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * All metrics as "name value" lines, sorted by name.
+     */
+    public String render() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+            text.append(counter.getKey()).append(' ').append(counter.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            text.append(gauge.getKey()).append(' ').append(readGauge(gauge.getValue())).append('\n');
+        }
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            text.append(histogram.getKey()).append(' ').append(histogram.getValue().describe()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Registers the MBean as csc340:type=Metrics,name=component. Failures are reported and
+     * otherwise ignored; metrics still work without JMX.
+     */
+    public void registerMBean(String component) {
+        try {
+            ObjectName name = new ObjectName("csc340:type=Metrics,name=" + ObjectName.quote(component));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves render() at http://127.0.0.1:port/metrics. Only binds to loopback.
+     */
+    public synchronized void startHttp(int port) throws IOException {
+        if (httpServer != null) {
+            return;
+        }
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        httpServer.start();
+        System.out.println("Metrics at http://127.0.0.1:" + httpServer.getAddress().getPort() + "/metrics");
+    }
+
+    public synchronized void stopHttp() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+    }
+
+    private static long readGauge(LongSupplier gauge) {
+        try {
+            return gauge.getAsLong();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // DynamicMBean: counters and gauges are longs, histograms are their summary text
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Counter counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        LongSupplier gauge = gauges.get(attribute);
+        if (gauge != null) {
+            return readGauge(gauge);
+        }
+        Histogram histogram = histograms.get(attribute);
+        if (histogram != null) {
+            return histogram.describe();
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException ignored) {
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if ("render".equals(actionName)) {
+            return render();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : counters.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "counter", true, false, false));
+        }
+        for (String name : gauges.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "gauge", true, false, false));
+        }
+        for (String name : histograms.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "java.lang.String", "histogram summary", true, false, false));
+        }
+        MBeanOperationInfo render = new MBeanOperationInfo("render", "All metrics as text",
+                new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO);
+        return new MBeanInfo(getClass().getName(), "Process metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] {render}, null);
+    }
+}
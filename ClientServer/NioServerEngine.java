@@ -0,0 +1,151 @@
+package ClientServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Non-blocking receive path for the Server.
+ *
+ * Runs one selector loop per DatagramChannel. With more than one loop every channel is bound
+ * to the same address with SO_REUSEPORT, so the kernel spreads clients across the loops (and
+ * cores) by hashing their address. Each loop drains its socket into one reusable direct
+ * buffer and never allocates per packet.
+ */
+public class NioServerEngine implements Closeable {
+    private static final int DEFAULT_RECEIVE_BUFFER = 4 * 1024 * 1024; // Kernel buffer to absorb heartbeat storms
+
+    /**
+     * Called from a receive loop for every datagram. The array is reused once this returns.
+     */
+    public interface DatagramHandler {
+        void onDatagram(InetSocketAddress source, byte[] data, int offset, int length) throws Exception;
+    }
+
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final List<Selector> selectors = new ArrayList<>();
+    private final DatagramHandler handler;
+    private volatile boolean running = true;
+
+    public NioServerEngine(InetSocketAddress bindAddress, int loops, DatagramHandler handler) throws IOException {
+        this(bindAddress, loops, DEFAULT_RECEIVE_BUFFER, handler);
+    }
+
+    public NioServerEngine(InetSocketAddress bindAddress, int loops, int receiveBufferSize,
+                           DatagramHandler handler) throws IOException {
+        this.handler = handler;
+
+        if (loops > 1 && !supportsReusePort()) {
+            System.err.println("[Server] SO_REUSEPORT is not supported here, using a single receive loop.");
+            loops = 1;
+        }
+
+        try {
+            for (int i = 0; i < Math.max(1, loops); i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                if (loops > 1) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+                channel.bind(bindAddress);
+                channel.configureBlocking(false);
+                channels.add(channel);
+
+                Selector selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_READ);
+                selectors.add(selector);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static boolean supportsReusePort() {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts one receive loop per channel on the given executor.
+     */
+    public void start(ExecutorService executor) {
+        for (int i = 0; i < channels.size(); i++) {
+            DatagramChannel channel = channels.get(i);
+            Selector selector = selectors.get(i);
+            executor.execute(() -> receiveLoop(channel, selector));
+        }
+    }
+
+    public int getLoopCount() { return channels.size(); }
+
+    /**
+     * The port actually bound, which differs from the requested one when that was 0.
+     */
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channels.get(0).getLocalAddress()).getPort();
+    }
+
+    private void receiveLoop(DatagramChannel channel, Selector selector) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Fragmenter.MAX_DATAGRAM_SIZE);
+        byte[] scratch = new byte[Fragmenter.MAX_DATAGRAM_SIZE];
+
+        while (running) {
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+
+                // Drain everything queued on the socket before selecting again
+                SocketAddress source;
+                while ((source = channel.receive(buffer)) != null) {
+                    buffer.flip();
+                    int length = buffer.remaining();
+                    buffer.get(scratch, 0, length);
+                    buffer.clear();
+
+                    try {
+                        handler.onDatagram((InetSocketAddress) source, scratch, 0, length);
+                    } catch (Exception e) {
+                        System.err.println("[Server] Dropped datagram from " + source + ": " + e);
+                    }
+                }
+            } catch (ClosedChannelException | ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends through the first channel, so replies come from the server's usual address and port.
+     */
+    public void send(byte[] data, InetSocketAddress target) throws IOException {
+        channels.get(0).send(ByteBuffer.wrap(data), target);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Selector selector : selectors) {
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package ClientServer;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi-accrual failure detector.
+ *
+ * Instead of a fixed timeout, each node's recent heartbeat inter-arrival times are kept in
+ * a sliding window, and the time since its last heartbeat is turned into a suspicion level
+ * phi = -log10(P(a heartbeat arrives even later)), using a normal distribution fitted to
+ * the window. phi 1 means a 10% chance the node is merely slow, phi 3 means 0.1%, and so
+ * on. Nodes with irregular heartbeats get proportionally more slack, regular ones are
+ * suspected sooner, and the caller picks the threshold.
+ */
+public class PhiAccrualDetector<K> {
+    private final int windowSize;
+    private final double minStdDeviation;
+    private final long firstIntervalMillis;
+    private final ConcurrentHashMap<K, History> histories = new ConcurrentHashMap<>();
+
+    /**
+     * @param windowSize          inter-arrival times remembered per node
+     * @param minStdDeviation     floor for the deviation, so very regular nodes are not
+     *                            suspected on the first bit of jitter (ms)
+     * @param firstIntervalMillis interval assumed before a node has sent two heartbeats
+     */
+    public PhiAccrualDetector(int windowSize, long minStdDeviation, long firstIntervalMillis) {
+        this.windowSize = Math.max(2, windowSize);
+        this.minStdDeviation = Math.max(1, minStdDeviation);
+        this.firstIntervalMillis = firstIntervalMillis;
+    }
+
+    /**
+     * Records a heartbeat from the node, now. Returns the interval since the previous one in
+     * ms, or -1 for the first.
+     */
+    public long heartbeat(K key) {
+        long now = System.nanoTime();
+        History history = histories.get(key); // Plain get first: computeIfAbsent would allocate its lambda
+        if (history == null) {
+            history = histories.computeIfAbsent(key, k -> new History(windowSize, firstIntervalMillis));
+        }
+        return history.arrived(now);
+    }
+
+    /**
+     * Returns the current suspicion level, or 0 for a node that has never been heard from.
+     */
+    public double phi(K key) {
+        History history = histories.get(key);
+        return history != null ? history.phi(System.nanoTime()) : 0;
+    }
+
+    /**
+     * Milliseconds from now until the node's phi reaches the threshold if no heartbeat
+     * arrives, 0 if it already has.
+     */
+    public long millisUntilSuspect(K key, double threshold) {
+        History history = histories.get(key);
+        return history != null ? history.millisUntil(threshold, System.nanoTime()) : 0;
+    }
+
+    public boolean isTracked(K key) {
+        return histories.containsKey(key);
+    }
+
+    public void remove(K key) {
+        histories.remove(key);
+    }
+
+    /**
+     * Sliding window of one node's inter-arrival times, in ms, with running sums.
+     */
+    private class History {
+        private final long[] intervals;
+        private int next;
+        private int count;
+        private double sum;
+        private double sumOfSquares;
+        private long lastArrival;
+
+        History(int size, long firstInterval) {
+            intervals = new long[size];
+            // Two samples around the expected interval until real ones arrive, as in Akka
+            add(firstInterval - firstInterval / 4);
+            add(firstInterval + firstInterval / 4);
+        }
+
+        synchronized long arrived(long nanoTime) {
+            long interval = -1;
+            if (lastArrival != 0) {
+                interval = (nanoTime - lastArrival) / 1_000_000L;
+                add(interval);
+            }
+            lastArrival = nanoTime;
+            return interval;
+        }
+
+        synchronized double phi(long nanoTime) {
+            double elapsed = (nanoTime - lastArrival) / 1e6;
+            return PhiAccrualDetector.phi(elapsed, mean(), deviation());
+        }
+
+        /**
+         * phi only grows with elapsed time, so the crossing point is found by bisection.
+         */
+        synchronized long millisUntil(double threshold, long nanoTime) {
+            double mean = mean();
+            double deviation = deviation();
+            double low = 0;
+            double high = mean + 64 * deviation;
+            for (int i = 0; i < 48 && high - low > 1; i++) {
+                double middle = (low + high) / 2;
+                if (PhiAccrualDetector.phi(middle, mean, deviation) < threshold) {
+                    low = middle;
+                } else {
+                    high = middle;
+                }
+            }
+            long elapsed = (nanoTime - lastArrival) / 1_000_000L;
+            return Math.max(0, (long) Math.ceil(high) - elapsed);
+        }
+
+        private void add(long interval) {
+            if (count == intervals.length) {
+                long dropped = intervals[next];
+                sum -= dropped;
+                sumOfSquares -= (double) dropped * dropped;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % intervals.length;
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+        }
+
+        private double mean() {
+            return sum / count;
+        }
+
+        private double deviation() {
+            double mean = mean();
+            double variance = Math.max(0, sumOfSquares / count - mean * mean);
+            return Math.max(minStdDeviation, Math.sqrt(variance));
+        }
+    }
+
+    /**
+     * phi for the given elapsed time, using the logistic approximation of the normal CDF.
+     */
+    static double phi(double elapsed, double mean, double deviation) {
+        double y = (elapsed - mean) / deviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+}
@@ -0,0 +1,147 @@
+package ClientServer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Read-only view of one encoded Protocol message, straight over the receive buffer.
+ *
+ * wrap() checks the header and reads its fixed fields from the bytes; the node id and the
+ * payload are only decoded when asked for, and then once. A receive loop keeps one view and
+ * rewraps it for every datagram, so looking at a heartbeat and finding that nothing changed
+ * allocates nothing. The view is only valid until the buffer is reused: whatever is kept has
+ * to be copied out, with copyRawPayload() or toProtocol().
+ *
+ * Java-serialized messages from older nodes are decoded the old way and re-encoded into a
+ * private buffer, so callers see one format.
+ */
+public final class ProtocolView {
+    private static final byte LEGACY_STREAM_MAGIC = (byte) 0xAC;
+    private static final Metrics.Histogram DECODE_TIME = Metrics.get().histogram("protocol.decode", "ns");
+
+    private byte[] data;
+    private int payloadOffset;
+    private int payloadLength;
+    private int idOffset;
+    private int idLength;
+    private int version;
+    private boolean mode;
+    private long timestamp;
+    private int reserve;
+    private String nodeId; // Decoded on first use
+    private String payload; // Decoded on first use
+
+    /**
+     * Points the view at a message, replacing whatever it showed before.
+     */
+    public ProtocolView wrap(byte[] data, int offset, int length) throws IOException {
+        if (length < 1) {
+            throw new IOException("Empty datagram");
+        }
+        if (data[offset] == LEGACY_STREAM_MAGIC) {
+            // Protocol.deserialize() only lets a Protocol through its deserialization filter
+            byte[] encoded;
+            try {
+                encoded = Protocol.deserialize(data, offset, length).serialize();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Undecodable legacy message", e);
+            }
+            return wrap(encoded, 0, encoded.length);
+        }
+        if (data[offset] != Protocol.WIRE_FORMAT) {
+            throw new IOException("Unsupported wire format: " + data[offset]);
+        }
+        if (length < Protocol.HEADER_SIZE) {
+            throw new IOException("Truncated datagram header");
+        }
+
+        // Same layout as Protocol.serialize(): format, version, payload length, mode, timestamp, reserve, id length
+        int position = offset + 1;
+        version = readInt(data, position);
+        payloadLength = readInt(data, position + 4);
+        mode = data[position + 8] != 0;
+        timestamp = (long) readInt(data, position + 9) << 32 | (readInt(data, position + 13) & 0xFFFFFFFFL);
+        reserve = readInt(data, position + 17);
+        idLength = (short) ((data[position + 21] & 0xFF) << 8 | (data[position + 22] & 0xFF));
+        int available = length - Protocol.HEADER_SIZE;
+        if (idLength < 0 || payloadLength < 0 || idLength + payloadLength > available) {
+            throw new IOException("Truncated datagram: header declares " + (idLength + payloadLength)
+                    + " bytes, " + available + " available");
+        }
+
+        this.data = data;
+        idOffset = offset + Protocol.HEADER_SIZE;
+        payloadOffset = idOffset + idLength;
+        nodeId = null;
+        payload = null;
+        return this;
+    }
+
+    public int getVersion() { return version; }
+    public boolean getMode() { return mode; }
+    public long getTimestamp() { return timestamp; }
+    public int getType() { return reserve & 0xFF; }
+    public boolean hasFlag(int flag) { return (reserve & flag) != 0; }
+    public int getSequence() { return reserve >>> Protocol.SEQUENCE_SHIFT; }
+
+    public String getNodeId() {
+        if (nodeId == null) {
+            nodeId = new String(data, idOffset, idLength, StandardCharsets.UTF_8);
+        }
+        return nodeId;
+    }
+
+    /**
+     * The payload text, decompressed if needed. Decoded on the first call.
+     */
+    public String getPayload() throws IOException {
+        if (payload == null) {
+            long start = System.nanoTime();
+            if (hasFlag(Protocol.FLAG_COMPRESSED)) {
+                payload = new String(PayloadCompression.decompress(data, payloadOffset, payloadLength),
+                        StandardCharsets.UTF_8);
+            } else {
+                payload = new String(data, payloadOffset, payloadLength, StandardCharsets.UTF_8);
+            }
+            DECODE_TIME.recordSince(start);
+        }
+        return payload;
+    }
+
+    /**
+     * Whether the payload is byte for byte the one copyRawPayload() returned for an earlier
+     * message, compared on the wire bytes without decoding.
+     */
+    public boolean payloadMatches(byte[] raw) {
+        return raw != null && raw.length == payloadLength + 1 && raw[0] == compressedMarker()
+                && Arrays.equals(raw, 1, raw.length, data, payloadOffset, payloadOffset + payloadLength);
+    }
+
+    /**
+     * A copy of the payload as it was on the wire, for payloadMatches(). The first byte
+     * records whether it was compressed.
+     */
+    public byte[] copyRawPayload() {
+        byte[] raw = new byte[payloadLength + 1];
+        raw[0] = compressedMarker();
+        System.arraycopy(data, payloadOffset, raw, 1, payloadLength);
+        return raw;
+    }
+
+    /**
+     * A Protocol holding a copy of this message, as Protocol.deserialize() would return.
+     */
+    public Protocol toProtocol() throws IOException {
+        return new Protocol(version, mode, getNodeId(), timestamp, reserve & ~Protocol.FLAG_COMPRESSED, getPayload());
+    }
+
+    private byte compressedMarker() {
+        return (byte) (hasFlag(Protocol.FLAG_COMPRESSED) ? 1 : 0);
+    }
+
+    private static int readInt(byte[] data, int position) {
+        return (data[position] & 0xFF) << 24 | (data[position + 1] & 0xFF) << 16
+                | (data[position + 2] & 0xFF) << 8 | (data[position + 3] & 0xFF);
+    }
+}
@@ -2,196 +2,798 @@ package ClientServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
 import ClientServer.*;
 
-public class Server extends Node {
-    private DatagramSocket socket;
-    private ExecutorService executorService;
-    private static final int TIMEOUT = 30000; // 30s before considering a client inactive
-    private static final int BUFFER_SIZE = 1024;
+public class Server extends Node implements Closeable {
+    private DatagramSocket socket; // Classic engine
+    private NioServerEngine nioEngine; // Set when server_engine=nio
+    private NodeRuntime runtime; // Scheduled tasks, receive loops and shutdown
+    private Fragmenter fragmenter;
+    private Reassembler reassembler;
+    private final ThreadLocal<ProtocolView> views = ThreadLocal.withInitial(ProtocolView::new); // One per receive loop
+    private BroadcastFanout fanout;
+    private boolean compressionEnabled;
+    private boolean logHeartbeats;
+    private boolean keyByAddress; // node_key=address: one node per ip:port rather than per IP
+    private long broadcastInterval;
+    private boolean servingMetrics; // This server started the metrics HTTP endpoint
+    private static final int EXPECTED_INTERVAL = 15000; // Mean of the clients' random 0-30s heartbeat delay
+    private static final int HEARTBEAT_WINDOW = 100; // Inter-arrival times remembered per client
+    private static final int MIN_DEVIATION = 500; // ms
+    private static final int WHEEL_TICK = 250; // Liveness resolution in ms
+    private static final int WHEEL_SLOTS = 256; // Spans 64s; longer deadlines take extra turns
+    private static final int RESTORE_GRACE = 45000; // ms a restored client has to heartbeat; clients wait at most 30s
+    private static final int ADMISSION_SWEEP = 10000; // ms between drops of idle source buckets
+    private static final int BUFFER_SIZE = Fragmenter.MAX_DATAGRAM_SIZE;
     private static final String CONFIG_FILE = "ClientServer/server_config.properties"; // Default config file path
 
     private ConcurrentHashMap<String, Protocol> clientData; // Active client data (heartbeat + files)
     private ConcurrentHashMap<String, InetSocketAddress> clientAddresses; // Client IPs & Ports
+    private ConcurrentHashMap<InetSocketAddress, String> nodeIds; // Reverse of clientAddresses, so ids are not rebuilt per packet
+    private ConcurrentHashMap<String, byte[]> rawListings; // Last full listing as sent, to spot unchanged heartbeats
+    private ConcurrentHashMap<String, FileListing> clientListings; // Listings of clients sending delta heartbeats
+    private Set<String> compressionPeers; // Clients that advertised they can read compressed payloads
+    private TimingWheel<String> livenessWheel; // Deadlines by server-side receive time
+    private PhiAccrualDetector<String> failureDetector; // Learns each client's heartbeat rhythm
+    private double phiThreshold; // Suspicion level at which a client is considered inactive
+    private Queue<String> recentlyInactive; // Expired since the last broadcast
+    private ClusterView clusterView; // Epoch-versioned membership and listings
+    private ConcurrentHashMap<String, Long> viewEpochs; // View epoch each client last reported
+    private FileIndex fileIndex; // File name -> nodes advertising it
+    private FileSearch fileSearch; // Prefix, substring and glob search over the indexed names
+    private int searchMaxResults; // Cap on the names in one search response
+    private Set<String> inactiveClients; // Expired and not heard from since, for the inactive gauge
+    private Set<String> unconfirmedClients; // Restored from disk and not heard from since the restart
+    private MembershipStore store; // Set when state_directory is configured
+    private long snapshotInterval;
+    private ShardCluster cluster; // Set when cluster_shards is configured
+    private long clusterSyncInterval;
+    private AdmissionControl admission; // Rate limits and duplicate checks ahead of decoding
+
+    private final Metrics metrics = Metrics.get();
+    private final Metrics.Counter packetsReceived = metrics.counter("packets.received");
+    private final Metrics.Counter bytesReceived = metrics.counter("bytes.received");
+    private final Metrics.Counter packetsSent = metrics.counter("packets.sent");
+    private final Metrics.Counter bytesSent = metrics.counter("bytes.sent");
+    private final Metrics.Counter nodesExpired = metrics.counter("nodes.expired");
+    private final Metrics.Histogram heartbeatInterval = metrics.histogram("heartbeat.interarrival", "ms");
+    private final Metrics.Histogram broadcastBuild = metrics.histogram("broadcast.build", "ns");
+    private final Metrics.Histogram broadcastFanout = metrics.histogram("broadcast.fanout", "ns");
+    private final Metrics.Counter broadcastRecipients = metrics.counter("broadcast.recipients");
+    private final Metrics.Counter redirects = metrics.counter("cluster.redirects");
+    private final Metrics.Counter unknownTypes = metrics.counter("packets.dropped.type"); // Types a server never receives
+    private final Metrics.Histogram searchTime = metrics.histogram("search.time", "ns");
 
     public Server() {
+        this(loadConfig());
+        start();
+    }
+
+    /**
+     * Binds the socket and sets up the client tables without starting any threads, so
+     * several servers can be embedded in one JVM and benchmarks can drive one directly.
+     * Call start() to begin serving and close() to stop.
+     */
+    public Server(Properties config) {
         try {
             System.out.println("Server is starting...");
-
-            // Read configuration file
-            Properties config = new Properties();
-            File configFile = new File(CONFIG_FILE);
-
-            if (!configFile.exists()) {
-                System.err.println("ERROR: Configuration file not found: " + CONFIG_FILE);
-                System.exit(1);
-            }
-
-            try (FileInputStream input = new FileInputStream(CONFIG_FILE)) {
-                config.load(input);
-            }
+            runtime = new NodeRuntime("Server", Long.parseLong(config.getProperty("shutdown_drain",
+                    Long.toString(NodeRuntime.DEFAULT_DRAIN))));
 
             // Set Node attributes
             setIpAddress(config.getProperty("server_ip", "127.0.0.1"));
             setPort(Integer.parseInt(config.getProperty("server_port", "5000")));
+            compressionEnabled = Boolean.parseBoolean(config.getProperty("compression", "false"));
+            phiThreshold = Double.parseDouble(config.getProperty("phi_threshold", "5"));
+            keyByAddress = "address".equalsIgnoreCase(config.getProperty("node_key", "ip"));
+            broadcastInterval = Long.parseLong(config.getProperty("broadcast_interval", "30000"));
 
             // Bind socket to server IP and port
             InetAddress serverAddress = InetAddress.getByName(getIpAddress());
-            socket = new DatagramSocket(getPort(), serverAddress);
+            boolean nio = "nio".equalsIgnoreCase(config.getProperty("server_engine", "classic"));
+            if (nio) {
+                int loops = Integer.parseInt(config.getProperty("receive_loops", "1"));
+                nioEngine = runtime.closeOnShutdown(
+                        new NioServerEngine(new InetSocketAddress(serverAddress, getPort()), loops, this::handleDatagram));
+                setPort(nioEngine.getLocalPort());
+            } else {
+                socket = runtime.closeOnShutdown(new DatagramSocket(getPort(), serverAddress));
+                setPort(socket.getLocalPort());
+            }
+            admission = new AdmissionControl(
+                    Double.parseDouble(config.getProperty("admission_source_rate", "50")),
+                    Integer.parseInt(config.getProperty("admission_source_burst", "200")),
+                    Double.parseDouble(config.getProperty("admission_global_rate", "50000")),
+                    Integer.parseInt(config.getProperty("admission_global_burst", "50000")),
+                    Integer.parseInt(config.getProperty("admission_max_sources", "100000")));
+            logHeartbeats = Boolean.parseBoolean(config.getProperty("log_heartbeats", String.valueOf(!nio)));
+            fragmenter = Fragmenter.forLocalAddress(serverAddress);
+            reassembler = new Reassembler(new BufferPool());
+
+            // Parallel broadcast lanes, on virtual threads when the JVM has them
+            int lanes = Integer.parseInt(config.getProperty("broadcast_lanes", "4"));
+            boolean virtualThreads = Boolean.parseBoolean(config.getProperty("broadcast_virtual_threads", "true"));
+            fanout = runtime.closeOnShutdown(new BroadcastFanout(serverAddress, lanes, virtualThreads));
 
             clientData = new ConcurrentHashMap<>();
             clientAddresses = new ConcurrentHashMap<>();
-            executorService = Executors.newCachedThreadPool();
-
-            System.out.println("Server is listening on " + getIpAddress() + ":" + getPort());
+            nodeIds = new ConcurrentHashMap<>();
+            rawListings = new ConcurrentHashMap<>();
+            clientListings = new ConcurrentHashMap<>();
+            compressionPeers = ConcurrentHashMap.newKeySet();
+            livenessWheel = new TimingWheel<>(WHEEL_TICK, WHEEL_SLOTS, this::expireClient);
+            failureDetector = new PhiAccrualDetector<>(HEARTBEAT_WINDOW, MIN_DEVIATION, EXPECTED_INTERVAL);
+            recentlyInactive = new ConcurrentLinkedQueue<>();
+            clusterView = new ClusterView();
+            viewEpochs = new ConcurrentHashMap<>();
+            fileSearch = new FileSearch(Integer.parseInt(config.getProperty("search_scan_budget",
+                    Integer.toString(FileSearch.DEFAULT_SCAN_BUDGET))));
+            fileIndex = new FileIndex(fileSearch::update);
+            searchMaxResults = Integer.parseInt(config.getProperty("search_max_results", "100"));
+            inactiveClients = ConcurrentHashMap.newKeySet();
+            unconfirmedClients = ConcurrentHashMap.newKeySet();
+
+            // Cluster mode: this server owns the clients the ring assigns to it
+            String shardList = config.getProperty("cluster_shards");
+            if (shardList != null && !shardList.isBlank()) {
+                ShardRing ring = new ShardRing(ShardRing.parse(shardList), ShardRing.DEFAULT_VIRTUAL_NODES);
+                clusterSyncInterval = Long.parseLong(config.getProperty("cluster_sync_interval", "1000"));
+                cluster = new ShardCluster(new InetSocketAddress(serverAddress, getPort()), ring, fragmenter,
+                        this::send, this::remoteChanged, 10 * clusterSyncInterval);
+            }
 
-            // Start server threads
-            executorService.execute(this::listenForClients);
-            executorService.execute(this::monitorClients);
-            executorService.execute(this::broadcastUpdates);
+            // Optional persistence, so a restart does not start from an empty view
+            String stateDirectory = config.getProperty("state_directory");
+            if (stateDirectory != null && !stateDirectory.isBlank()) {
+                store = new MembershipStore(Paths.get(stateDirectory),
+                        Boolean.parseBoolean(config.getProperty("state_fsync", "false")));
+                snapshotInterval = Long.parseLong(config.getProperty("state_snapshot_interval", "60000"));
+                restoreState();
+            }
+            registerMetrics(config);
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private static Properties loadConfig() {
+        // Read configuration file
+        Properties config = new Properties();
+        File configFile = new File(CONFIG_FILE);
+
+        if (!configFile.exists()) {
+            System.err.println("ERROR: Configuration file not found: " + CONFIG_FILE);
+            System.exit(1);
+        }
+
+        try (FileInputStream input = new FileInputStream(CONFIG_FILE)) {
+            config.load(input);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return config;
+    }
+
+    /**
+     * Starts the receive loop(s) and schedules the liveness ticks and broadcasts.
+     */
+    public void start() {
+        System.out.println("Server is listening on " + getIpAddress() + ":" + getPort());
+
+        if (nioEngine != null) {
+            nioEngine.start(runtime.getExecutor());
+            System.out.println("[Server] NIO engine running " + nioEngine.getLoopCount() + " receive loop(s).");
+        } else {
+            runtime.execute("receive", this::listenForClients);
+        }
+        runtime.scheduleAtFixedRate("liveness", this::monitorClients, WHEEL_TICK, WHEEL_TICK, 0);
+        runtime.scheduleAtFixedRate("broadcast", this::broadcastUpdates, broadcastInterval, broadcastInterval, 0);
+        runtime.scheduleAtFixedRate("admission sweep", admission::sweep, ADMISSION_SWEEP, ADMISSION_SWEEP, 0);
+        if (cluster != null) {
+            runtime.scheduleAtFixedRate("cluster sync", cluster::sync, 0, clusterSyncInterval, 0);
+            System.out.println("[Server] One of " + cluster.getShardCount() + " cluster shards; syncing every "
+                    + clusterSyncInterval + " ms.");
+        }
+        if (store != null) {
+            runtime.scheduleAtFixedRate("snapshot", store::snapshot, snapshotInterval, snapshotInterval, 0);
+        }
+    }
+
     /**
-     * Thread 1: Listens for incoming heartbeats from clients.
+     * Stops the schedule, waits up to shutdown_drain ms for a broadcast in progress, then
+     * closes the sockets. With persistence on, the final state is written as a snapshot so
+     * the next start does not replay the log.
+     */
+    @Override
+    public void close() {
+        if (runtime == null || !runtime.isRunning()) {
+            return;
+        }
+        runtime.close();
+        if (store != null) {
+            try {
+                store.snapshot();
+                store.close();
+            } catch (IOException e) {
+                System.err.println("[Server] Could not save state: " + e.getMessage());
+            }
+        }
+        if (servingMetrics) {
+            metrics.stopHttp();
+        }
+        System.out.println("[Server] Stopped.");
+    }
+
+    /**
+     * Receive loop: listens for incoming heartbeats from clients until the socket is closed.
      */
     private void listenForClients() {
-        try {
-            while (true) {
-                byte[] buffer = new byte[BUFFER_SIZE];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (runtime.isRunning()) {
+            packet.setLength(buffer.length); // receive() shrinks it to the last datagram
+            try {
                 socket.receive(packet);
+            } catch (IOException e) {
+                if (runtime.isRunning()) {
+                    System.err.println("[Server] Receive failed: " + e.getMessage());
+                }
+                continue; // The loop ends once close() has closed the socket
+            }
+
+            // One bad datagram must not stop the loop
+            try {
+                handleDatagram((InetSocketAddress) packet.getSocketAddress(),
+                        packet.getData(), packet.getOffset(), packet.getLength());
+            } catch (Exception e) {
+                System.err.println("[Server] Dropped datagram from " + packet.getSocketAddress() + ": " + e);
+            }
+        }
+    }
 
-                // Extract client IP and port
-                InetAddress clientIP = packet.getAddress();
-                int clientPort = packet.getPort();
-                String nodeId = clientIP.getHostAddress(); // Use actual IP as nodeId
+    /**
+     * Processes one received datagram. Called by the classic listener thread or by any of the
+     * NIO receive loops, so everything here only touches the concurrent client tables.
+     *
+     * The message is read through a per-thread ProtocolView over the receive buffer. A
+     * heartbeat whose listing is byte for byte the last one is never decoded: it only moves
+     * the client's liveness deadline, so steady-state ingest allocates next to nothing.
+     * Before any of that, admission control sheds messages over the sender's rate and datagrams
+     * over the global rate, so a flood costs a bucket check per datagram and leaves room for
+     * real clients.
+     */
+    void handleDatagram(InetSocketAddress clientAddress, byte[] data, int offset, int length) throws IOException {
+        packetsReceived.increment();
+        bytesReceived.add(length);
+        boolean known = nodeIds.containsKey(clientAddress) || (cluster != null && cluster.isPeer(clientAddress));
+        if (!admission.admit(clientAddress, known, Fragmenter.startsMessage(data, offset, length), System.nanoTime())) {
+            return;
+        }
 
-                // Deserialize received data
-                Protocol receivedMessage = Protocol.deserialize(packet.getData());
+        // Large heartbeats arrive in fragments; wait until all of them are here
+        if (Fragmenter.isFragment(data, offset, length)) {
+            Reassembler.Message message = reassembler.addPooled(clientAddress, data, offset, length);
+            if (message == null) {
+                return;
+            }
+            try {
+                handleMessage(clientAddress, views.get().wrap(message.data, 0, message.length));
+            } finally {
+                reassembler.release(message);
+            }
+            return;
+        }
+        handleMessage(clientAddress, views.get().wrap(data, offset, length));
+    }
 
-                // Store client's latest data (file list + timestamp)
-                clientData.put(nodeId, receivedMessage);
-                clientAddresses.put(nodeId, new InetSocketAddress(clientIP, clientPort));
+    private void handleMessage(InetSocketAddress clientAddress, ProtocolView received) throws IOException {
+        String nodeId = nodeIdOf(clientAddress);
+        int type = received.getType();
 
-                System.out.println("[Server] Received heartbeat from node (" + nodeId + ")");
+        // In cluster mode, other shards sync views with us, and clients we do not own are sent
+        // to their owner. Lookups and searches are answered anywhere, since every shard has the global index.
+        if (cluster != null) {
+            if (cluster.isPeer(clientAddress)) {
+                cluster.handle(clientAddress, received.toProtocol());
+                return;
             }
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+            if (type != Protocol.TYPE_LOOKUP_REQUEST && type != Protocol.TYPE_SEARCH_REQUEST && !cluster.owns(nodeId)) {
+                sendRedirect(clientAddress, cluster.ownerOf(nodeId));
+                return;
+            }
+        }
+
+        // Repeated and reordered heartbeats are dropped on their header, before any decoding
+        boolean heartbeat = type == Protocol.TYPE_FULL || type == Protocol.TYPE_LISTING_SNAPSHOT
+                || type == Protocol.TYPE_LISTING_DELTA;
+        if (heartbeat && !admission.isFresh(nodeId, received.getSequence(), received.getTimestamp())) {
+            return;
+        }
+
+        // Only compress for clients that said they can read it; queries and acks do not change that
+        if (heartbeat) {
+            if (compressionEnabled && received.hasFlag(Protocol.FLAG_ACCEPTS_COMPRESSION)) {
+                compressionPeers.add(nodeId);
+            } else {
+                compressionPeers.remove(nodeId);
+            }
+        }
+
+        // Clients that keep a view replica report the epoch they hold
+        if (type == Protocol.TYPE_VIEW_ACK) {
+            viewEpochs.put(nodeId, FileListing.parseGeneration(received.getPayload()));
+            return;
+        }
+
+        // "Who has X" queries are answered from the inverted index
+        if (type == Protocol.TYPE_LOOKUP_REQUEST) {
+            answerLookup(clientAddress, received.getPayload());
+            return;
+        }
+        if (type == Protocol.TYPE_SEARCH_REQUEST) {
+            answerSearch(clientAddress, received.getPayload());
+            return;
+        }
+
+        Protocol changed = null; // The client's new entry, or null if this heartbeat changed nothing
+        if (type == Protocol.TYPE_LISTING_SNAPSHOT || type == Protocol.TYPE_LISTING_DELTA) {
+            // Delta heartbeats only carry changes; rebuild the full listing and acknowledge it
+            Protocol receivedMessage = received.toProtocol();
+            long heldGeneration = applyListing(nodeId, receivedMessage);
+            sendListingAck(clientAddress, heldGeneration);
+            if (heldGeneration == FileListing.RESYNC) {
+                return; // Keep the previous entry until the client sends a snapshot
+            }
+            receivedMessage.setType(Protocol.TYPE_FULL);
+            rawListings.remove(nodeId);
+            changed = receivedMessage;
+        } else if (type == Protocol.TYPE_FULL) {
+            if (!received.payloadMatches(rawListings.get(nodeId)) || !clientData.containsKey(nodeId)) {
+                // Full listings are only decoded, and diffed into the index, when they changed
+                changed = received.toProtocol();
+                Protocol previous = clientData.get(nodeId);
+                if (previous == null || !previous.getPayload().equals(changed.getPayload())) {
+                    fileIndex.replace(nodeId, FileListing.parseListing(changed.getPayload()));
+                }
+                rawListings.put(nodeId, received.copyRawPayload());
+            }
+        } else {
+            // Anything else (a manifest, a stray response, an unknown type) is not a listing
+            unknownTypes.increment();
+            return;
+        }
+
+        // Push the deadline out first so the wheel cannot expire the entry we are about to store.
+        // The deadline is where this client's phi would cross the threshold.
+        long interval = failureDetector.heartbeat(nodeId);
+        if (interval >= 0) {
+            heartbeatInterval.record(interval);
+        }
+        inactiveClients.remove(nodeId);
+        unconfirmedClients.remove(nodeId);
+        admission.accepted(nodeId, received.getSequence(), received.getTimestamp());
+        livenessWheel.schedule(nodeId, failureDetector.millisUntilSuspect(nodeId, phiThreshold));
+
+        // Store client's latest data (file list + timestamp), copying only what changed
+        InetSocketAddress previousAddress = clientAddresses.put(nodeId, clientAddress);
+        if (!clientAddress.equals(previousAddress)) {
+            if (previousAddress != null) {
+                nodeIds.remove(previousAddress);
+            }
+            nodeIds.put(clientAddress, nodeId);
+        }
+        if (changed != null) {
+            clientData.put(nodeId, changed);
+            clusterView.update(nodeId, changed.getPayload());
+            if (cluster != null) {
+                cluster.updateOwned(nodeId, changed.getPayload());
+            }
+        }
+        Protocol current = clientData.get(nodeId);
+        if (store != null && current != null) {
+            // Only writes when the address, listing or compression support changed
+            store.put(nodeId, clientAddress, compressionPeers.contains(nodeId), current.getPayload(),
+                    clusterView.getEpoch());
+        }
+
+        if (logHeartbeats) {
+            System.out.println("[Server] Received heartbeat from node (" + nodeId + ")");
         }
     }
 
     /**
-     * Thread 2: Monitors clients and marks inactive ones.
+     * The node id for a sender: cached for known clients, built from the address otherwise.
      */
-    private void monitorClients() {
-        while (true) {
-            try {
-                Thread.sleep(30000); // Check every 30 seconds
-                long currentTime = System.currentTimeMillis();
-
-                // Track inactive clients
-                List<String> inactiveNodes = new ArrayList<>();
-
-                Iterator<Map.Entry<String, Protocol>> iterator = clientData.entrySet().iterator();
-                while (iterator.hasNext()) {
-                    Map.Entry<String, Protocol> entry = iterator.next();
-                    String nodeId = entry.getKey();
-                    long lastUpdate = entry.getValue().getTimestamp();
-
-                    // Check if client is inactive
-                    if (currentTime - lastUpdate > TIMEOUT) {
-                        if (clientData.containsKey(nodeId)) {
-                            System.out.println("[Server] Node " + nodeId + " is now inactive.");
-                        }
-                        inactiveNodes.add(nodeId);
-                        iterator.remove(); // Removes from clientData
-                        clientAddresses.remove(nodeId);
-                    }
-                }
+    private String nodeIdOf(InetSocketAddress address) {
+        String nodeId = nodeIds.get(address);
+        if (nodeId == null) {
+            nodeId = address.getAddress().getHostAddress(); // Use actual IP as nodeId
+            if (keyByAddress) {
+                nodeId += ":" + address.getPort(); // Several clients per host, e.g. a load test
+            }
+        }
+        return nodeId;
+    }
 
-                // Print inactive nodes if any were found
-                if (!inactiveNodes.isEmpty()) {
-                    System.out.println("[Server] Inactive clients: " + String.join(", ", inactiveNodes));
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    /**
+     * Sends one datagram through whichever engine is active.
+     */
+    private void send(byte[] data, InetSocketAddress target) throws IOException {
+        if (nioEngine != null) {
+            nioEngine.send(data, target);
+        } else {
+            socket.send(new DatagramPacket(data, data.length, target));
+        }
+        packetsSent.increment();
+        bytesSent.add(data.length);
+    }
+
+    /**
+     * Publishes the metrics over JMX and, if metrics_port is set, over HTTP.
+     */
+    private void registerMetrics(Properties config) throws IOException {
+        metrics.gauge("nodes.active", clientData::size);
+        metrics.gauge("nodes.inactive", inactiveClients::size);
+        metrics.gauge("liveness.scheduled", livenessWheel::size);
+        metrics.gauge("reassembler.pending", reassembler::getPendingCount);
+        metrics.gauge("reassembler.dropped", reassembler::getDroppedMessages);
+        metrics.gauge("view.epoch", clusterView::getEpoch);
+        metrics.gauge("search.names", fileSearch::size);
+        metrics.gauge("admission.sources", admission::getSourceCount);
+        metrics.gauge("nodes.unconfirmed", unconfirmedClients::size);
+        if (cluster != null) {
+            metrics.gauge("nodes.remote", () -> cluster.getRemoteMembers().size());
+        }
+        if (store != null) {
+            metrics.gauge("state.log.pending", store::getLogRecords);
+        }
+        metrics.registerMBean("server");
+        String port = config.getProperty("metrics_port");
+        if (port != null) {
+            metrics.startHttp(Integer.parseInt(port));
+            servingMetrics = true;
+        }
+    }
+
+    /**
+     * Applies a snapshot or delta heartbeat to the client's listing and replaces the message
+     * payload with the full listing. Returns the generation now held, or RESYNC on a gap.
+     */
+    private long applyListing(String nodeId, Protocol message) {
+        if (message.getType() == Protocol.TYPE_LISTING_SNAPSHOT) {
+            FileListing listing = FileListing.fromSnapshot(message.getPayload());
+            if (listing == null) {
+                return FileListing.RESYNC;
             }
+            clientListings.put(nodeId, listing);
+            fileIndex.replace(nodeId, listing.getFiles());
+            message.setPayload(listing.toPayload());
+            return listing.getGeneration();
+        }
+
+        FileListing listing = clientListings.get(nodeId);
+        if (listing == null) {
+            return FileListing.RESYNC;
+        }
+        long heldGeneration = listing.applyDelta(message.getPayload(),
+                (fileName, added) -> fileIndex.record(nodeId, fileName, added));
+        if (heldGeneration != FileListing.RESYNC) {
+            message.setPayload(listing.toPayload());
+        }
+        return heldGeneration;
+    }
+
+    /**
+     * Tells a client which shard owns it. Payload: host:port.
+     */
+    private void sendRedirect(InetSocketAddress clientAddress, InetSocketAddress owner) throws IOException {
+        Protocol redirect = new Protocol(1, false, "server", System.currentTimeMillis(), 0,
+                owner.getAddress().getHostAddress() + ":" + owner.getPort());
+        redirect.setType(Protocol.TYPE_REDIRECT);
+        redirect.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        send(redirect.serialize(), clientAddress);
+        redirects.increment();
+    }
+
+    /**
+     * Called by the cluster when a node owned by another shard joins, changes or leaves, so
+     * the view and index sent to our clients cover the whole cluster.
+     */
+    private void remoteChanged(String nodeId, String listing) {
+        if (listing != null) {
+            clusterView.update(nodeId, listing);
+            fileIndex.replace(nodeId, FileListing.parseListing(listing));
+        } else {
+            clusterView.remove(nodeId);
+            fileIndex.remove(nodeId);
+            recentlyInactive.add(nodeId);
+        }
+    }
+
+    private void sendListingAck(InetSocketAddress clientAddress, long generation) throws IOException {
+        Protocol ack = new Protocol(1, false, "server", System.currentTimeMillis(), 0, Long.toString(generation));
+        ack.setType(Protocol.TYPE_LISTING_ACK);
+        ack.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        send(ack.serialize(), clientAddress);
+    }
+
+    /**
+     * Replies with the nodes that advertise the file. Payload: file name, then the node ids.
+     */
+    private void answerLookup(InetSocketAddress clientAddress, String fileName) throws IOException {
+        StringBuilder nodes = new StringBuilder();
+        for (String holder : fileIndex.lookup(fileName)) {
+            nodes.append(holder).append(",");
+        }
+
+        Protocol response = new Protocol(1, false, "server", System.currentTimeMillis(), 0, fileName + "\n" + nodes);
+        response.setType(Protocol.TYPE_LOOKUP_RESPONSE);
+        response.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        for (byte[] datagram : fragmenter.split(response.serialize())) {
+            send(datagram, clientAddress);
         }
     }
 
     /**
-     * Thread 3: Broadcasts availability & file listings to all clients.
+     * Answers one page of a file name search. The request carries a tag that is echoed back,
+     * the kind of search, the page size, the continuation token from the previous page (an
+     * empty line for the first) and the pattern. The response lists the names after a status
+     * line: "more <token>" if there may be more, "done", or "error <reason>".
      */
-    private void broadcastUpdates() {
-        while (true) {
+    private void answerSearch(InetSocketAddress clientAddress, String request) throws IOException {
+        long start = System.nanoTime();
+        String[] fields = request.split("\n", 5);
+        String status;
+        String names = "";
+        if (fields.length < 5) {
+            status = "error malformed request";
+        } else {
             try {
-                Thread.sleep(30000); // Send updates every 30 seconds
+                FileSearch.Kind kind = FileSearch.Kind.valueOf(fields[1].trim().toUpperCase());
+                int limit = Math.min(Integer.parseInt(fields[2].trim()), searchMaxResults);
+                String token = fields[3].isEmpty() ? null : fields[3];
+                FileSearch.Page page = fileSearch.search(kind, fields[4], limit, token);
+                status = page.next != null ? "more " + page.next : "done";
+                names = String.join(",", page.names);
+            } catch (IllegalArgumentException e) { // Also covers unknown kinds and bad numbers
+                status = "error " + e.getMessage();
+            }
+        }
+        searchTime.recordSince(start);
+
+        Protocol response = new Protocol(1, false, "server", System.currentTimeMillis(), 0,
+                fields[0] + "\n" + status + "\n" + names);
+        response.setType(Protocol.TYPE_SEARCH_RESPONSE);
+        response.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        for (byte[] datagram : fragmenter.split(response.serialize())) {
+            send(datagram, clientAddress);
+        }
+    }
 
-                if (clientData.isEmpty() && clientAddresses.isEmpty()) {
-                    System.out.println("[Server] No clients to broadcast updates.");
-                    continue;
-                }
+    /**
+     * Loads the nodes known before the restart as unconfirmed: they are listed and sent
+     * updates, but expire after RESTORE_GRACE unless they heartbeat. Then compacts the log
+     * into a fresh snapshot.
+     */
+    private void restoreState() throws IOException {
+        clusterView.resumeAfter(store.getEpoch());
+        for (MembershipStore.Entry entry : store.getEntries()) {
+            String nodeId = entry.nodeId;
+            if (cluster != null && !cluster.owns(nodeId)) {
+                continue; // The shard list changed; its owner will hear from it
+            }
+            clientData.put(nodeId, new Protocol(1, false, nodeId, System.currentTimeMillis(), 0, entry.listing));
+            clientAddresses.put(nodeId, entry.address);
+            if (entry.compression && compressionEnabled) {
+                compressionPeers.add(nodeId);
+            }
+            clusterView.update(nodeId, entry.listing);
+            if (cluster != null) {
+                cluster.updateOwned(nodeId, entry.listing);
+            }
+            fileIndex.replace(nodeId, FileListing.parseListing(entry.listing));
+            unconfirmedClients.add(nodeId);
+            livenessWheel.schedule(nodeId, RESTORE_GRACE);
+        }
+        store.snapshot();
+        if (!unconfirmedClients.isEmpty()) {
+            System.out.println("[Server] Restored " + unconfirmedClients.size() + " node(s) as unconfirmed.");
+        }
+    }
 
-                List<String> inactiveNodes = new ArrayList<>();
-                long currentTime = System.currentTimeMillis();
-
-                // Identify inactive clients
-                Iterator<Map.Entry<String, Protocol>> iterator = clientData.entrySet().iterator();
-                while (iterator.hasNext()) {
-                    Map.Entry<String, Protocol> entry = iterator.next();
-                    String nodeId = entry.getKey();
-                    long lastUpdate = entry.getValue().getTimestamp();
-
-                    if (currentTime - lastUpdate > TIMEOUT) {
-                        System.out.println("[Server] Node " + nodeId + " is now inactive.");
-                        inactiveNodes.add(nodeId);
-                        iterator.remove(); // Remove inactive client
-                        clientAddresses.remove(nodeId);
-                    }
-                }
+    /**
+     * Every tick: drives the liveness wheel, which marks clients inactive as their deadlines pass.
+     */
+    private void monitorClients() {
+        livenessWheel.advance();
+    }
 
-                // Build message containing both active and inactive nodes
-                StringBuilder updatePayload = new StringBuilder();
+    /**
+     * Called by the liveness wheel when a client's phi is due to cross the threshold.
+     */
+    private void expireClient(String nodeId) {
+        // A heartbeat may have rescheduled the node while this expiry was being delivered
+        if (livenessWheel.contains(nodeId)) {
+            return;
+        }
+        double phi = failureDetector.phi(nodeId);
+        boolean unconfirmed = unconfirmedClients.remove(nodeId); // Restored, never heard from: nothing to wait for
+        if (!unconfirmed && phi < phiThreshold && clientData.containsKey(nodeId)) {
+            // The wheel rounds to ticks; wait out the rest
+            livenessWheel.schedule(nodeId, Math.max(WHEEL_TICK, failureDetector.millisUntilSuspect(nodeId, phiThreshold)));
+            return;
+        }
+        if (clientData.remove(nodeId) == null) {
+            return;
+        }
+        failureDetector.remove(nodeId);
+        admission.forget(nodeId);
+        inactiveClients.add(nodeId);
+        nodesExpired.increment();
+        InetSocketAddress address = clientAddresses.remove(nodeId);
+        if (address != null) {
+            nodeIds.remove(address, nodeId);
+        }
+        rawListings.remove(nodeId);
+        clientListings.remove(nodeId);
+        compressionPeers.remove(nodeId);
+        viewEpochs.remove(nodeId);
+        clusterView.remove(nodeId);
+        if (cluster != null) {
+            cluster.removeOwned(nodeId);
+        }
+        fileIndex.remove(nodeId);
+        recentlyInactive.add(nodeId); // Reported once in the next broadcast
+        if (store != null) {
+            try {
+                store.remove(nodeId, clusterView.getEpoch());
+            } catch (IOException e) {
+                System.err.println("[Server] Could not log departure of " + nodeId + ": " + e.getMessage());
+            }
+        }
 
-                // Add active nodes
-                for (Map.Entry<String, Protocol> entry : clientData.entrySet()) {
-                    String nodeId = entry.getKey();
-                    String fileList = entry.getValue().getPayload();
-                    updatePayload.append("Node (").append(nodeId).append("): active, Files: [")
-                            .append(fileList).append("]\n");
-                }
+        if (unconfirmed) {
+            System.out.printf("[Server] Restored node %s did not heartbeat after the restart; now inactive.%n", nodeId);
+        } else {
+            System.out.printf("[Server] Node %s is now inactive (phi %.1f).%n", nodeId, phi);
+        }
+    }
 
-                // Add inactive nodes
-                for (String nodeId : inactiveNodes) {
-                    updatePayload.append("Node (").append(nodeId).append("): inactive\n");
-                }
+    /**
+     * Every broadcast_interval (30s by default): broadcasts availability & file listings to all clients.
+     *
+     * Clients that report their view epoch only get the changes since that epoch (nothing if
+     * they are current); everyone else gets the original full-text update.
+     */
+    private void broadcastUpdates() throws IOException, InterruptedException {
+        if (clientData.isEmpty() && clientAddresses.isEmpty()) {
+            System.out.println("[Server] No clients to broadcast updates.");
+            return;
+        }
+
+        // Clients that expired since the last broadcast and have not come back
+        List<String> inactiveNodes = new ArrayList<>();
+        String expired;
+        while ((expired = recentlyInactive.poll()) != null) {
+            if (!clientData.containsKey(expired) && (cluster == null || !cluster.isRemoteMember(expired))) {
+                inactiveNodes.add(expired);
+            }
+        }
+
+        long buildStart = System.nanoTime();
+        List<BroadcastFanout.Delivery> deliveries = buildDeliveries(inactiveNodes);
+        broadcastBuild.recordSince(buildStart);
 
-                // Create a single update packet
-                Protocol combinedUpdate = new Protocol(1, false, "server", System.currentTimeMillis(), 0, updatePayload.toString());
-                byte[] data = combinedUpdate.serialize();
+        if (!deliveries.isEmpty()) {
+            BroadcastFanout.Result result = fanout.broadcast(deliveries);
+            broadcastFanout.record(result.elapsedNanos);
+            broadcastRecipients.add(result.recipients);
+            System.out.printf("[Server] Sent updated network status to %d client(s) in %.1f ms (%d failed).%n",
+                    result.recipients, result.elapsedMillis(), result.failures);
+        }
+    }
 
-                // Send ONE packet to each active client
-                for (InetSocketAddress clientAddress : clientAddresses.values()) {
-                    DatagramPacket packet = new DatagramPacket(data, data.length,
-                            clientAddress.getAddress(), clientAddress.getPort());
-                    socket.send(packet);
+    /**
+     * Picks the update for each active client and encodes each distinct one once.
+     */
+    List<BroadcastFanout.Delivery> buildDeliveries(List<String> inactiveNodes) throws IOException {
+        // Each distinct message is encoded once and shared by every client that needs it
+        Map<String, List<ByteBuffer>> encodings = new HashMap<>();
+        List<BroadcastFanout.Delivery> deliveries = new ArrayList<>();
+        Protocol fullUpdate = null;
+
+        // Pick the update for each active client, in as few datagrams as the MTU allows
+        for (Map.Entry<String, InetSocketAddress> client : clientAddresses.entrySet()) {
+            String nodeId = client.getKey();
+            boolean compress = compressionPeers.contains(nodeId);
+            Long heldEpoch = viewEpochs.get(nodeId);
+
+            List<ByteBuffer> datagrams;
+            if (heldEpoch != null) {
+                String key = heldEpoch + (compress ? "/z" : "/");
+                datagrams = encodings.get(key);
+                if (datagrams == null) {
+                    Protocol viewUpdate = clusterView.toMessage(heldEpoch);
+                    if (viewUpdate == null) {
+                        datagrams = Collections.emptyList(); // Already current
+                    } else {
+                        viewUpdate.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+                        datagrams = BroadcastFanout.toDirect(fragmenter.split(viewUpdate.serialize(compress)));
+                    }
+                    encodings.put(key, datagrams);
+                }
+            } else {
+                String key = compress ? "full/z" : "full/";
+                datagrams = encodings.get(key);
+                if (datagrams == null) {
+                    if (fullUpdate == null) {
+                        fullUpdate = buildFullUpdate(inactiveNodes);
+                    }
+                    datagrams = BroadcastFanout.toDirect(fragmenter.split(fullUpdate.serialize(compress)));
+                    encodings.put(key, datagrams);
                 }
+            }
 
-                System.out.println("[Server] Sent updated network status.");
+            if (!datagrams.isEmpty()) {
+                deliveries.add(BroadcastFanout.delivery(client.getValue(), datagrams));
+            }
+        }
+        return deliveries;
+    }
+
+    /**
+     * Builds the original text update listing every active node and the given inactive ones.
+     */
+    private Protocol buildFullUpdate(List<String> inactiveNodes) {
+        // Build message containing both active and inactive nodes
+        StringBuilder updatePayload = new StringBuilder();
+
+        // Add active nodes; those restored from disk stay "unconfirmed" until they heartbeat
+        for (Map.Entry<String, Protocol> entry : clientData.entrySet()) {
+            String nodeId = entry.getKey();
+            String fileList = entry.getValue().getPayload();
+            String status = unconfirmedClients.contains(nodeId) ? "unconfirmed" : "active";
+            updatePayload.append("Node (").append(nodeId).append("): ").append(status).append(", Files: [")
+                    .append(fileList).append("]\n");
+        }
 
-            } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
+        // Add the nodes other shards own
+        if (cluster != null) {
+            for (Map.Entry<String, String> remote : cluster.getRemoteMembers().entrySet()) {
+                updatePayload.append("Node (").append(remote.getKey()).append("): active, Files: [")
+                        .append(remote.getValue()).append("]\n");
             }
         }
+
+        // Add inactive nodes
+        for (String nodeId : inactiveNodes) {
+            updatePayload.append("Node (").append(nodeId).append("): inactive\n");
+        }
+
+        // Create a single update packet
+        Protocol combinedUpdate = new Protocol(1, false, "server", System.currentTimeMillis(), 0, updatePayload.toString());
+        combinedUpdate.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        return combinedUpdate;
     }
 
     public static void main(String[] args) {
-        new Server();
+        // key=value arguments override the config file, e.g. server_port=5001 for a second shard
+        Properties config = loadConfig();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                System.err.println("Arguments are key=value overrides of " + CONFIG_FILE + ", e.g. server_port=5001");
+                System.exit(1);
+            }
+            config.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        Server server = new Server(config);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
     }
 }
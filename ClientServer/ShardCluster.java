@@ -0,0 +1,180 @@
+package ClientServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One shard's part in a cluster of servers that split the clients between them.
+ *
+ * Clients are assigned to shards by a ShardRing on their node id. A shard takes heartbeats
+ * and tracks liveness only for the clients it owns; the others are redirected to their
+ * owner. To answer for the whole cluster, each shard keeps a ClusterView of just the nodes
+ * it owns and replicates it to the other shards the same way the server replicates its view
+ * to clients: every sync round a shard reports the epoch it holds of each peer's view, and
+ * peers that are behind are sent only the changes since then (a snapshot if they fell too
+ * far behind). A quiet cluster exchanges one small ack per pair per round, so the cost of
+ * staying in sync follows the churn rather than the number of clients.
+ *
+ * Shard messages reuse the view message types and are told apart from client traffic by
+ * their source address, which is a shard's configured address. A peer that has not been
+ * heard from for peerTimeout is presumed down and its nodes are reported as gone; its
+ * clients are not taken over, since the ring is fixed by configuration.
+ */
+public class ShardCluster {
+
+    /**
+     * Sends one datagram from the shard's own socket.
+     */
+    public interface Sender {
+        void send(byte[] datagram, InetSocketAddress target) throws IOException;
+    }
+
+    private final InetSocketAddress self;
+    private final ShardRing ring;
+    private final List<InetSocketAddress> peers = new ArrayList<>();
+    private final Fragmenter fragmenter;
+    private final Sender sender;
+    private final ViewReplica.Listener listener; // Told about remote joins, changes and leaves
+    private final long peerTimeoutMillis;
+    private final ClusterView ownedView = new ClusterView();
+    private final Map<InetSocketAddress, ViewReplica> replicas = new HashMap<>(); // Each peer's owned view
+    private final ConcurrentHashMap<InetSocketAddress, Long> peerEpochs = new ConcurrentHashMap<>(); // Our epoch each peer holds
+    private final ConcurrentHashMap<InetSocketAddress, Long> lastHeard = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> remoteMembers = new ConcurrentHashMap<>(); // nodeId -> listing
+    private final Metrics.Counter syncMessages = Metrics.get().counter("cluster.sync.sent");
+
+    /**
+     * @param self     this shard's address, as it appears in the ring
+     * @param listener called with every change to a node owned by another shard
+     * @param peerTimeoutMillis silence after which a peer's nodes are dropped
+     */
+    public ShardCluster(InetSocketAddress self, ShardRing ring, Fragmenter fragmenter, Sender sender,
+                        ViewReplica.Listener listener, long peerTimeoutMillis) {
+        if (!ring.getShards().contains(self)) {
+            throw new IllegalArgumentException("This server (" + self + ") is not in cluster_shards " + ring.getShards());
+        }
+        this.self = self;
+        this.ring = ring;
+        this.fragmenter = fragmenter;
+        this.sender = sender;
+        this.listener = listener;
+        this.peerTimeoutMillis = peerTimeoutMillis;
+        for (InetSocketAddress shard : ring.getShards()) {
+            if (!shard.equals(self)) {
+                peers.add(shard);
+                replicas.put(shard, new ViewReplica());
+            }
+        }
+    }
+
+    public int getShardCount() { return peers.size() + 1; }
+
+    public boolean owns(String nodeId) {
+        return ring.owner(nodeId).equals(self);
+    }
+
+    public InetSocketAddress ownerOf(String nodeId) {
+        return ring.owner(nodeId);
+    }
+
+    public boolean isPeer(InetSocketAddress address) {
+        return replicas.containsKey(address);
+    }
+
+    /**
+     * Nodes owned by the other shards, with their listings.
+     */
+    public Map<String, String> getRemoteMembers() {
+        return Collections.unmodifiableMap(remoteMembers);
+    }
+
+    public boolean isRemoteMember(String nodeId) {
+        return remoteMembers.containsKey(nodeId);
+    }
+
+    /**
+     * Records a join or listing change of a node this shard owns.
+     */
+    public void updateOwned(String nodeId, String listing) {
+        ownedView.update(nodeId, listing);
+    }
+
+    /**
+     * Records that a node this shard owns left.
+     */
+    public void removeOwned(String nodeId) {
+        ownedView.remove(nodeId);
+    }
+
+    /**
+     * Handles a message from another shard: a view update to apply, or an ack saying which
+     * epoch of our view the peer holds.
+     */
+    public void handle(InetSocketAddress from, Protocol message) throws IOException {
+        lastHeard.put(from, System.currentTimeMillis());
+        int type = message.getType();
+        if (type == Protocol.TYPE_VIEW_ACK) {
+            peerEpochs.put(from, FileListing.parseGeneration(message.getPayload()));
+            return;
+        }
+        if (type != Protocol.TYPE_VIEW_SNAPSHOT && type != Protocol.TYPE_VIEW_DELTA) {
+            return;
+        }
+        ViewReplica replica = replicas.get(from);
+        apply(replica, message);
+        sendAck(from, replica.getEpoch()); // Confirms right away, so the peer stops resending
+    }
+
+    /**
+     * One sync round: acks every peer's view and sends each peer what it is missing of ours.
+     * An ack of 0 from a peer that restarted gets it a snapshot.
+     */
+    public void sync() throws IOException {
+        long now = System.currentTimeMillis();
+        for (InetSocketAddress peer : peers) {
+            Long heard = lastHeard.get(peer);
+            if (heard != null && now - heard > peerTimeoutMillis && lastHeard.remove(peer, heard)) {
+                // An empty snapshot at epoch 0 drops its nodes; it gets a full one when it returns
+                Protocol empty = new Protocol(1, false, "server", now, 0, "0\n");
+                empty.setType(Protocol.TYPE_VIEW_SNAPSHOT);
+                apply(replicas.get(peer), empty);
+                peerEpochs.remove(peer);
+                System.out.println("[Server] Shard " + peer + " went silent; dropped its nodes from the view.");
+            }
+            sendAck(peer, replicas.get(peer).getEpoch());
+            Long held = peerEpochs.get(peer);
+            Protocol update = ownedView.toMessage(held != null ? held : 0);
+            if (update != null) {
+                send(update, peer);
+            }
+        }
+    }
+
+    private void apply(ViewReplica replica, Protocol message) {
+        synchronized (replica) {
+            replica.apply(message, (nodeId, listing) -> {
+                if (listing != null) {
+                    remoteMembers.put(nodeId, listing);
+                } else {
+                    remoteMembers.remove(nodeId);
+                }
+                listener.changed(nodeId, listing);
+            });
+        }
+    }
+
+    private void sendAck(InetSocketAddress peer, long epoch) throws IOException {
+        Protocol ack = new Protocol(1, false, "server", System.currentTimeMillis(), 0, Long.toString(epoch));
+        ack.setType(Protocol.TYPE_VIEW_ACK);
+        send(ack, peer);
+    }
+
+    private void send(Protocol message, InetSocketAddress peer) throws IOException {
+        for (byte[] datagram : fragmenter.split(message.serialize())) {
+            sender.send(datagram, peer);
+            syncMessages.increment();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ClientServer;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent-hash ring that assigns node ids to server shards.
+ *
+ * Each shard is placed on the ring at many points (virtual nodes) so ownership is spread
+ * evenly, and a node belongs to the first shard point at or after its own hash. Every
+ * shard builds the same ring from the same shard list, so they agree on owners without
+ * talking, and adding or removing a shard only moves the nodes next to its points.
+ */
+public class ShardRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, InetSocketAddress> ring = new TreeMap<>();
+    private final List<InetSocketAddress> shards;
+
+    public ShardRing(List<InetSocketAddress> shards, int virtualNodes) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A shard ring needs at least one shard");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        for (InetSocketAddress shard : shards) {
+            String name = shard.getAddress().getHostAddress() + ":" + shard.getPort();
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(name + "#" + i), shard);
+            }
+        }
+    }
+
+    public List<InetSocketAddress> getShards() { return shards; }
+
+    /**
+     * The shard that owns the node.
+     */
+    public InetSocketAddress owner(String nodeId) {
+        Map.Entry<Long, InetSocketAddress> point = ring.ceilingEntry(hash(nodeId));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Parses "host:port,host:port,..." as in the cluster_shards setting.
+     */
+    public static List<InetSocketAddress> parse(String shardList) {
+        List<InetSocketAddress> shards = new ArrayList<>();
+        for (String shard : shardList.split(",")) {
+            shard = shard.trim();
+            int colon = shard.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Shard address must be host:port: " + shard);
+            }
+            shards.add(new InetSocketAddress(shard.substring(0, colon), Integer.parseInt(shard.substring(colon + 1))));
+        }
+        return shards;
+    }
+
+    /**
+     * 64-bit FNV-1a with a final avalanche, so similar ids (consecutive ports) land far apart.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
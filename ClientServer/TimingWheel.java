@@ -0,0 +1,139 @@
+package ClientServer;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for per-node deadlines, driven by the local monotonic clock.
+ *
+ * Each key has at most one timeout, linked into the slot of its deadline. Rescheduling
+ * unlinks and relinks it in O(1), and a tick only looks at the one slot that is due, so
+ * the cost of tracking liveness does not grow with the number of nodes. As long as the
+ * wheel spans more ticks than the longest delay, an entry is visited only when it expires.
+ */
+public class TimingWheel<K> {
+    private final long tickNanos;
+    private final Timeout<K>[] slots; // Sentinel heads of circular lists
+    private final int mask;
+    private final Map<K, Timeout<K>> timeouts = new HashMap<>();
+    private final Consumer<K> onExpire;
+    private final long startNanos = System.nanoTime();
+    private long currentTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // Generic arrays can only be created raw
+    public TimingWheel(long tickMillis, int slotCount, Consumer<K> onExpire) {
+        int size = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1; // Round up to a power of two
+        this.tickNanos = tickMillis * 1_000_000L;
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        this.onExpire = onExpire;
+        for (int i = 0; i < size; i++) {
+            Timeout<K> head = new Timeout<>(null);
+            head.prev = head;
+            head.next = head;
+            slots[i] = head;
+        }
+    }
+
+    /**
+     * Sets (or moves) the key's deadline to delayMillis from now.
+     */
+    public void schedule(K key, long delayMillis) {
+        schedule(key, delayMillis, System.nanoTime());
+    }
+
+    /**
+     * schedule() against an explicit clock reading, for benchmarks that drive virtual time.
+     */
+    synchronized void schedule(K key, long delayMillis, long nowNanos) {
+        long deadlineTick = tickAt(nowNanos + delayMillis * 1_000_000L) + 1;
+
+        Timeout<K> timeout = timeouts.get(key);
+        if (timeout == null) {
+            timeout = new Timeout<>(key);
+            timeouts.put(key, timeout);
+        } else {
+            unlink(timeout);
+        }
+        timeout.deadlineTick = Math.max(deadlineTick, currentTick + 1);
+        link(timeout, slots[(int) (timeout.deadlineTick & mask)]);
+    }
+
+    public synchronized boolean cancel(K key) {
+        Timeout<K> timeout = timeouts.remove(key);
+        if (timeout == null) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    public synchronized boolean contains(K key) { return timeouts.containsKey(key); }
+
+    public synchronized int size() { return timeouts.size(); }
+
+    /**
+     * Advances the wheel to the current time and fires every deadline that has passed.
+     * Callbacks run after the wheel's lock is released.
+     */
+    public void advance() {
+        advance(System.nanoTime());
+    }
+
+    /**
+     * advance() to an explicit clock reading.
+     */
+    void advance(long nowNanos) {
+        List<K> expired = new ArrayList<>();
+        synchronized (this) {
+            long targetTick = tickAt(nowNanos);
+            while (currentTick < targetTick) {
+                currentTick++;
+                Timeout<K> head = slots[(int) (currentTick & mask)];
+                Timeout<K> timeout = head.next;
+                while (timeout != head) {
+                    Timeout<K> next = timeout.next;
+                    if (timeout.deadlineTick <= currentTick) {
+                        unlink(timeout);
+                        timeouts.remove(timeout.key);
+                        expired.add(timeout.key);
+                    }
+                    timeout = next;
+                }
+            }
+        }
+
+        for (K key : expired) {
+            onExpire.accept(key);
+        }
+    }
+
+    private long tickAt(long nanoTime) {
+        return (nanoTime - startNanos) / tickNanos;
+    }
+
+    private static <K> void link(Timeout<K> timeout, Timeout<K> head) {
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+    }
+
+    private static <K> void unlink(Timeout<K> timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    private static class Timeout<K> {
+        final K key;
+        long deadlineTick;
+        Timeout<K> prev;
+        Timeout<K> next;
+
+        Timeout(K key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package ClientServer;
+
+import java.util.*;
+
+/**
+ * Client-side copy of the server's ClusterView, kept current by snapshot and delta messages.
+ */
+public class ViewReplica {
+
+    /**
+     * Told about each node whose entry changed while a message was applied.
+     */
+    public interface Listener {
+        /**
+         * @param listing the node's new listing, or null if it left
+         */
+        void changed(String nodeId, String listing);
+    }
+
+    private long epoch;
+    private final Map<String, String> members = new LinkedHashMap<>(); // nodeId -> listing
+    private final List<String> leftInLastUpdate = new ArrayList<>();
+
+    public synchronized long getEpoch() { return epoch; }
+
+    /**
+     * Applies a view message. Returns false if it could not be applied because the delta
+     * starts after the epoch held here; the caller should report its epoch to the server.
+     */
+    public synchronized boolean apply(Protocol message) {
+        return apply(message, null);
+    }
+
+    /**
+     * apply(), also reporting every join, listing change and leave to the listener.
+     */
+    public synchronized boolean apply(Protocol message, Listener listener) {
+        String[] lines = message.getPayload().split("\n");
+        try {
+            if (message.getType() == Protocol.TYPE_VIEW_SNAPSHOT) {
+                long snapshotEpoch = Long.parseLong(lines[0]);
+                leftInLastUpdate.clear();
+                Map<String, String> previous = new HashMap<>(members);
+                members.clear();
+                for (int i = 1; i < lines.length; i++) {
+                    int tab = lines[i].indexOf('\t');
+                    if (tab > 0) {
+                        String nodeId = lines[i].substring(0, tab);
+                        String listing = lines[i].substring(tab + 1);
+                        members.put(nodeId, listing);
+                        if (listener != null && !listing.equals(previous.get(nodeId))) {
+                            listener.changed(nodeId, listing);
+                        }
+                    }
+                }
+                for (String nodeId : previous.keySet()) {
+                    if (!members.containsKey(nodeId)) {
+                        leftInLastUpdate.add(nodeId);
+                        if (listener != null) {
+                            listener.changed(nodeId, null);
+                        }
+                    }
+                }
+                epoch = snapshotEpoch;
+                return true;
+            }
+
+            long from = Long.parseLong(lines[0]);
+            long to = Long.parseLong(lines[1]);
+            if (from > epoch || to <= epoch) {
+                return from <= epoch; // Gap, or nothing new (e.g. a resend after a lost ack)
+            }
+
+            leftInLastUpdate.clear();
+            for (int i = 2; i < lines.length; i++) {
+                String[] change = lines[i].split("\t", 4);
+                if (change.length < 3 || Long.parseLong(change[0]) <= epoch) {
+                    continue; // Already applied
+                }
+                if ("+".equals(change[1]) && change.length == 4) {
+                    members.put(change[2], change[3]);
+                    leftInLastUpdate.remove(change[2]);
+                    if (listener != null) {
+                        listener.changed(change[2], change[3]);
+                    }
+                } else if ("-".equals(change[1])) {
+                    if (members.remove(change[2]) != null && listener != null) {
+                        listener.changed(change[2], null);
+                    }
+                    leftInLastUpdate.add(change[2]);
+                }
+            }
+            epoch = to;
+            return true;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Renders the view in the same text form as the server's full broadcast.
+     */
+    public synchronized String render() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> member : members.entrySet()) {
+            text.append("Node (").append(member.getKey()).append("): active, Files: [")
+                    .append(member.getValue()).append("]\n");
+        }
+        for (String nodeId : leftInLastUpdate) {
+            text.append("Node (").append(nodeId).append("): inactive\n");
+        }
+        return text.toString();
+    }
+}
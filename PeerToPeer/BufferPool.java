@@ -0,0 +1,82 @@
+package PeerToPeer;
+
+/**
+ * Reusable byte arrays in power-of-two size classes, for buffers that only live while one
+ * message is being handled.
+ *
+ * acquire() returns an array at least as large as asked for, reusing a released one of that
+ * class if there is one; release() gives it back. Idle arrays are kept on a fixed stack per
+ * class, so neither call allocates once the pool is warm. Each class keeps at most
+ * maxIdlePerClass arrays and requests above the largest class are plain allocations that
+ * are never kept, so the pool's footprint stays bounded whatever the traffic.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8; // 256 bytes
+    private static final int MAX_SHIFT = 20; // 1 MB
+    private static final int DEFAULT_MAX_IDLE = 64;
+
+    private final byte[][][] idle = new byte[MAX_SHIFT - MIN_SHIFT + 1][][];
+    private final int[] idleCount = new int[idle.length];
+    private final Metrics.Counter misses = Metrics.get().counter("buffers.allocated");
+
+    public BufferPool() {
+        this(DEFAULT_MAX_IDLE);
+    }
+
+    public BufferPool(int maxIdlePerClass) {
+        for (int i = 0; i < idle.length; i++) {
+            idle[i] = new byte[Math.max(1, maxIdlePerClass)][];
+        }
+    }
+
+    /**
+     * Returns an array of at least size bytes. Its contents are undefined.
+     */
+    public byte[] acquire(int size) {
+        int sizeClass = classOf(size);
+        if (sizeClass < 0) {
+            misses.increment();
+            return new byte[size];
+        }
+        synchronized (idle[sizeClass]) {
+            int count = idleCount[sizeClass];
+            if (count > 0) {
+                byte[] buffer = idle[sizeClass][--count];
+                idle[sizeClass][count] = null;
+                idleCount[sizeClass] = count;
+                return buffer;
+            }
+        }
+        misses.increment();
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    /**
+     * Gives an array back. Arrays that did not come from acquire() are ignored unless their
+     * length is exactly a class size, in which case they are as good as pooled ones.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || Integer.bitCount(buffer.length) != 1) {
+            return;
+        }
+        int sizeClass = classOf(buffer.length);
+        if (sizeClass < 0) {
+            return;
+        }
+        synchronized (idle[sizeClass]) {
+            int count = idleCount[sizeClass];
+            if (count < idle[sizeClass].length) {
+                idle[sizeClass][count] = buffer;
+                idleCount[sizeClass] = count + 1;
+            }
+        }
+    }
+
+    /**
+     * Index of the smallest class that holds size bytes, or -1 if it is above the largest.
+     */
+    private static int classOf(int size) {
+        int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,257 @@
+package PeerToPeer;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * In-memory index of the file names in a home directory, kept current by a WatchService.
+ *
+ * Heartbeats read the cached listing text, which is only rebuilt after a change, and delta
+ * heartbeats read the change log, so preparing a heartbeat costs O(changes) instead of a
+ * directory scan. If the directory cannot be watched the index falls back to rescanning
+ * whenever it is read.
+ */
+public class DirectoryIndex {
+    private static final int MAX_LOG = 4096; // Changes kept for delta heartbeats
+
+    /**
+     * Net changes between two versions.
+     */
+    public static class Delta {
+        public final long fromVersion;
+        public final long toVersion;
+        public final List<String> added;
+        public final List<String> removed;
+
+        Delta(long fromVersion, long toVersion, List<String> added, List<String> removed) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * The listing at one version, read together.
+     */
+    public static class Snapshot {
+        public final long version;
+        public final String listing;
+
+        Snapshot(long version, String listing) {
+            this.version = version;
+            this.listing = listing;
+        }
+    }
+
+    private final Path directory;
+    private final Set<String> files = new LinkedHashSet<>();
+    private final ArrayDeque<Change> log = new ArrayDeque<>();
+    private long version;
+    private String listing; // Cached FileListing text for the current version
+    private WatchService watchService;
+    private volatile boolean running = true;
+
+    public DirectoryIndex(String homeDirectory) throws IOException {
+        directory = Paths.get(homeDirectory);
+        Files.createDirectories(directory);
+
+        try {
+            watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Cannot watch " + directory + ", rescanning on every read instead.");
+            watchService = null;
+        }
+
+        rescan();
+    }
+
+    /**
+     * Starts the watcher thread. Does nothing when the directory is not watchable.
+     */
+    public void start(ExecutorService executor) {
+        if (watchService != null) {
+            executor.execute(this::watch);
+        }
+    }
+
+    public Path getDirectory() { return directory; }
+
+    public synchronized long getVersion() {
+        refreshIfPolling();
+        return version;
+    }
+
+    public synchronized Set<String> getFiles() {
+        refreshIfPolling();
+        return new LinkedHashSet<>(files);
+    }
+
+    /**
+     * Returns the listing in the original heartbeat text form. Rebuilt only after a change.
+     */
+    public synchronized String getListing() {
+        refreshIfPolling();
+        if (listing == null) {
+            listing = FileListing.join(files);
+        }
+        return listing;
+    }
+
+    /**
+     * Returns the listing together with the version it belongs to.
+     */
+    public synchronized Snapshot snapshot() {
+        String current = getListing();
+        return new Snapshot(version, current);
+    }
+
+    /**
+     * Returns the net changes since the given version, or null if the log no longer reaches
+     * back that far.
+     */
+    public synchronized Delta changesSince(long fromVersion) {
+        refreshIfPolling();
+        if (fromVersion > version) {
+            return null;
+        }
+        Change oldest = log.peekFirst();
+        if (fromVersion < version && (oldest == null || oldest.version > fromVersion + 1)) {
+            return null;
+        }
+
+        // First and last operation per name decide whether it was present before and after
+        Map<String, boolean[]> ops = new LinkedHashMap<>();
+        for (Iterator<Change> it = log.descendingIterator(); it.hasNext(); ) {
+            Change change = it.next();
+            if (change.version <= fromVersion) {
+                break;
+            }
+            boolean[] firstAndLast = ops.get(change.name);
+            if (firstAndLast == null) {
+                ops.put(change.name, new boolean[] {change.added, change.added});
+            } else {
+                firstAndLast[0] = change.added; // Walking backwards, so this is the earlier one
+            }
+        }
+
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, boolean[]> entry : ops.entrySet()) {
+            boolean presentBefore = !entry.getValue()[0];
+            boolean presentNow = entry.getValue()[1];
+            if (!presentBefore && presentNow) {
+                added.add(entry.getKey());
+            } else if (presentBefore && !presentNow) {
+                removed.add(entry.getKey());
+            }
+        }
+        return new Delta(fromVersion, version, added, removed);
+    }
+
+    private void watch() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            synchronized (this) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    WatchEvent.Kind<?> kind = event.kind();
+                    if (kind == StandardWatchEventKinds.OVERFLOW) {
+                        rescan(); // Events were lost, diff against the directory
+                        continue;
+                    }
+
+                    String name = ((Path) event.context()).getFileName().toString();
+                    if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                        record(name, true);
+                    } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                        record(name, false);
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                System.err.println("Home directory " + directory + " is no longer watchable.");
+                synchronized (this) {
+                    watchService = null; // Fall back to rescanning on read
+                }
+                return;
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+        WatchService service = watchService;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void refreshIfPolling() {
+        if (watchService == null) {
+            rescan();
+        }
+    }
+
+    /**
+     * Lists the directory and records whatever differs from the index.
+     */
+    private synchronized void rescan() {
+        Set<String> current = new LinkedHashSet<>();
+        File[] entries = directory.toFile().listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                current.add(entry.getName());
+            }
+        }
+
+        for (String name : new ArrayList<>(files)) {
+            if (!current.contains(name)) {
+                record(name, false);
+            }
+        }
+        for (String name : current) {
+            if (!files.contains(name)) {
+                record(name, true);
+            }
+        }
+    }
+
+    private void record(String name, boolean added) {
+        boolean changed = added ? files.add(name) : files.remove(name);
+        if (!changed) {
+            return;
+        }
+        version++;
+        listing = null;
+        log.addLast(new Change(version, name, added));
+        while (log.size() > MAX_LOG) {
+            log.removeFirst();
+        }
+    }
+
+    private static class Change {
+        final long version;
+        final String name;
+        final boolean added;
+
+        Change(long version, String name, boolean added) {
+            this.version = version;
+            this.name = name;
+            this.added = added;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package PeerToPeer;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * A node's file listing as held by a receiver, tagged with the sender's listing generation.
+ *
+ * Payload formats (one field per line):
+ *   snapshot: generation, listing
+ *   delta:    base generation, new generation, added entries, removed entries
+ *   ack:      generation now held by the receiver, or -1 to ask for a fresh snapshot
+ * Entry lists use the same comma-separated form as the original heartbeat listing.
+ */
+public class FileListing {
+    public static final String EMPTY_LISTING = "No files available.";
+    public static final long RESYNC = -1;
+
+    private long generation;
+    private final Set<String> files;
+    private volatile String payload; // Cached legacy listing text, rebuilt only after a change
+
+    public FileListing(long generation, Collection<String> files) {
+        this.generation = generation;
+        this.files = new LinkedHashSet<>(files);
+    }
+
+    public synchronized long getGeneration() { return generation; }
+
+    public synchronized Set<String> getFiles() { return new LinkedHashSet<>(files); }
+
+    /**
+     * Returns the listing in the original heartbeat text form.
+     */
+    public String toPayload() {
+        String cached = payload;
+        if (cached == null) {
+            synchronized (this) {
+                cached = join(files);
+                payload = cached;
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Applies a delta payload. Returns the generation now held, or RESYNC if the delta
+     * was built against a generation this listing does not have.
+     */
+    public synchronized long applyDelta(String deltaPayload) {
+        return applyDelta(deltaPayload, null);
+    }
+
+    /**
+     * Same as applyDelta, also reporting each entry that actually changed (name, added).
+     */
+    public synchronized long applyDelta(String deltaPayload, BiConsumer<String, Boolean> onChange) {
+        String[] fields = deltaPayload.split("\n", -1);
+        if (fields.length < 4) {
+            return RESYNC;
+        }
+
+        long base, next;
+        try {
+            base = Long.parseLong(fields[0]);
+            next = Long.parseLong(fields[1]);
+        } catch (NumberFormatException e) {
+            return RESYNC;
+        }
+        if (base != generation) {
+            return RESYNC;
+        }
+
+        boolean changed = false;
+        for (String removed : split(fields[3])) {
+            if (files.remove(removed)) {
+                changed = true;
+                if (onChange != null) onChange.accept(removed, false);
+            }
+        }
+        for (String added : split(fields[2])) {
+            if (files.add(added)) {
+                changed = true;
+                if (onChange != null) onChange.accept(added, true);
+            }
+        }
+        if (changed) {
+            payload = null;
+        }
+        generation = next;
+        return generation;
+    }
+
+    /**
+     * Parses a snapshot payload, or returns null if it is malformed.
+     */
+    public static FileListing fromSnapshot(String snapshotPayload) {
+        int newline = snapshotPayload.indexOf('\n');
+        if (newline < 0) {
+            return null;
+        }
+
+        long generation;
+        try {
+            generation = Long.parseLong(snapshotPayload.substring(0, newline));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String listing = snapshotPayload.substring(newline + 1);
+        return new FileListing(generation, parseListing(listing));
+    }
+
+    /**
+     * Parses an ack payload, treating anything malformed as a request to resync.
+     */
+    public static long parseGeneration(String ackPayload) {
+        try {
+            return Long.parseLong(ackPayload.trim());
+        } catch (NumberFormatException e) {
+            return RESYNC;
+        }
+    }
+
+    /**
+     * Parses a listing in the original heartbeat text form into file names.
+     */
+    public static List<String> parseListing(String listing) {
+        if (listing.equals(EMPTY_LISTING) || listing.startsWith("ERROR:")) {
+            return Collections.emptyList();
+        }
+        return split(listing);
+    }
+
+    public static String encodeSnapshot(long generation, Collection<String> files) {
+        return encodeSnapshot(generation, join(files));
+    }
+
+    public static String encodeSnapshot(long generation, String listing) {
+        return generation + "\n" + listing;
+    }
+
+    public static String encodeDelta(long base, long generation, Collection<String> added, Collection<String> removed) {
+        return base + "\n" + generation + "\n" + joinEntries(added) + "\n" + joinEntries(removed);
+    }
+
+    public static String join(Collection<String> files) {
+        return files.isEmpty() ? EMPTY_LISTING : joinEntries(files);
+    }
+
+    private static String joinEntries(Collection<String> entries) {
+        StringBuilder builder = new StringBuilder();
+        for (String entry : entries) {
+            builder.append(entry).append(",");
+        }
+        return builder.toString();
+    }
+
+    public static List<String> split(String entries) {
+        List<String> result = new ArrayList<>();
+        int start = 0;
+        while (start < entries.length()) {
+            int comma = entries.indexOf(',', start);
+            int end = comma < 0 ? entries.length() : comma;
+            if (end > start) {
+                result.add(entries.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,250 @@
+package PeerToPeer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Content manifest of a home directory: size, modification time and SHA-256 of each file,
+ * rolled up into a Merkle tree.
+ *
+ * Hashes are cached and recomputed only when a file's size or mtime changes, on a bounded
+ * pool. Files are spread over BUCKETS leaves by a hash of their name; each bucket hash
+ * covers its sorted entries and the root covers the bucket hashes. Two nodes compare roots
+ * in one small message, then bucket hashes, and only exchange the entries of the buckets
+ * that differ.
+ *
+ * Message payloads:
+ *   request  ""                 -> response "root" line, then the bucket hashes comma-separated
+ *   request  "buckets:3,7"      -> response "entries" line, then "bucket TAB name TAB size TAB mtime TAB hash" lines
+ */
+public class FileManifest {
+    public static final int BUCKETS = 16;
+    private static final long MIN_REFRESH_INTERVAL = 5000; // Rescan at most every 5s
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * One file in the manifest.
+     */
+    public static class Entry {
+        public final String name;
+        public final long size;
+        public final long modified;
+        public final String hash;
+
+        Entry(String name, long size, long modified, String hash) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    private final DirectoryIndex index;
+    private final ExecutorService hashPool;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private String[] bucketHashes = new String[BUCKETS];
+    private String root;
+    private long lastRefresh;
+
+    public FileManifest(DirectoryIndex index, int hashThreads) {
+        this.index = index;
+        this.hashPool = Executors.newFixedThreadPool(Math.max(1, hashThreads), runnable -> {
+            Thread thread = new Thread(runnable, "manifest-hash");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public synchronized String getRoot() throws IOException {
+        refreshIfStale();
+        return root;
+    }
+
+    public synchronized Entry getEntry(String name) throws IOException {
+        refreshIfStale();
+        return entries.get(name);
+    }
+
+    /**
+     * Re-stats every indexed file and hashes, in parallel, only those whose size or mtime changed.
+     */
+    public synchronized void refresh() throws IOException {
+        Map<String, Future<Entry>> rehash = new HashMap<>();
+        Set<String> present = index.getFiles();
+        boolean changed = entries.keySet().retainAll(present);
+
+        for (String name : present) {
+            Path file = index.getDirectory().resolve(name);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException e) {
+                changed |= entries.remove(name) != null; // Deleted since the index saw it
+                continue;
+            }
+            if (!attributes.isRegularFile()) {
+                changed |= entries.remove(name) != null;
+                continue;
+            }
+
+            long size = attributes.size();
+            long modified = attributes.lastModifiedTime().toMillis();
+            Entry cached = entries.get(name);
+            if (cached == null || cached.size != size || cached.modified != modified) {
+                rehash.put(name, hashPool.submit(() -> new Entry(name, size, modified, hashFile(file))));
+            }
+        }
+
+        for (Map.Entry<String, Future<Entry>> job : rehash.entrySet()) {
+            try {
+                entries.put(job.getKey(), job.getValue().get());
+                changed = true;
+            } catch (ExecutionException e) {
+                changed |= entries.remove(job.getKey()) != null; // Unreadable, leave it out
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while hashing " + job.getKey());
+            }
+        }
+
+        if (changed || root == null) {
+            rebuildTree();
+        }
+        lastRefresh = System.currentTimeMillis();
+    }
+
+    /**
+     * Answers a manifest request from another node.
+     */
+    public Protocol answer(Protocol request, String nodeId, boolean mode) throws IOException {
+        StringBuilder payload = new StringBuilder();
+        String query = request.getPayload();
+        synchronized (this) {
+            refreshIfStale();
+            if (query.startsWith("buckets:")) {
+                Set<Integer> wanted = new HashSet<>();
+                for (String bucket : FileListing.split(query.substring("buckets:".length()))) {
+                    try {
+                        wanted.add(Integer.parseInt(bucket.trim()));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+                payload.append("entries\n");
+                for (Entry entry : sortedEntries()) {
+                    int bucket = bucketOf(entry.name);
+                    if (wanted.contains(bucket)) {
+                        payload.append(bucket).append('\t').append(entry.name).append('\t').append(entry.size)
+                                .append('\t').append(entry.modified).append('\t').append(entry.hash).append('\n');
+                    }
+                }
+            } else {
+                payload.append("root ").append(root).append('\n').append(String.join(",", bucketHashes));
+            }
+        }
+
+        Protocol response = new Protocol(1, mode, nodeId, System.currentTimeMillis(), 0, payload.toString());
+        response.setType(Protocol.TYPE_MANIFEST_RESPONSE);
+        return response;
+    }
+
+    /**
+     * Returns the buckets whose hashes differ from a root response, or an empty list if the
+     * roots match.
+     */
+    public synchronized List<Integer> differingBuckets(String rootResponse) throws IOException {
+        refreshIfStale();
+        String[] lines = rootResponse.split("\n");
+        List<Integer> differing = new ArrayList<>();
+        if (lines.length < 2 || !lines[0].startsWith("root ")) {
+            for (int i = 0; i < BUCKETS; i++) differing.add(i);
+            return differing;
+        }
+        if (lines[0].substring("root ".length()).equals(root)) {
+            return differing;
+        }
+
+        String[] theirs = lines[1].split(",");
+        for (int i = 0; i < BUCKETS; i++) {
+            if (i >= theirs.length || !theirs[i].equals(bucketHashes[i])) {
+                differing.add(i);
+            }
+        }
+        return differing;
+    }
+
+    public static int bucketOf(String name) {
+        return (name.hashCode() & 0x7fffffff) % BUCKETS;
+    }
+
+    public void close() {
+        hashPool.shutdownNow();
+    }
+
+    private void refreshIfStale() throws IOException {
+        if (root == null || System.currentTimeMillis() - lastRefresh >= MIN_REFRESH_INTERVAL) {
+            refresh();
+        }
+    }
+
+    private List<Entry> sortedEntries() {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparing(entry -> entry.name));
+        return sorted;
+    }
+
+    private void rebuildTree() {
+        MessageDigest[] buckets = new MessageDigest[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = sha256();
+        }
+        for (Entry entry : sortedEntries()) {
+            String leaf = entry.name + '\0' + entry.size + '\0' + entry.hash + '\n';
+            buckets[bucketOf(entry.name)].update(leaf.getBytes(StandardCharsets.UTF_8));
+        }
+
+        MessageDigest rootDigest = sha256();
+        String[] hashes = new String[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            hashes[i] = toHex(buckets[i].digest());
+            rootDigest.update(hashes[i].getBytes(StandardCharsets.US_ASCII));
+        }
+        bucketHashes = hashes;
+        root = toHex(rootDigest.digest());
+    }
+
+    static String hashFile(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
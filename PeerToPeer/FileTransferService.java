@@ -0,0 +1,487 @@
+package PeerToPeer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP endpoint that serves files from a home directory.
+ *
+ * File bytes go from the page cache to the socket with FileChannel.transferTo, so large
+ * transfers never pass through the heap, and downloads land in the target file with
+ * transferFrom. Requests name a byte range, which lets an interrupted download resume and
+ * lets several sources each serve part of one file. At most maxConcurrent transfers run at
+ * once; further connections are refused with BUSY so the caller can try another source.
+ * Connections are served by at most twice that many threads, and one that sends nothing for
+ * REQUEST_TIMEOUT is closed, so idle or slow connections cannot hold threads or slots.
+ *
+ * Wire format, one request per line on a connection that may carry several:
+ *   request   "GET offset length name\n"    (length -1 reads to the end of the file)
+ *   response  "OK size offset count\n" followed by count bytes, or "ERR reason\n"
+ *   request   "CHUNKS chunkSize name\n"
+ *   response  "OK size chunkSize count\n" followed by count 32-byte SHA-256 digests
+ */
+public class FileTransferService implements Closeable {
+    private static final int MAX_LINE = 1024;
+    private static final long ACCEPT_WAIT = 2000; // How long a connection may wait for a free slot
+    private static final int REQUEST_TIMEOUT = 10000; // ms a connection may take to send a request line
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CACHED_CHUNK_LISTS = 64;
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private final Path root;
+    private final ServerSocketChannel serverChannel;
+    private final Semaphore slots;
+    private final ExecutorService workers;
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong transfers = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final ConcurrentHashMap<String, ChunkList> chunkCache = new ConcurrentHashMap<>(); // name/chunkSize
+    private volatile boolean running = true;
+
+    public FileTransferService(String homeDirectory, InetSocketAddress bindAddress, int maxConcurrent) throws IOException {
+        this.root = Paths.get(homeDirectory).toAbsolutePath().normalize();
+        this.slots = new Semaphore(Math.max(1, maxConcurrent));
+        int maxThreads = 2 * Math.max(1, maxConcurrent); // Room for connections still sending their request
+        this.workers = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "file-transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(bindAddress);
+    }
+
+    /**
+     * Starts accepting connections on the given executor.
+     */
+    public void start(ExecutorService executor) {
+        executor.execute(this::acceptConnections);
+    }
+
+    public int getPort() { return serverChannel.socket().getLocalPort(); }
+
+    public long getBytesSent() { return bytesSent.get(); }
+
+    public long getTransferCount() { return transfers.get(); }
+
+    /**
+     * Average rate while sending, in MB/s, across all completed transfers.
+     */
+    public double getThroughputMBps() {
+        long nanos = busyNanos.get();
+        return nanos == 0 ? 0 : bytesSent.get() / 1e6 / (nanos / 1e9);
+    }
+
+    private void acceptConnections() {
+        while (running) {
+            SocketChannel connection;
+            try {
+                connection = serverChannel.accept();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("File transfer endpoint stopped: " + e.getMessage());
+                }
+                return;
+            }
+            try {
+                workers.execute(() -> serve(connection));
+            } catch (RejectedExecutionException e) {
+                refuse(connection);
+            }
+        }
+    }
+
+    private void refuse(SocketChannel connection) {
+        try (SocketChannel channel = connection) {
+            writeLine(channel, "ERR BUSY");
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void serve(SocketChannel connection) {
+        boolean acquired = false;
+        try (SocketChannel channel = connection) {
+            // Reads through the socket's stream, which unlike the channel honours SO_TIMEOUT
+            channel.socket().setSoTimeout(REQUEST_TIMEOUT);
+            InputStream in = channel.socket().getInputStream();
+            String request = readRequest(in);
+            if (request == null) {
+                return;
+            }
+
+            acquired = slots.tryAcquire(ACCEPT_WAIT, TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                writeLine(channel, "ERR BUSY");
+                return;
+            }
+
+            do {
+                if (!handleRequest(channel, request)) {
+                    return;
+                }
+            } while ((request = readRequest(in)) != null);
+        } catch (IOException e) {
+            // The other side went away mid-transfer; it will ask again with a range
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (acquired) {
+                slots.release();
+            }
+        }
+    }
+
+    /**
+     * Serves one request. Returns false if the connection should be closed.
+     */
+    private boolean handleRequest(SocketChannel channel, String request) throws IOException {
+        if (request.startsWith("CHUNKS ")) {
+            return handleChunks(channel, request);
+        }
+
+        String[] parts = request.split(" ", 4);
+        if (parts.length < 4 || !parts[0].equals("GET")) {
+            writeLine(channel, "ERR BAD_REQUEST");
+            return false;
+        }
+
+        long offset;
+        long length;
+        try {
+            offset = Long.parseLong(parts[1]);
+            length = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            writeLine(channel, "ERR BAD_REQUEST");
+            return false;
+        }
+
+        Path file = resolve(parts[3]);
+        if (file == null) {
+            writeLine(channel, "ERR NOT_FOUND");
+            return true;
+        }
+
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = source.size();
+            if (offset < 0 || offset > size) {
+                writeLine(channel, "ERR BAD_RANGE");
+                return true;
+            }
+            long count = length < 0 ? size - offset : Math.min(length, size - offset);
+            writeLine(channel, "OK " + size + " " + offset + " " + count);
+
+            long start = System.nanoTime();
+            long sent = 0;
+            while (sent < count) {
+                long n = source.transferTo(offset + sent, count - sent, channel);
+                if (n <= 0) {
+                    throw new EOFException("File shrank while sending " + file);
+                }
+                sent += n;
+            }
+            record(parts[3], sent, System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the chunk digests of a file, computed once per size and mtime.
+     */
+    private boolean handleChunks(SocketChannel channel, String request) throws IOException {
+        String[] parts = request.split(" ", 3);
+        int chunkSize;
+        try {
+            chunkSize = parts.length == 3 ? Integer.parseInt(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            chunkSize = -1;
+        }
+        if (chunkSize < MIN_CHUNK_SIZE) {
+            writeLine(channel, "ERR BAD_REQUEST");
+            return false;
+        }
+
+        Path file = resolve(parts[2]);
+        if (file == null) {
+            writeLine(channel, "ERR NOT_FOUND");
+            return true;
+        }
+
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        String key = parts[2] + "/" + chunkSize;
+        ChunkList chunks = chunkCache.get(key);
+        if (chunks == null || chunks.fileSize != size || chunks.modified != modified) {
+            chunks = new ChunkList(size, chunkSize, modified, hashChunks(file, chunkSize));
+            if (chunkCache.size() >= MAX_CACHED_CHUNK_LISTS) {
+                chunkCache.clear();
+            }
+            chunkCache.put(key, chunks);
+        }
+
+        writeLine(channel, "OK " + chunks.fileSize + " " + chunks.chunkSize + " " + chunks.getChunkCount());
+        ByteBuffer digests = ByteBuffer.wrap(chunks.digests);
+        while (digests.hasRemaining()) {
+            channel.write(digests);
+        }
+        return true;
+    }
+
+    /**
+     * Resolves a requested name inside the home directory, or returns null if it is not a
+     * regular file there. Symbolic links are followed first, so none can lead outside it.
+     */
+    private Path resolve(String name) {
+        try {
+            Path realRoot = root.toRealPath();
+            Path file = root.resolve(name).toRealPath();
+            if (!file.startsWith(realRoot) || file.equals(realRoot) || !Files.isRegularFile(file)) {
+                return null;
+            }
+            return file;
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hashes a file in fixed-size chunks. Returns the 32-byte SHA-256 digests back to back.
+     */
+    static byte[] hashChunks(Path file, int chunkSize) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+            ByteArrayOutputStream digests = new ByteArrayOutputStream(chunks * 32);
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                long position = (long) chunk * chunkSize;
+                long end = Math.min(size, position + chunkSize);
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    int n = channel.read(buffer, position);
+                    if (n < 0) {
+                        throw new EOFException("File shrank while hashing " + file);
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                    position += n;
+                }
+                digests.write(digest.digest()); // Also resets the digest for the next chunk
+            }
+            return digests.toByteArray();
+        }
+    }
+
+    private void record(String name, long bytes, long nanos) {
+        bytesSent.addAndGet(bytes);
+        busyNanos.addAndGet(nanos);
+        transfers.incrementAndGet();
+        if (bytes > 0) {
+            System.out.printf("[Transfer] Sent %s (%d bytes) in %.1f ms, %.1f MB/s%n",
+                    name, bytes, nanos / 1e6, bytes / 1e6 / (Math.max(1, nanos) / 1e9));
+        }
+    }
+
+    /**
+     * Result of a fetch: the full size of the remote file and the bytes written.
+     */
+    public static class Range {
+        public final long fileSize;
+        public final long offset;
+        public final long count;
+
+        Range(long fileSize, long offset, long count) {
+            this.fileSize = fileSize;
+            this.offset = offset;
+            this.count = count;
+        }
+    }
+
+    /**
+     * SHA-256 of every fixed-size chunk of a file, for verifying pieces fetched from
+     * different sources.
+     */
+    public static class ChunkList {
+        public final long fileSize;
+        public final int chunkSize;
+        final long modified;
+        final byte[] digests;
+
+        ChunkList(long fileSize, int chunkSize, long modified, byte[] digests) {
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.modified = modified;
+            this.digests = digests;
+        }
+
+        public int getChunkCount() { return digests.length / 32; }
+
+        public long offsetOf(int chunk) { return (long) chunk * chunkSize; }
+
+        public int lengthOf(int chunk) { return (int) Math.min(chunkSize, fileSize - offsetOf(chunk)); }
+
+        public boolean matches(int chunk, byte[] digest) {
+            return digest.length == 32 && Arrays.equals(digests, chunk * 32, chunk * 32 + 32, digest, 0, 32);
+        }
+    }
+
+    /**
+     * Asks a source for the chunk digests of a file.
+     */
+    public static ChunkList fetchChunkList(InetSocketAddress source, String name, int chunkSize) throws IOException {
+        try (SocketChannel channel = SocketChannel.open()) {
+            channel.socket().connect(source, 5000);
+            writeLine(channel, "CHUNKS " + chunkSize + " " + name);
+
+            ByteBuffer overflow = ByteBuffer.allocate(MAX_LINE);
+            String header = readLine(channel, overflow);
+            String[] parts = header != null ? header.split(" ") : new String[0];
+            if (parts.length < 4 || !parts[0].equals("OK")) {
+                throw new IOException("Chunk list of " + name + " refused: " + header);
+            }
+            long size = Long.parseLong(parts[1]);
+            int count = Integer.parseInt(parts[3]);
+            if (count != (size + chunkSize - 1) / chunkSize) {
+                throw new IOException("Chunk list of " + name + " does not match its size");
+            }
+
+            ByteBuffer digests = ByteBuffer.allocate(count * 32);
+            int fromHeader = Math.min(overflow.remaining(), digests.remaining());
+            digests.put(overflow.array(), overflow.position(), fromHeader);
+            while (digests.hasRemaining()) {
+                if (channel.read(digests) < 0) {
+                    throw new EOFException("Connection closed while reading the chunk list of " + name);
+                }
+            }
+            return new ChunkList(size, chunkSize, 0, digests.array());
+        }
+    }
+
+    /**
+     * Fetches a byte range of a remote file into target at the given position. A length of
+     * -1 reads to the end, 0 only asks for the size.
+     */
+    public static Range fetch(InetSocketAddress source, String name, long offset, long length,
+                              FileChannel target, long position) throws IOException {
+        try (SocketChannel channel = SocketChannel.open()) {
+            channel.socket().connect(source, 5000);
+            return fetch(channel, name, offset, length, target, position);
+        }
+    }
+
+    /**
+     * Same as the above over an already open connection, so several ranges can share it.
+     */
+    public static Range fetch(SocketChannel channel, String name, long offset, long length,
+                              FileChannel target, long position) throws IOException {
+        if (name.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("File name contains a newline");
+        }
+        writeLine(channel, "GET " + offset + " " + length + " " + name);
+
+        // The header read may also pick up the first bytes of the body
+        ByteBuffer overflow = ByteBuffer.allocate(MAX_LINE);
+        String header = readLine(channel, overflow);
+        if (header == null) {
+            throw new EOFException("Connection closed before a response for " + name);
+        }
+        String[] parts = header.split(" ");
+        if (!parts[0].equals("OK") || parts.length < 4) {
+            throw new IOException("Fetch of " + name + " refused: " + header);
+        }
+        long size = Long.parseLong(parts[1]);
+        long count = Long.parseLong(parts[3]);
+
+        long received = 0;
+        while (overflow.hasRemaining() && received < count) {
+            int limit = (int) Math.min(overflow.remaining(), count - received);
+            ByteBuffer slice = overflow.duplicate();
+            slice.limit(slice.position() + limit);
+            received += target.write(slice, position + received);
+            overflow.position(overflow.position() + limit);
+        }
+        while (received < count) {
+            long n = target.transferFrom(channel, position + received, count - received);
+            if (n <= 0) {
+                throw new EOFException("Connection closed after " + received + " of " + count + " bytes of " + name);
+            }
+            received += n;
+        }
+        return new Range(size, Long.parseLong(parts[2]), received);
+    }
+
+    private static void writeLine(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a request line a byte at a time, so nothing after it is consumed. Returns null at
+     * end of stream.
+     */
+    private static String readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (line.size() < MAX_LINE) {
+            int b = in.read();
+            if (b < 0) {
+                return null;
+            }
+            if (b == '\n') {
+                return line.toString(StandardCharsets.UTF_8.name());
+            }
+            line.write(b);
+        }
+        throw new IOException("Request line too long");
+    }
+
+    /**
+     * Reads a response line. Bytes after the newline are left in overflow, ready to read.
+     * Returns null at end of stream.
+     */
+    private static String readLine(SocketChannel channel, ByteBuffer overflow) throws IOException {
+        ByteBuffer buffer = overflow;
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (line.size() < MAX_LINE) {
+            buffer.clear();
+            if (channel.read(buffer) < 0) {
+                return null;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    return line.toString(StandardCharsets.UTF_8.name());
+                }
+                line.write(b);
+            }
+        }
+        throw new IOException("Request line too long");
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        workers.shutdownNow();
+    }
+}
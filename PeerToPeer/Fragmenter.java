@@ -0,0 +1,100 @@
+package PeerToPeer;
+
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits encoded messages that do not fit in one datagram into numbered fragments.
+ *
+ * Fragment layout: format (0x03), fragment id, index, count, followed by a slice of the
+ * encoded Protocol. Messages that already fit are sent unchanged, so small heartbeats
+ * cost nothing extra and can still be read by nodes that do not reassemble.
+ */
+public class Fragmenter {
+    public static final byte FRAGMENT_FORMAT = 0x03;
+
+    // Format, fragment id, index, count
+    public static final int FRAGMENT_HEADER_SIZE = 1 + Integer.BYTES + Short.BYTES * 2;
+
+    // 1500-byte Ethernet MTU minus the IPv4 and UDP headers. Receive buffers are sized to this.
+    public static final int MAX_DATAGRAM_SIZE = 1472;
+    private static final int MIN_DATAGRAM_SIZE = 548; // 576-byte minimum IPv4 MTU minus headers
+    private static final int IP_UDP_OVERHEAD = 28;
+    private static final int MAX_FRAGMENTS = 0xFFFF;
+
+    private static final AtomicInteger nextFragmentId = new AtomicInteger(new Random().nextInt());
+
+    private final int datagramSize;
+
+    public Fragmenter() {
+        this(MAX_DATAGRAM_SIZE);
+    }
+
+    public Fragmenter(int datagramSize) {
+        this.datagramSize = Math.max(MIN_DATAGRAM_SIZE, Math.min(datagramSize, MAX_DATAGRAM_SIZE));
+    }
+
+    /**
+     * Sizes datagrams to the MTU of the interface owning the given local address, never
+     * exceeding MAX_DATAGRAM_SIZE so every receiver's buffer can hold them.
+     */
+    public static Fragmenter forLocalAddress(InetAddress localAddress) {
+        try {
+            NetworkInterface nic = localAddress != null ? NetworkInterface.getByInetAddress(localAddress) : null;
+            if (nic != null && nic.getMTU() > 0) {
+                return new Fragmenter(nic.getMTU() - IP_UDP_OVERHEAD);
+            }
+        } catch (SocketException e) {
+            System.err.println("Could not read MTU for " + localAddress + ", using " + MAX_DATAGRAM_SIZE);
+        }
+        return new Fragmenter();
+    }
+
+    public int getDatagramSize() { return datagramSize; }
+
+    /**
+     * The most fragments any Fragmenter splits a message of messageSize bytes into, which is
+     * at the smallest datagram size.
+     */
+    public static int maxFragments(long messageSize) {
+        long chunkSize = MIN_DATAGRAM_SIZE - FRAGMENT_HEADER_SIZE;
+        return (int) Math.min(MAX_FRAGMENTS, (messageSize + chunkSize - 1) / chunkSize);
+    }
+
+    public static boolean isFragment(byte[] data, int offset, int length) {
+        return length >= FRAGMENT_HEADER_SIZE && data[offset] == FRAGMENT_FORMAT;
+    }
+
+    /**
+     * Returns the datagrams needed to carry the message, filling each one to the datagram size.
+     */
+    public List<byte[]> split(byte[] message) {
+        if (message.length <= datagramSize) {
+            return Collections.singletonList(message);
+        }
+
+        int chunkSize = datagramSize - FRAGMENT_HEADER_SIZE;
+        int count = (message.length + chunkSize - 1) / chunkSize;
+        if (count > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Message too large to fragment: " + message.length + " bytes");
+        }
+
+        int fragmentId = nextFragmentId.getAndIncrement();
+        List<byte[]> fragments = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            int start = index * chunkSize;
+            int size = Math.min(chunkSize, message.length - start);
+
+            ByteBuffer buffer = ByteBuffer.allocate(FRAGMENT_HEADER_SIZE + size);
+            buffer.put(FRAGMENT_FORMAT);
+            buffer.putInt(fragmentId);
+            buffer.putShort((short) index);
+            buffer.putShort((short) count);
+            buffer.put(message, start, size);
+            fragments.add(buffer.array());
+        }
+        return fragments;
+    }
+}
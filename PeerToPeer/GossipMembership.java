@@ -0,0 +1,500 @@
+package PeerToPeer;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * SWIM-style membership: instead of every peer heartbeating every other peer, each
+ * protocol period probes one member.
+ *
+ * Targets are taken round-robin from a shuffled member list. A probe that is not
+ * acknowledged within the probe timeout is retried indirectly through k other members,
+ * and if that also fails the target becomes SUSPECT. A suspect that does not refute within
+ * the suspicion timeout becomes DEAD. A member refutes a suspicion about itself by raising
+ * its incarnation number.
+ *
+ * State changes are not sent on their own. They ride on probe traffic, and each is
+ * repeated about RETRANSMIT_MULTIPLIER * log2(N) times, so an update reaches every member
+ * in O(log N) periods while each node still sends a constant number of messages per
+ * period. Alive updates also carry the member's listing stamp, so peers learn that a
+ * listing changed and can pull just that member's delta.
+ *
+ * Payloads are a sequence number line, for PING_REQ a target line, then update lines:
+ *   "A|S|D TAB ip:port TAB incarnation TAB listingStamp"
+ */
+public class GossipMembership {
+    public static final int ALIVE = 0;
+    public static final int SUSPECT = 1;
+    public static final int DEAD = 2;
+    private static final String[] STATE_CODES = {"A", "S", "D"};
+    private static final int RETRANSMIT_MULTIPLIER = 3;
+    private static final int SUSPICION_MULTIPLIER = 4;
+    private static final int MAX_PIGGYBACK_BYTES = 1000; // Keeps gossip messages in one datagram
+
+    /**
+     * Sends a gossip message to a member.
+     */
+    public interface Sender {
+        void send(InetSocketAddress target, Protocol message) throws IOException;
+    }
+
+    /**
+     * Told when a member changes state or advertises a newer listing.
+     */
+    public interface Listener {
+        void memberChanged(Member member, boolean listingChanged);
+    }
+
+    /**
+     * What this node believes about one other member.
+     */
+    public static class Member {
+        public final String key; // ip:port
+        public final InetSocketAddress address;
+        private volatile int state = ALIVE;
+        private volatile long incarnation;
+        private volatile long listingStamp;
+        private volatile long stateSince = System.currentTimeMillis();
+
+        Member(String key, InetSocketAddress address) {
+            this.key = key;
+            this.address = address;
+        }
+
+        public int getState() { return state; }
+        public long getIncarnation() { return incarnation; }
+        public long getListingStamp() { return listingStamp; }
+        public long getStateSince() { return stateSince; }
+
+        public String describeState() { return state == ALIVE ? "alive" : state == SUSPECT ? "suspect" : "dead"; }
+    }
+
+    private final String selfKey;
+    private final int selfPort;
+    private final String nodeId;
+    private final Sender sender;
+    private final Listener listener;
+    private final LongSupplier listingStamp;
+    private final long protocolPeriod;
+    private final long probeTimeout;
+    private final int indirectProbes;
+
+    private final ConcurrentHashMap<String, Member> members = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<String, Update> updates = new HashMap<>(); // Latest update per member, guarded by itself
+    private final ConcurrentHashMap<String, Boolean> selfKeys = new ConcurrentHashMap<>();
+    private final AtomicInteger sequence = new AtomicInteger();
+    private final Random random = new Random();
+    private final List<Member> probeOrder = new ArrayList<>();
+    private int probeIndex;
+    private volatile long incarnation;
+    private long advertisedStamp = -1;
+    private volatile boolean running = true;
+
+    public GossipMembership(String selfKey, String nodeId, Sender sender, Listener listener, LongSupplier listingStamp,
+                            long protocolPeriod, long probeTimeout, int indirectProbes) {
+        this.selfKey = selfKey;
+        this.selfPort = Integer.parseInt(selfKey.substring(selfKey.lastIndexOf(':') + 1));
+        this.nodeId = nodeId;
+        this.sender = sender;
+        this.listener = listener;
+        this.listingStamp = listingStamp;
+        this.protocolPeriod = protocolPeriod;
+        this.probeTimeout = Math.min(probeTimeout, protocolPeriod / 2);
+        this.indirectProbes = indirectProbes;
+    }
+
+    /**
+     * Adds a seed member, e.g. from the static config. Seeds are probed like anyone else and
+     * spread the rest of the membership.
+     */
+    public void addSeed(String ipAddress, int port) {
+        String key = ipAddress + ":" + port;
+        if (!isSelf(key)) {
+            members.computeIfAbsent(key, k -> new Member(k, new InetSocketAddress(ipAddress, port)));
+        }
+    }
+
+    public Collection<Member> getMembers() { return Collections.unmodifiableCollection(members.values()); }
+
+    public Member getMember(String key) { return members.get(key); }
+
+    public boolean isAlive(String key) {
+        Member member = members.get(key);
+        return member != null && member.state == ALIVE;
+    }
+
+    /**
+     * Schedules one protocol period every protocolPeriod ms until close().
+     */
+    public void start(NodeRuntime runtime) {
+        runtime.scheduleAtFixedRate("gossip", this::runPeriod, protocolPeriod, protocolPeriod, 0);
+    }
+
+    /**
+     * One protocol period. The probe waits at most until the period is over, so runs do
+     * not spill into the next one.
+     */
+    private void runPeriod() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        long periodStart = System.currentTimeMillis();
+        advertiseListingIfChanged();
+        Member target = nextProbeTarget();
+        if (target != null) {
+            probe(target, periodStart);
+        }
+        expireSuspects();
+    }
+
+    private void probe(Member target, long periodStart) throws InterruptedException {
+        int seq = sequence.incrementAndGet();
+        Pending probe = new Pending(null, 0);
+        pending.put(seq, probe);
+        try {
+            send(target.address, Protocol.TYPE_GOSSIP_PING, seq + "\n");
+            if (probe.await(probeTimeout)) {
+                return;
+            }
+
+            // No direct answer: ask k others to probe on our behalf
+            List<Member> helpers = randomMembers(indirectProbes, target);
+            for (Member helper : helpers) {
+                send(helper.address, Protocol.TYPE_GOSSIP_PING_REQ, seq + "\n" + target.key + "\n");
+            }
+            long left = protocolPeriod - (System.currentTimeMillis() - periodStart);
+            if (probe.await(Math.max(0, left))) {
+                return;
+            }
+            suspect(target);
+        } finally {
+            pending.remove(seq);
+        }
+    }
+
+    /**
+     * Handles a gossip message from another member.
+     */
+    public void handle(InetSocketAddress from, Protocol message) {
+        String[] lines = message.getPayload().split("\n");
+        int seq;
+        try {
+            seq = Integer.parseInt(lines[0]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        // Anyone who talks to us is alive and a member, even if no seed mentioned them
+        String fromKey = from.getAddress().getHostAddress() + ":" + from.getPort();
+        Member sender = members.get(fromKey);
+        if (sender == null && !isSelf(fromKey)) {
+            Member joined = members.computeIfAbsent(fromKey, k -> new Member(k, from));
+            enqueue(joined);
+            listener.memberChanged(joined, false);
+        } else if (sender != null && sender.state == DEAD) {
+            enqueue(sender); // A restarted member hears it was declared dead and refutes
+        }
+
+        int type = message.getType();
+        int firstUpdate = type == Protocol.TYPE_GOSSIP_PING_REQ ? 2 : 1;
+        for (int i = firstUpdate; i < lines.length; i++) {
+            apply(lines[i]);
+        }
+
+        if (type == Protocol.TYPE_GOSSIP_PING) {
+            send(from, Protocol.TYPE_GOSSIP_ACK, seq + "\n");
+        } else if (type == Protocol.TYPE_GOSSIP_PING_REQ && lines.length > 1) {
+            Member target = members.get(lines[1]);
+            if (target != null) {
+                int relaySeq = sequence.incrementAndGet();
+                Pending relay = new Pending(from, seq);
+                pending.put(relaySeq, relay);
+                send(target.address, Protocol.TYPE_GOSSIP_PING, relaySeq + "\n");
+                // Relays that never get an answer are dropped after one period
+                CompletableFuture.delayedExecutor(protocolPeriod, TimeUnit.MILLISECONDS)
+                        .execute(() -> pending.remove(relaySeq, relay));
+            }
+        } else if (type == Protocol.TYPE_GOSSIP_ACK) {
+            Pending waiting = pending.remove(seq);
+            if (waiting != null) {
+                waiting.acknowledged.countDown();
+                if (waiting.requester != null) {
+                    send(waiting.requester, Protocol.TYPE_GOSSIP_ACK, waiting.requesterSeq + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies one piggybacked update using the SWIM precedence rules.
+     */
+    private void apply(String line) {
+        String[] fields = line.split("\t");
+        if (fields.length < 4) {
+            return;
+        }
+        int state = Arrays.asList(STATE_CODES).indexOf(fields[0]);
+        long updateIncarnation;
+        long stamp;
+        try {
+            updateIncarnation = Long.parseLong(fields[2]);
+            stamp = Long.parseLong(fields[3]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (state < 0) {
+            return;
+        }
+
+        String key = fields[1];
+        if (isSelf(key)) {
+            if (state != ALIVE && updateIncarnation >= incarnation) {
+                incarnation = updateIncarnation + 1; // Refute: we are alive at a newer incarnation
+                enqueueSelf();
+            }
+            return;
+        }
+
+        Member member = members.get(key);
+        boolean joined = false;
+        if (member == null) {
+            if (state == DEAD) {
+                return; // Nothing to forget
+            }
+            int colon = key.lastIndexOf(':');
+            try {
+                InetSocketAddress address = new InetSocketAddress(key.substring(0, colon),
+                        Integer.parseInt(key.substring(colon + 1)));
+                Member created = new Member(key, address);
+                member = members.putIfAbsent(key, created);
+                if (member == null) {
+                    member = created;
+                    joined = true; // Passed on below like any other news
+                }
+            } catch (RuntimeException e) {
+                return;
+            }
+        }
+
+        boolean changed = joined;
+        boolean listingChanged = false;
+        synchronized (member) {
+            boolean overrides;
+            if (state == ALIVE) {
+                overrides = updateIncarnation > member.incarnation;
+            } else if (state == SUSPECT) {
+                overrides = member.state == ALIVE ? updateIncarnation >= member.incarnation
+                        : member.state == SUSPECT && updateIncarnation > member.incarnation;
+            } else {
+                overrides = member.state != DEAD;
+            }
+
+            if (overrides) {
+                changed = member.state != state;
+                member.state = state;
+                member.incarnation = updateIncarnation;
+                member.stateSince = System.currentTimeMillis();
+            }
+            if (member.state != DEAD && updateIncarnation >= member.incarnation && stamp > member.listingStamp) {
+                member.listingStamp = stamp;
+                listingChanged = true;
+            }
+            if (overrides || listingChanged || joined) {
+                enqueue(member);
+            }
+        }
+        if (changed || listingChanged) {
+            listener.memberChanged(member, listingChanged);
+        }
+    }
+
+    private void suspect(Member member) {
+        synchronized (member) {
+            if (member.state != ALIVE) {
+                return;
+            }
+            member.state = SUSPECT;
+            member.stateSince = System.currentTimeMillis();
+            enqueue(member);
+        }
+        listener.memberChanged(member, false);
+    }
+
+    /**
+     * Declares suspects dead once they have had long enough to refute. The timeout grows
+     * with log N, since that is how long the suspicion takes to reach them.
+     */
+    private void expireSuspects() {
+        long timeout = SUSPICION_MULTIPLIER * protocolPeriod * Math.max(1, log2(members.size() + 1));
+        long now = System.currentTimeMillis();
+        for (Member member : members.values()) {
+            boolean died = false;
+            synchronized (member) {
+                if (member.state == SUSPECT && now - member.stateSince >= timeout) {
+                    member.state = DEAD;
+                    member.stateSince = now;
+                    enqueue(member);
+                    died = true;
+                }
+            }
+            if (died) {
+                listener.memberChanged(member, false);
+            }
+        }
+    }
+
+    private void advertiseListingIfChanged() {
+        long stamp = listingStamp.getAsLong();
+        if (stamp != advertisedStamp) {
+            advertisedStamp = stamp;
+            enqueueSelf();
+        }
+    }
+
+    private Member nextProbeTarget() {
+        if (probeIndex >= probeOrder.size()) {
+            probeOrder.clear();
+            for (Member member : members.values()) {
+                if (member.state != DEAD) {
+                    probeOrder.add(member);
+                }
+            }
+            Collections.shuffle(probeOrder, random);
+            probeIndex = 0;
+        }
+        while (probeIndex < probeOrder.size()) {
+            Member member = probeOrder.get(probeIndex++);
+            if (member.state != DEAD) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    private List<Member> randomMembers(int count, Member excluded) {
+        List<Member> candidates = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member != excluded && member.state == ALIVE) {
+                candidates.add(member);
+            }
+        }
+        Collections.shuffle(candidates, random);
+        return candidates.subList(0, Math.min(count, candidates.size()));
+    }
+
+    private void send(InetSocketAddress target, int type, String header) {
+        StringBuilder payload = new StringBuilder(header);
+        appendPiggyback(payload);
+        Protocol message = new Protocol(1, true, nodeId, System.currentTimeMillis(), 0, payload.toString());
+        message.setType(type);
+        try {
+            sender.send(target, message);
+        } catch (IOException e) {
+            // Unreachable targets are handled by the probe timeouts
+        }
+    }
+
+    /**
+     * Adds the updates with the most retransmissions left, within the datagram budget.
+     */
+    private void appendPiggyback(StringBuilder payload) {
+        synchronized (updates) {
+            if (updates.isEmpty()) {
+                return;
+            }
+            List<Update> queued = new ArrayList<>(updates.values());
+            queued.sort((a, b) -> Integer.compare(b.transmitsLeft, a.transmitsLeft));
+            for (Update update : queued) {
+                if (payload.length() + update.line.length() > MAX_PIGGYBACK_BYTES) {
+                    break;
+                }
+                payload.append(update.line).append('\n');
+                if (--update.transmitsLeft <= 0) {
+                    updates.remove(update.key, update);
+                }
+            }
+        }
+    }
+
+    private void enqueue(Member member) {
+        queueUpdate(member.key, STATE_CODES[member.state] + "\t" + member.key + "\t" + member.incarnation
+                + "\t" + member.listingStamp);
+    }
+
+    private void enqueueSelf() {
+        queueUpdate(selfKey, "A\t" + selfKey + "\t" + incarnation + "\t" + listingStamp.getAsLong());
+    }
+
+    private void queueUpdate(String key, String line) {
+        int transmits = RETRANSMIT_MULTIPLIER * Math.max(1, log2(members.size() + 1));
+        synchronized (updates) {
+            updates.put(key, new Update(key, line, transmits)); // Replaces any older news about the member
+        }
+    }
+
+    /**
+     * Recognises updates about this node under any of its local addresses.
+     */
+    private boolean isSelf(String key) {
+        if (key.equals(selfKey)) {
+            return true;
+        }
+        int colon = key.lastIndexOf(':');
+        if (colon < 0 || !key.substring(colon + 1).equals(Integer.toString(selfPort))) {
+            return false;
+        }
+        // Interface lookups are slow and every update line is checked, so remember the answer
+        return selfKeys.computeIfAbsent(key, k -> {
+            try {
+                InetAddress address = InetAddress.getByName(k.substring(0, colon));
+                return address.isLoopbackAddress() || address.isAnyLocalAddress()
+                        || NetworkInterface.getByInetAddress(address) != null;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    private static int log2(int n) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(1, n) - 1); // Rounded up
+    }
+
+    public void close() {
+        running = false;
+    }
+
+    /**
+     * A probe waiting for its ack; for relayed probes, who to forward the ack to.
+     */
+    private static class Pending {
+        final CountDownLatch acknowledged = new CountDownLatch(1);
+        final InetSocketAddress requester;
+        final int requesterSeq;
+
+        Pending(InetSocketAddress requester, int requesterSeq) {
+            this.requester = requester;
+            this.requesterSeq = requesterSeq;
+        }
+
+        boolean await(long millis) throws InterruptedException {
+            return acknowledged.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static class Update {
+        final String key;
+        final String line;
+        int transmitsLeft;
+
+        Update(String key, String line, int transmitsLeft) {
+            this.key = key;
+            this.line = line;
+            this.transmitsLeft = transmitsLeft;
+        }
+    }
+}
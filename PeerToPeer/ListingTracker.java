@@ -0,0 +1,86 @@
+package PeerToPeer;
+
+import java.util.*;
+
+/**
+ * Sender side of delta heartbeats for one receiver.
+ *
+ * The listing generation follows the DirectoryIndex version. Heartbeats carry only the
+ * entries added and removed since the generation the receiver last acknowledged, read
+ * from the index's change log, and fall back to a full snapshot until an acknowledgement
+ * arrives, when the receiver reports a gap, or when the log no longer reaches back.
+ */
+public class ListingTracker {
+    private static final int MAX_UNACKED = 8; // Sent generations remembered while waiting for an ack
+
+    // Seeded from the clock so generations from before a restart are never mistaken for new ones
+    private final long generationBase;
+
+    private long ackedVersion = -1;
+    private final LinkedHashMap<Long, Long> unacked = new LinkedHashMap<>(); // generation -> index version
+
+    public ListingTracker() {
+        this(System.currentTimeMillis());
+    }
+
+    /**
+     * Trackers that share a base give the same generation for the same index version, so
+     * the generation can be advertised once to every receiver.
+     */
+    public ListingTracker(long generationBase) {
+        this.generationBase = generationBase;
+    }
+
+    /**
+     * Builds the next heartbeat from the index.
+     */
+    public synchronized Protocol nextHeartbeat(String nodeId, boolean mode, DirectoryIndex index) {
+        DirectoryIndex.Delta delta = ackedVersion >= 0 ? index.changesSince(ackedVersion) : null;
+
+        int type = Protocol.TYPE_LISTING_DELTA;
+        String payload = null;
+        long version = 0;
+        if (delta != null) {
+            version = delta.toVersion;
+            payload = FileListing.encodeDelta(generationBase + ackedVersion, generationBase + version,
+                    delta.added, delta.removed);
+        }
+
+        // The cached listing makes this comparison cheap; a snapshot wins after heavy churn
+        DirectoryIndex.Snapshot snapshot = index.snapshot();
+        if (payload == null || payload.length() > snapshot.listing.length()) {
+            version = snapshot.version;
+            type = Protocol.TYPE_LISTING_SNAPSHOT;
+            payload = FileListing.encodeSnapshot(generationBase + version, snapshot.listing);
+        }
+
+        unacked.put(generationBase + version, version);
+        Iterator<Long> eldest = unacked.keySet().iterator();
+        while (unacked.size() > MAX_UNACKED) {
+            eldest.next();
+            eldest.remove();
+        }
+
+        Protocol heartbeat = new Protocol(1, mode, nodeId, System.currentTimeMillis(), 0, payload);
+        heartbeat.setType(type);
+        return heartbeat;
+    }
+
+    /**
+     * Records the generation the receiver now holds. RESYNC forces a full snapshot next time.
+     */
+    public synchronized void acknowledge(long heldGeneration) {
+        if (heldGeneration == FileListing.RESYNC) {
+            ackedVersion = -1;
+            return;
+        }
+
+        Long version = unacked.get(heldGeneration);
+        if (version == null) {
+            return; // Too old or already acknowledged
+        }
+
+        ackedVersion = version;
+        unacked.keySet().removeIf(sent -> sent < heldGeneration);
+    }
+}
@@ -0,0 +1,246 @@
+package PeerToPeer;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The threads of one node, with a start and an end.
+ *
+ * Periodic work runs on a schedule anchored to when it started: each run is due at
+ * start + k * period, plus an optional random jitter, so the period does not drift by
+ * however long a run takes. Runs never overlap; if one overruns, the next starts right
+ * after it and slots that were missed entirely are skipped. Run bodies and blocking I/O
+ * loops execute on virtual threads when the JVM has them, so the single scheduler thread
+ * only dispatches. A task that throws is reported with its name and keeps its schedule.
+ *
+ * close() stops scheduling, lets runs in progress finish for a bounded time, then closes
+ * the registered resources (usually sockets) so blocking loops return, and interrupts
+ * whatever is left when the drain time is up.
+ */
+public class NodeRuntime implements Closeable {
+    public static final long DEFAULT_DRAIN = 2000; // ms
+
+    /**
+     * A unit of periodic work. Exceptions are reported and the schedule continues.
+     */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private final String name;
+    private final long drainMillis;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ExecutorService executor;
+    private final List<Periodic> periodics = new CopyOnWriteArrayList<>();
+    private final Deque<Closeable> resources = new ConcurrentLinkedDeque<>();
+    private final Metrics.Counter taskFailures = Metrics.get().counter("tasks.failed");
+    private final Metrics.Counter skippedRuns = Metrics.get().counter("tasks.skipped");
+    private volatile boolean running = true;
+
+    /**
+     * @param name        prefix for thread names and error reports, e.g. "Server"
+     * @param drainMillis how long close() waits for work in progress
+     */
+    public NodeRuntime(String name, long drainMillis) {
+        this.name = name;
+        this.drainMillis = drainMillis;
+        // The scheduler thread is not a daemon, so it keeps the process up until close()
+        scheduler = new ScheduledThreadPoolExecutor(1, runnable -> new Thread(runnable, name + "-scheduler"));
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        scheduler.setRemoveOnCancelPolicy(true);
+        ExecutorService virtualThreads = newVirtualThreadExecutor();
+        executor = virtualThreads != null ? virtualThreads : Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, name + "-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns a virtual-thread-per-task executor on JVMs that have one (Java 21+), else null.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public boolean isRunning() { return running; }
+
+    /**
+     * The executor for blocking work, for components that start their own loops.
+     */
+    public ExecutorService getExecutor() { return executor; }
+
+    /**
+     * Runs a blocking loop, such as a receive loop, until it returns. The loop should check
+     * isRunning() and return once its socket is closed.
+     */
+    public void execute(String taskName, Runnable loop) {
+        executor.execute(() -> {
+            try {
+                loop.run();
+            } catch (RuntimeException e) {
+                report(taskName, e);
+            }
+        });
+    }
+
+    /**
+     * Runs the task every periodMillis, the first time after initialDelayMillis. Each run
+     * is delayed by a further random 0..jitterMillis, drawn anew every time.
+     */
+    public void scheduleAtFixedRate(String taskName, Task task, long initialDelayMillis, long periodMillis,
+                                    long jitterMillis) {
+        Periodic periodic = new Periodic(taskName, task, TimeUnit.MILLISECONDS.toNanos(periodMillis),
+                TimeUnit.MILLISECONDS.toNanos(jitterMillis));
+        periodics.add(periodic);
+        periodic.arm(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelayMillis));
+    }
+
+    /**
+     * Registers something to close on shutdown, after runs in progress have drained.
+     * Resources are closed in reverse order of registration.
+     */
+    public <T extends Closeable> T closeOnShutdown(T resource) {
+        resources.push(resource);
+        return resource;
+    }
+
+    @Override
+    public void close() {
+        close(drainMillis);
+    }
+
+    /**
+     * Shuts down within roughly drainMillis. Returns false if something had to be
+     * interrupted.
+     */
+    public boolean close(long drainMillis) {
+        if (!running) {
+            return true;
+        }
+        running = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        scheduler.shutdownNow(); // Only pending triggers; runs themselves are on the executor
+
+        // Let runs in progress finish, e.g. a heartbeat halfway through its sends
+        for (Periodic periodic : periodics) {
+            Future<?> current = periodic.current;
+            if (current != null) {
+                try {
+                    current.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException | ExecutionException | CancellationException e) {
+                    // Interrupted below
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        // Closing the sockets is what makes blocking receive loops return
+        Closeable resource;
+        while ((resource = resources.poll()) != null) {
+            try {
+                resource.close();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[" + name + "] Error while closing: " + e);
+            }
+        }
+
+        executor.shutdown();
+        boolean drained;
+        try {
+            drained = executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        if (!drained) {
+            executor.shutdownNow();
+            System.err.println("[" + name + "] Stopped without finishing all work within " + drainMillis + " ms.");
+        }
+        return drained;
+    }
+
+    private void report(String taskName, Exception e) {
+        taskFailures.increment();
+        if (e instanceof IOException) {
+            System.err.println("[" + name + "] " + taskName + " failed: " + e.getMessage());
+        } else {
+            System.err.println("[" + name + "] " + taskName + " failed:");
+            e.printStackTrace(); // Most likely a bug, so keep the trace
+        }
+    }
+
+    /**
+     * One scheduled task. The scheduler only hands each run to the executor; the next run
+     * is armed when the current one finishes, so runs cannot overlap.
+     */
+    private class Periodic implements Runnable {
+        final String taskName;
+        final Task task;
+        final long periodNanos;
+        final long jitterNanos;
+        long slot; // Start of the slot being run, in System.nanoTime()
+        volatile Future<?> current;
+
+        Periodic(String taskName, Task task, long periodNanos, long jitterNanos) {
+            this.taskName = taskName;
+            this.task = task;
+            this.periodNanos = Math.max(1, periodNanos);
+            this.jitterNanos = Math.max(0, jitterNanos);
+        }
+
+        void arm(long slotStart) {
+            slot = slotStart;
+            long jitter = jitterNanos > 0 ? ThreadLocalRandom.current().nextLong(jitterNanos) : 0;
+            try {
+                scheduler.schedule(this, Math.max(0, slot + jitter - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down meanwhile
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            try {
+                current = executor.submit(this::runOnce);
+            } catch (RejectedExecutionException e) {
+                // Shut down meanwhile
+            }
+        }
+
+        private void runOnce() {
+            try {
+                task.run();
+            } catch (InterruptedException e) {
+                return; // Shutting down
+            } catch (Exception e) {
+                report(taskName, e);
+            }
+            if (!running) {
+                return;
+            }
+
+            // The next slot, unless this run overran it by a whole period or more
+            long now = System.nanoTime();
+            long next = slot + periodNanos;
+            if (now - next >= periodNanos) {
+                long missed = (now - next) / periodNanos;
+                skippedRuns.add(missed);
+                next += missed * periodNanos;
+            }
+            arm(next);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package PeerToPeer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.*;
+
+/**
+ * Deflate compression for Protocol payloads, primed with a preset dictionary of the
+ * strings that show up in every listing and server update.
+ *
+ * Payloads below the threshold, or that do not shrink, are sent as-is.
+ */
+public class PayloadCompression {
+    public static final int THRESHOLD = 256; // Smaller payloads are not worth compressing
+    private static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024; // Refuse decompression bombs
+
+    // Deflate favours the end of the dictionary, so the most common strings come last
+    private static final byte[] DICTIONARY = (
+            ".jpg,.png,.gif,.mp3,.mp4,.zip,.csv,.xml,.json,.html,.docx,.java,.class,.pdf,.md,.log,"
+            + "ERROR: Could not create home directory!No files available."
+            + "Node (127.0.0.1): inactive\n"
+            + "file.txt,file1.txt,file2.txt,file3.txt,"
+            + "]\nNode (127.0.0.1): active, Files: [").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> deflaters =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * Returns the compressed form of the data, or null if compression does not pay off.
+     */
+    public static byte[] compress(byte[] data) {
+        if (data.length < THRESHOLD) {
+            return null;
+        }
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data);
+        deflater.finish();
+
+        byte[] output = new byte[data.length];
+        int size = 0;
+        while (!deflater.finished() && size < output.length) {
+            size += deflater.deflate(output, size, output.length - size);
+        }
+        return deflater.finished() ? Arrays.copyOf(output, size) : null;
+    }
+
+    public static byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+
+        byte[] output = new byte[Math.max(64, length * 4)];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    if (output.length >= MAX_INFLATED_SIZE) {
+                        throw new IOException("Compressed payload inflates beyond " + MAX_INFLATED_SIZE + " bytes");
+                    }
+                    output = Arrays.copyOf(output, Math.min(output.length * 2, MAX_INFLATED_SIZE));
+                }
+
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("Truncated compressed payload");
+                    }
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        }
+        return Arrays.copyOf(output, size);
+    }
+}
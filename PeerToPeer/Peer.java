@@ -6,22 +6,59 @@ import java.util.*;
 import java.util.concurrent.*;
 import PeerToPeer.*;
 
-public class Peer extends Node {
+public class Peer extends Node implements Closeable {
     private DatagramSocket socket;
-    private ExecutorService executorService;
+    private NodeRuntime runtime; // Scheduled tasks, receive loop and shutdown
+    private long heartbeatPeriod; // Heartbeats are due every period plus a random 0..jitter
+    private long heartbeatJitter;
+    private boolean console; // Read commands from stdin; off for peers embedded in another program
+    private boolean servingMetrics; // This peer started the metrics HTTP endpoint
+    private Fragmenter fragmenter;
+    private Reassembler reassembler;
     private List<Node> peers;
-    private Map<String, Long> lastHeartbeatTimes;
-    private volatile String lastPeerUpdate = "Waiting for peer updates...";
-    private static final int TIMEOUT = 30000; // 30s before marking a peer inactive
-    private static final int BUFFER_SIZE = 1024;
+    private PeerRegistry registry; // Every peer's liveness and listing, by nodeId:port
+    private Properties settings = new Properties(); // key=value lines from the config file
+    private Map<String, ListingTracker> listingTrackers; // Per-peer delta state, null when disabled
+    private DirectoryIndex directoryIndex; // Null if the home directory could not be created
+    private FileManifest fileManifest; // Content hashes of the home directory, null without an index
+    private Map<String, Map<String, String>> peerManifests; // ip:port -> file name -> content hash
+    private Map<String, List<Integer>> pendingManifestBuckets; // ip:port -> buckets last requested
+    private FileTransferService fileTransfer; // Serves the home directory over TCP
+    private final Map<String, Integer> transferPorts = new HashMap<>(); // ip:port -> TCP port, from the config
+    private SwarmDownloader swarmDownloader; // Fetches files from every peer that has them
+    private GossipMembership gossip; // Set in gossip membership mode instead of all-to-all heartbeats
+    private final long listingBase = System.currentTimeMillis(); // Shared generation base of our listing
+    private Map<String, Long> listingPullTimes; // ip:port -> when we last asked it for its listing
+    private boolean compressionEnabled;
+    private Set<String> compressionPeers; // ip:port of peers that can read compressed payloads
+    private static final int EXPECTED_INTERVAL = 15000; // Mean of the random 0-30s heartbeat delay
+    private PhiAccrualDetector<String> failureDetector; // Heartbeat rhythm per registry key
+    private double phiThreshold; // Suspicion level at which a peer is shown as inactive
+    private final Metrics metrics = Metrics.get();
+    private final Metrics.Counter packetsReceived = metrics.counter("packets.received");
+    private final Metrics.Counter bytesReceived = metrics.counter("bytes.received");
+    private final Metrics.Counter packetsSent = metrics.counter("packets.sent");
+    private final Metrics.Counter bytesSent = metrics.counter("bytes.sent");
+    private final Metrics.Counter unknownTypes = metrics.counter("packets.dropped.type"); // Not a type a peer handles
+    private final Metrics.Histogram heartbeatInterval = metrics.histogram("heartbeat.interarrival", "ms");
+    private static final int BUFFER_SIZE = Fragmenter.MAX_DATAGRAM_SIZE;
     private static final String CONFIG_FILE = "peer_config.properties"; // Default config file
 
     public Peer() {
+        this(CONFIG_FILE);
+        start();
+    }
+
+    /**
+     * Reads the given config file and binds the socket without starting any threads, so
+     * several peers can be embedded in one JVM. Call start() to begin and close() to stop.
+     */
+    public Peer(String configFile) {
         try {
             System.out.println("Peer is starting...");
 
             // Load configuration directly in peer
-            List<Node> nodes = readConfig();
+            List<Node> nodes = readConfig(configFile);
             if (nodes.isEmpty()) {
                 System.err.println("ERROR: No nodes found in configuration.");
                 System.exit(1);
@@ -39,41 +76,147 @@ public class Peer extends Node {
 
             // Initialize socket & structures
             //socket = new DatagramSocket(getPort(), InetAddress.getByName(getIpAddress()));
-            socket = new DatagramSocket(getPort());
-            executorService = Executors.newCachedThreadPool();
-            lastHeartbeatTimes = new ConcurrentHashMap<>();
+            runtime = new NodeRuntime("Peer", Long.parseLong(settings.getProperty("shutdown_drain",
+                    Long.toString(NodeRuntime.DEFAULT_DRAIN))));
+            heartbeatPeriod = Long.parseLong(settings.getProperty("heartbeat_interval", "15000"));
+            heartbeatJitter = Long.parseLong(settings.getProperty("heartbeat_jitter", "15000"));
+            console = Boolean.parseBoolean(settings.getProperty("console", "true"));
+            socket = runtime.closeOnShutdown(new DatagramSocket(getPort()));
+            fragmenter = Fragmenter.forLocalAddress(InetAddress.getByName(getIpAddress()));
+            reassembler = new Reassembler();
+
+            // Index the home directory once and keep it current from file system events
+            directoryIndex = openDirectoryIndex();
+            if (directoryIndex != null) {
+                runtime.closeOnShutdown(directoryIndex::close);
+                int hashThreads = Integer.parseInt(settings.getProperty("hash_threads", "2"));
+                fileManifest = new FileManifest(directoryIndex, hashThreads);
+                runtime.closeOnShutdown(fileManifest::close);
+            }
+
+            // TCP has its own port space, so the file endpoint defaults to the heartbeat port number
+            int transferPort = Integer.parseInt(settings.getProperty("transfer_port", Integer.toString(
+                    transferPortOf(peerKey(nodes.get(0).getIpAddress(), getPort()), getPort()))));
+            int maxTransfers = Integer.parseInt(settings.getProperty("max_transfers", "4"));
+            fileTransfer = runtime.closeOnShutdown(
+                    new FileTransferService(getHomeDirectory(), new InetSocketAddress(transferPort), maxTransfers));
+            int chunkSize = Integer.parseInt(settings.getProperty("chunk_size",
+                    Integer.toString(SwarmDownloader.DEFAULT_CHUNK_SIZE)));
+            int connectionsPerPeer = Integer.parseInt(settings.getProperty("connections_per_peer", "2"));
+            swarmDownloader = new SwarmDownloader(chunkSize, connectionsPerPeer, runtime.getExecutor());
+            peerManifests = new ConcurrentHashMap<>();
+            pendingManifestBuckets = new ConcurrentHashMap<>();
+            registry = new PeerRegistry();
+            failureDetector = new PhiAccrualDetector<>(100, 500, EXPECTED_INTERVAL);
+            phiThreshold = Double.parseDouble(settings.getProperty("phi_threshold", "5"));
+            compressionPeers = ConcurrentHashMap.newKeySet();
+            compressionEnabled = Boolean.parseBoolean(settings.getProperty("compression", "false"));
 
-            System.out.println("Peer " + getIpAddress() + " running at " + getIpAddress() + ":" + getPort());
+            // Delta heartbeats need peers that understand them, so they are opt-in
+            boolean gossipMode = "gossip".equals(settings.getProperty("membership", "all"));
+            if (gossipMode || Boolean.parseBoolean(settings.getProperty("delta_heartbeats", "false"))) {
+                listingTrackers = new ConcurrentHashMap<>();
+                for (Node peer : peers) {
+                    listingTrackers.put(peerKey(peer.getIpAddress(), peer.getPort()), new ListingTracker(listingBase));
+                }
+            }
+
+            // Gossip mode probes one member per period and pulls listings only when they change
+            if (gossipMode) {
+                listingPullTimes = new ConcurrentHashMap<>();
+                gossip = new GossipMembership(peerKey(nodes.get(0).getIpAddress(), getPort()), getNodeId(),
+                        this::sendTo, this::memberChanged,
+                        () -> listingBase + (directoryIndex != null ? directoryIndex.getVersion() : 0),
+                        Long.parseLong(settings.getProperty("gossip_period", "1000")),
+                        Long.parseLong(settings.getProperty("gossip_probe_timeout", "300")),
+                        Integer.parseInt(settings.getProperty("gossip_indirect_probes", "3")));
+                for (Node peer : peers) {
+                    gossip.addSeed(peer.getIpAddress(), peer.getPort());
+                }
+            }
 
-            // Start threads
-            executorService.execute(this::sendHeartbeats);
-            executorService.execute(this::listenForPeers);
-            executorService.execute(this::printPeerStatus);
+            registerMetrics();
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Starts the receive loop, the file endpoint and directory watcher, and schedules the
+     * heartbeats (or gossip periods) and status printing.
+     */
+    public void start() {
+        System.out.println("Peer " + getIpAddress() + " running at " + getIpAddress() + ":" + getPort());
+
+        if (directoryIndex != null) {
+            directoryIndex.start(runtime.getExecutor());
+        }
+        fileTransfer.start(runtime.getExecutor());
+        runtime.execute("receive", this::listenForPeers);
+        if (gossip != null) {
+            long period = Long.parseLong(settings.getProperty("gossip_period", "1000"));
+            gossip.start(runtime);
+            runtime.scheduleAtFixedRate("listing sync", this::syncListings, period, period, 0);
+        } else {
+            // Spread over 0..jitter like the original random 0-30s delay, but without drifting
+            runtime.scheduleAtFixedRate("heartbeat", this::sendHeartbeats, 0, heartbeatPeriod, heartbeatJitter);
+        }
+        runtime.scheduleAtFixedRate("status", this::printPeerStatus, 30000, 30000, 0);
+        if (fileManifest != null) {
+            long manifestInterval = Long.parseLong(settings.getProperty("manifest_interval", "30000"));
+            runtime.scheduleAtFixedRate("manifest sync", this::requestManifests, manifestInterval, manifestInterval, 0);
+        }
+        if (console) {
+            runtime.execute("console", this::readCommands);
+        }
+    }
+
+    /**
+     * Stops gossip and the schedule, lets a heartbeat round in progress finish, then closes
+     * the socket, the file endpoint and the directory watcher.
+     */
+    @Override
+    public void close() {
+        if (runtime == null || !runtime.isRunning()) {
+            return;
+        }
+        if (gossip != null) {
+            gossip.close();
+        }
+        runtime.close();
+        if (servingMetrics) {
+            metrics.stopHttp();
+        }
+        System.out.println("[Peer " + getIpAddress() + "] Stopped.");
+    }
+
     /**
      * Reads the configuration file directly inside P2PNode.
      */
-    private List<Node> readConfig() {
+    private List<Node> readConfig(String configPath) {
         List<Node> nodes = new ArrayList<>();
         try {
-            File configFile = new File(CONFIG_FILE);
+            File configFile = new File(configPath);
             if (!configFile.exists()) {
-                System.err.println("ERROR: Configuration file not found: " + CONFIG_FILE);
+                System.err.println("ERROR: Configuration file not found: " + configPath);
                 System.exit(1);
             }
     
-            System.out.println("Reading P2P configuration file: " + CONFIG_FILE);
+            System.out.println("Reading P2P configuration file: " + configPath);
             BufferedReader reader = new BufferedReader(new FileReader(configFile));
             String line;
             String localIp = InetAddress.getLocalHost().getHostAddress(); // Get this machine's IP
     
             while ((line = reader.readLine()) != null) {
                 if (line.trim().isEmpty() || line.startsWith("#")) continue; // Skip empty lines and comments
+
+                // Optional settings, e.g. delta_heartbeats=true
+                int equals = line.indexOf('=');
+                if (equals > 0) {
+                    settings.setProperty(line.substring(0, equals).trim(), line.substring(equals + 1).trim());
+                    continue;
+                }
     
                 String[] parts = line.split(",");
                 if (parts.length < 3) {
@@ -84,6 +227,9 @@ public class Peer extends Node {
                 String ipAddress = parts[0].trim();
                 int port = Integer.parseInt(parts[1].trim());
                 String homeDir = parts[2].trim();
+                if (parts.length > 3) {
+                    transferPorts.put(peerKey(ipAddress, port), Integer.parseInt(parts[3].trim()));
+                }
     
                 Node nodeInfo = new Node(ipAddress, ipAddress, port, homeDir);
                 nodes.add(nodeInfo);
@@ -107,137 +253,591 @@ public class Peer extends Node {
     }
 
     /**
-     * **Thread 1**: Sends periodic heartbeat messages with file listings.
+     * Every heartbeat_interval plus jitter: sends heartbeat messages with file listings.
      */
-    private void sendHeartbeats() {
-        Random random = new Random();
-        while (true) {
-            try {
-                int delay = random.nextInt(30000); // Random delay (0-30s)
-                Thread.sleep(delay);
-    
-                if (peers.isEmpty()) {
-                    System.out.println("[Node " + getIpAddress() + "] No peers to send heartbeats.");
-                    continue; // Skip sending if no peers
-                }
+    private void sendHeartbeats() throws IOException {
+        if (peers.isEmpty()) {
+            System.out.println("[Node " + getIpAddress() + "] No peers to send heartbeats.");
+            return; // Skip sending if no peers
+        }
     
-                String fileListing = getFileListing();
-                Protocol heartbeat = new Protocol(1, true, getNodeId(), System.currentTimeMillis(), 0, fileListing);
-                byte[] data = heartbeat.serialize();
+        boolean delta = listingTrackers != null && directoryIndex != null;
+        Protocol fullHeartbeat = null;
+        List<byte[]> plainDatagrams = null;
+        List<byte[]> compressedDatagrams = null;
+        if (!delta) {
+            String fileListing = getFileListing();
+            fullHeartbeat = new Protocol(1, true, getNodeId(), System.currentTimeMillis(), 0, fileListing);
+            fullHeartbeat.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        }
     
-                for (Node peer : peers) {
-                    DatagramPacket packet = new DatagramPacket(data, data.length,
-                            InetAddress.getByName(peer.getIpAddress()), peer.getPort());
-                    socket.send(packet);
-                    System.out.println("[Peer " + getIpAddress() + "] Sent heartbeat with file listing.");
+        for (Node peer : peers) {
+            InetAddress peerAddress = InetAddress.getByName(peer.getIpAddress());
+            String key = peerKey(peer.getIpAddress(), peer.getPort());
+            boolean compress = compressionPeers.contains(key);
+
+            // With delta heartbeats each peer gets the changes since its own last ack
+            List<byte[]> peerDatagrams;
+            if (delta) {
+                Protocol heartbeat = listingTrackers.get(key).nextHeartbeat(getNodeId(), true, directoryIndex);
+                heartbeat.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+                peerDatagrams = fragmenter.split(heartbeat.serialize(compress));
+            } else if (compress) {
+                if (compressedDatagrams == null) {
+                    compressedDatagrams = fragmenter.split(fullHeartbeat.serialize(true));
                 }
-    
-            } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
+                peerDatagrams = compressedDatagrams;
+            } else {
+                if (plainDatagrams == null) {
+                    plainDatagrams = fragmenter.split(fullHeartbeat.serialize());
+                }
+                peerDatagrams = plainDatagrams;
+            }
+
+            for (byte[] data : peerDatagrams) {
+                DatagramPacket packet = new DatagramPacket(data, data.length, peerAddress, peer.getPort());
+                send(packet);
             }
+            System.out.println("[Peer " + getIpAddress() + "] Sent heartbeat with file listing.");
         }
     }
 
     /**
-     * **Thread 2**: Listens for heartbeats from other P2P nodes.
+     * Receive loop: listens for heartbeats from other P2P nodes until the socket is closed.
      */
     private void listenForPeers() {
-        try {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            while (true) {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (runtime.isRunning()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
                 socket.receive(packet);
+            } catch (IOException e) {
+                if (runtime.isRunning()) {
+                    System.err.println("[Peer " + getIpAddress() + "] Receive failed: " + e.getMessage());
+                }
+                continue; // The loop ends once close() has closed the socket
+            }
 
-                Protocol receivedProtocol = Protocol.deserialize(packet.getData());
-                String senderIp = packet.getAddress().getHostAddress();
-                lastHeartbeatTimes.put(senderIp, System.currentTimeMillis());
+            // One bad datagram must not stop the loop
+            try {
+                handleDatagram(packet);
+            } catch (Exception e) {
+                System.err.println("[Peer " + getIpAddress() + "] Dropped datagram from "
+                        + packet.getSocketAddress() + ": " + e);
+            }
+        }
+    }
 
-                lastPeerUpdate = receivedProtocol.getPayload(); // Store received file list
+    private void handleDatagram(DatagramPacket packet) throws IOException, ClassNotFoundException {
+        packetsReceived.increment();
+        bytesReceived.add(packet.getLength());
 
-                System.out.println("[Peer " + getIpAddress() + "] Received heartbeat from node (" + senderIp + ")");
+        // Large listings arrive in fragments; wait until all of them are here
+        byte[] data = packet.getData();
+        int offset = packet.getOffset();
+        int length = packet.getLength();
+        if (Fragmenter.isFragment(data, offset, length)) {
+            data = reassembler.add(packet.getSocketAddress(), data, offset, length);
+            if (data == null) {
+                return;
             }
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+            offset = 0;
+            length = data.length;
         }
+
+        Protocol receivedProtocol = Protocol.deserialize(data, offset, length);
+        String senderIp = packet.getAddress().getHostAddress();
+        String senderKey = peerKey(senderIp, packet.getPort());
+
+        // Only compress for peers that said they can read it
+        if (compressionEnabled && receivedProtocol.hasFlag(Protocol.FLAG_ACCEPTS_COMPRESSION)) {
+            compressionPeers.add(senderKey);
+        } else {
+            compressionPeers.remove(senderKey);
+        }
+
+        int type = receivedProtocol.getType();
+        if (type == Protocol.TYPE_LISTING_ACK) {
+            ListingTracker tracker = listingTrackers != null ? listingTrackers.get(senderKey) : null;
+            if (tracker != null) {
+                tracker.acknowledge(FileListing.parseGeneration(receivedProtocol.getPayload()));
+            }
+            return;
+        }
+
+        if (type == Protocol.TYPE_GOSSIP_PING || type == Protocol.TYPE_GOSSIP_PING_REQ
+                || type == Protocol.TYPE_GOSSIP_ACK) {
+            if (gossip != null) {
+                if (type == Protocol.TYPE_GOSSIP_ACK) {
+                    registry.touch(receivedProtocol.getNodeId(), (InetSocketAddress) packet.getSocketAddress());
+                }
+                gossip.handle((InetSocketAddress) packet.getSocketAddress(), receivedProtocol);
+            }
+            return;
+        }
+
+        if (type == Protocol.TYPE_LISTING_PULL) {
+            answerListingPull((InetSocketAddress) packet.getSocketAddress(), senderKey,
+                    receivedProtocol.getPayload());
+            return;
+        }
+
+        // Manifests may need hashing, so they are built and compared off the receive loop
+        if (type == Protocol.TYPE_MANIFEST_REQUEST || type == Protocol.TYPE_MANIFEST_RESPONSE) {
+            if (fileManifest != null && isKnownPeer(senderKey)) {
+                InetSocketAddress peerAddress = (InetSocketAddress) packet.getSocketAddress();
+                runtime.execute("manifest", () -> {
+                    try {
+                        if (type == Protocol.TYPE_MANIFEST_REQUEST) {
+                            sendTo(peerAddress, fileManifest.answer(receivedProtocol, getNodeId(), true));
+                        } else {
+                            handleManifestResponse(peerAddress, senderKey, receivedProtocol.getPayload());
+                        }
+                    } catch (IOException e) {
+                        System.err.println("[Peer " + getIpAddress() + "] Manifest exchange with " + senderKey
+                                + " failed: " + e.getMessage());
+                    }
+                });
+            }
+            return;
+        }
+
+        if (type != Protocol.TYPE_FULL && type != Protocol.TYPE_LISTING_SNAPSHOT && type != Protocol.TYPE_LISTING_DELTA) {
+            unknownTypes.increment();
+            return;
+        }
+
+        // Only heartbeats get this far; replies would skew the learned intervals.
+        // Peers sharing a host are told apart by port as well as node id.
+        PeerRegistry.Entry sender = registry.touch(receivedProtocol.getNodeId(),
+                (InetSocketAddress) packet.getSocketAddress());
+        long interval = failureDetector.heartbeat(sender.key);
+        if (interval >= 0) {
+            heartbeatInterval.record(interval);
+        }
+
+        if (type == Protocol.TYPE_LISTING_SNAPSHOT || type == Protocol.TYPE_LISTING_DELTA) {
+            long heldGeneration = applyListing(sender, receivedProtocol);
+            sendListingAck((InetSocketAddress) packet.getSocketAddress(), heldGeneration);
+            if (heldGeneration == FileListing.RESYNC) {
+                return; // Wait for the snapshot
+            }
+        }
+
+        if (type == Protocol.TYPE_FULL) {
+            // A later delta resyncs from this, since generation 0 never matches its base
+            registry.replaceListing(sender, new FileListing(0, FileListing.parseListing(receivedProtocol.getPayload())));
+        }
+
+        System.out.println("[Peer " + getIpAddress() + "] Received heartbeat from node (" + sender.key + ")");
     }
 
     /**
-     * **Thread 3**: Prints the latest peer update every 30 seconds.
+     * Applies a snapshot or delta heartbeat to the sender's listing in the registry. Returns
+     * the generation now held, or RESYNC on a gap.
      */
-    private void printPeerStatus() {
-        while (true) {
+    private long applyListing(PeerRegistry.Entry sender, Protocol message) {
+        if (message.getType() == Protocol.TYPE_LISTING_SNAPSHOT) {
+            FileListing listing = FileListing.fromSnapshot(message.getPayload());
+            if (listing == null) {
+                return FileListing.RESYNC;
+            }
+            registry.replaceListing(sender, listing);
+            return listing.getGeneration();
+        }
+        return registry.applyDelta(sender, message.getPayload());
+    }
+
+    private void sendListingAck(InetSocketAddress peerAddress, long generation) throws IOException {
+        Protocol ack = new Protocol(1, true, getNodeId(), System.currentTimeMillis(), 0, Long.toString(generation));
+        ack.setType(Protocol.TYPE_LISTING_ACK);
+        ack.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        byte[] data = ack.serialize();
+        send(new DatagramPacket(data, data.length, peerAddress));
+    }
+
+    /**
+     * Gossip callback: pulls the listing of a member that advertised a newer one.
+     */
+    private void memberChanged(GossipMembership.Member member, boolean listingChanged) {
+        if (member.getState() == GossipMembership.DEAD) {
+            System.out.println("[Peer " + getIpAddress() + "] Member " + member.key + " is dead.");
+        } else if (listingChanged) {
+            pullListing(member);
+        }
+    }
+
+    /**
+     * Asks a member for the changes since the listing generation held here. The answer is an
+     * ordinary snapshot or delta heartbeat.
+     */
+    private void pullListing(GossipMembership.Member member) {
+        PeerRegistry.Entry entry = registry.getByAddress(member.key);
+        FileListing held = entry != null ? entry.getListing() : null;
+        long heldGeneration = held != null ? held.getGeneration() : FileListing.RESYNC;
+        if (heldGeneration >= member.getListingStamp()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Long lastPull = listingPullTimes.get(member.key);
+        if (lastPull != null && now - lastPull < 2000) {
+            return; // One outstanding pull per member
+        }
+        listingPullTimes.put(member.key, now);
+
+        Protocol pull = new Protocol(1, true, getNodeId(), now, 0, Long.toString(heldGeneration));
+        pull.setType(Protocol.TYPE_LISTING_PULL);
+        pull.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        try {
+            sendTo(member.address, pull);
+        } catch (IOException e) {
+            System.err.println("Could not pull the listing of " + member.key + ": " + e.getMessage());
+        }
+    }
+
+    private void answerListingPull(InetSocketAddress peerAddress, String senderKey, String payload) throws IOException {
+        if (directoryIndex == null) {
+            return;
+        }
+        ListingTracker tracker = listingTrackers.computeIfAbsent(senderKey, key -> new ListingTracker(listingBase));
+        tracker.acknowledge(FileListing.parseGeneration(payload));
+        Protocol heartbeat = tracker.nextHeartbeat(getNodeId(), true, directoryIndex);
+        heartbeat.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compressionEnabled);
+        sendTo(peerAddress, heartbeat);
+    }
+
+    /**
+     * **Gossip mode**: retries listing pulls that were lost, once per gossip period.
+     */
+    private void syncListings() {
+        for (GossipMembership.Member member : gossip.getMembers()) {
+            if (member.getState() == GossipMembership.ALIVE) {
+                pullListing(member);
+            }
+        }
+    }
+
+    /**
+     * Compares a peer's manifest with ours: a root response that differs leads to a request
+     * for just the differing buckets, and an entries response replaces those buckets in the
+     * peer's recorded file hashes.
+     */
+    private void handleManifestResponse(InetSocketAddress peerAddress, String senderKey, String payload)
+            throws IOException {
+        if (fileManifest == null) {
+            return;
+        }
+
+        if (payload.startsWith("root ")) {
+            List<Integer> differing = fileManifest.differingBuckets(payload);
+            if (differing.isEmpty()) {
+                return; // Same content as ours
+            }
+            System.out.println("[Peer " + getIpAddress() + "] Manifest of " + senderKey + " differs in "
+                    + differing.size() + " of " + FileManifest.BUCKETS + " buckets.");
+            pendingManifestBuckets.put(senderKey, differing);
+            StringBuilder query = new StringBuilder("buckets:");
+            for (int i = 0; i < differing.size(); i++) {
+                query.append(i > 0 ? "," : "").append(differing.get(i));
+            }
+            sendManifestRequest(peerAddress, query.toString());
+            return;
+        }
+
+        List<Integer> requested = pendingManifestBuckets.remove(senderKey);
+        if (requested == null || !payload.startsWith("entries")) {
+            return; // Unsolicited or malformed
+        }
+        Map<String, String> hashes = peerManifests.computeIfAbsent(senderKey, key -> new ConcurrentHashMap<>());
+        hashes.keySet().removeIf(name -> requested.contains(FileManifest.bucketOf(name)));
+        for (String line : payload.split("\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length == 5) {
+                hashes.put(fields[1], fields[4]);
+            }
+        }
+    }
+
+    /**
+     * Asks every active peer for its manifest root; only differing buckets are fetched afterwards.
+     */
+    private void requestManifests() {
+        List<InetSocketAddress> active = new ArrayList<>();
+        if (gossip != null) {
+            for (GossipMembership.Member member : gossip.getMembers()) {
+                if (member.getState() == GossipMembership.ALIVE) {
+                    active.add(member.address);
+                }
+            }
+        } else {
+            for (Node peer : peers) {
+                PeerRegistry.Entry entry = registry.getByAddress(peerKey(peer.getIpAddress(), peer.getPort()));
+                if (entry != null && isActive(entry)) {
+                    active.add(new InetSocketAddress(peer.getIpAddress(), peer.getPort()));
+                }
+            }
+        }
+
+        for (InetSocketAddress peerAddress : active) {
             try {
-                Thread.sleep(30000); // Print every 30 seconds
-                System.out.println("\n[Peer " + getIpAddress() + "] Received Update from Peers");
-System.out.println("--------------------------------------------------");
-System.out.println(lastPeerUpdate);
-System.out.println("--------------------------------------------------\n");
-    
-                long currentTime = System.currentTimeMillis();
-                List<String> activePeers = new ArrayList<>();
-                List<String> inactivePeers = new ArrayList<>();
+                sendManifestRequest(peerAddress, "");
+            } catch (IOException e) {
+                System.err.println("Could not request manifest from " + peerAddress + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Whether a sender is one of our configured peers, or a gossip member in gossip mode.
+     */
+    private boolean isKnownPeer(String senderKey) {
+        if (gossip != null) {
+            return gossip.getMember(senderKey) != null;
+        }
+        for (Node peer : peers) {
+            if (peerKey(peer.getIpAddress(), peer.getPort()).equals(senderKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendManifestRequest(InetSocketAddress peerAddress, String query) throws IOException {
+        Protocol request = new Protocol(1, true, getNodeId(), System.currentTimeMillis(), 0, query);
+        request.setType(Protocol.TYPE_MANIFEST_REQUEST);
+        sendTo(peerAddress, request);
+    }
+
+    private void sendTo(InetSocketAddress peerAddress, Protocol message) throws IOException {
+        for (byte[] data : fragmenter.split(message.serialize(compressionPeers.contains(
+                peerKey(peerAddress.getAddress().getHostAddress(), peerAddress.getPort()))))) {
+            send(new DatagramPacket(data, data.length, peerAddress));
+        }
+    }
+
+    private void send(DatagramPacket packet) throws IOException {
+        socket.send(packet);
+        packetsSent.increment();
+        bytesSent.add(packet.getLength());
+    }
+
+    /**
+     * Publishes the metrics over JMX and, if metrics_port is set, over HTTP.
+     */
+    private void registerMetrics() throws IOException {
+        metrics.gauge("nodes.active", () -> countPeers(true));
+        metrics.gauge("nodes.inactive", () -> countPeers(false));
+        metrics.gauge("reassembler.pending", reassembler::getPendingCount);
+        metrics.gauge("reassembler.dropped", reassembler::getDroppedMessages);
+        metrics.gauge("transfer.bytes_sent", fileTransfer::getBytesSent);
+        metrics.gauge("transfer.count", fileTransfer::getTransferCount);
+        metrics.registerMBean("peer");
+        if (settings.getProperty("metrics_port") != null) {
+            metrics.startHttp(Integer.parseInt(settings.getProperty("metrics_port")));
+            servingMetrics = true;
+        }
+    }
+
+    private long countPeers(boolean active) {
+        long count = 0;
+        for (PeerRegistry.PeerView peer : registry.snapshot().peers) {
+            PeerRegistry.Entry entry = registry.get(peer.key);
+            if (entry != null && isActive(entry) == active) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String peerKey(String ipAddress, int port) {
+        return ipAddress + ":" + port;
+    }
+
+    /**
+     * **Every 30 seconds**: prints the latest peer update.
+     */
+    private void printPeerStatus() {
+        System.out.println("\n[Peer " + getIpAddress() + "] Received Update from Peers");
+        System.out.println("--------------------------------------------------");
+        System.out.println(describeListings());
+        System.out.println("--------------------------------------------------\n");
     
-                for (Node peer : peers) {
-                    String peerIp = peer.getIpAddress();
-                    long lastSeen = lastHeartbeatTimes.getOrDefault(peerIp, 0L);
+        List<String> activePeers = new ArrayList<>();
+        List<String> inactivePeers = new ArrayList<>();
     
-                    if (currentTime - lastSeen > TIMEOUT) {
-                        inactivePeers.add("Peer (" + peerIp + ") is inactive");
-                    } else {
-                        activePeers.add("Peer (" + peerIp + ") is active");
-                    }
-                }
+        if (gossip != null) {
+            for (GossipMembership.Member member : gossip.getMembers()) {
+                String line = "Peer (" + member.key + ") is " + member.describeState();
+                (member.getState() == GossipMembership.ALIVE ? activePeers : inactivePeers).add(line);
+            }
+        }
+
+        for (Node peer : gossip != null ? Collections.<Node>emptyList() : peers) {
+            String peerIp = peer.getIpAddress();
+            String address = peerKey(peerIp, peer.getPort());
+            PeerRegistry.Entry entry = registry.getByAddress(address);
     
-                // Print active peers first
-                for (String active : activePeers) {
-                    System.out.println(active);
-                }
+            if (entry == null || !isActive(entry)) {
+                inactivePeers.add("Peer (" + address + ") is inactive");
+            } else {
+                activePeers.add(String.format("Peer (%s) is active (phi %.1f)",
+                        entry.key, failureDetector.phi(entry.key)));
+            }
+        }
     
-                // Print inactive peers second
-                for (String inactive : inactivePeers) {
-                    System.out.println(inactive);
-                }
+        // Print active peers first
+        for (String active : activePeers) {
+            System.out.println(active);
+        }
     
-                System.out.println("Latest Peer Update:");
-                System.out.println(lastPeerUpdate);
-                System.out.println("--------------------------------------------------\n");
+        // Print inactive peers second
+        for (String inactive : inactivePeers) {
+            System.out.println(inactive);
+        }
     
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        System.out.println("Latest Peer Update:");
+        System.out.println(describeListings());
+        System.out.println("--------------------------------------------------\n");
+    }
+
+    /**
+     * One line per peer with its files, from a registry snapshot.
+     */
+    private String describeListings() {
+        PeerRegistry.Snapshot snapshot = registry.snapshot();
+        if (snapshot.peers.isEmpty()) {
+            return "Waiting for peer updates...";
+        }
+        StringBuilder text = new StringBuilder();
+        for (PeerRegistry.PeerView peer : snapshot.peers) {
+            text.append("Peer (").append(peer.key).append("): ")
+                    .append(peer.files.isEmpty() ? FileListing.EMPTY_LISTING : String.join(", ", peer.files))
+                    .append('\n');
+        }
+        return text.toString().trim();
+    }
+
+    private boolean isActive(PeerRegistry.Entry entry) {
+        if (gossip != null) {
+            InetSocketAddress address = entry.getAddress();
+            return gossip.isAlive(peerKey(address.getAddress().getHostAddress(), address.getPort()));
+        }
+        return failureDetector.isTracked(entry.key) && failureDetector.phi(entry.key) < phiThreshold;
+    }
+
+    /**
+     * Returns the active peers that list the file, answered from the registry.
+     */
+    public List<PeerRegistry.Entry> lookup(String fileName) {
+        List<PeerRegistry.Entry> holders = new ArrayList<>();
+        for (String key : registry.lookup(fileName)) {
+            PeerRegistry.Entry entry = registry.get(key);
+            if (entry != null && isActive(entry)) {
+                holders.add(entry);
             }
         }
+        return holders;
+    }
+
+    /**
+     * The TCP port a peer serves files on: the fourth column of its config line, or else its
+     * heartbeat port, which is what transfer_port defaults to.
+     */
+    private int transferPortOf(String key, int heartbeatPort) {
+        return transferPorts.getOrDefault(key, heartbeatPort);
+    }
+
+    /**
+     * Downloads a file into the home directory from every active peer that lists it.
+     */
+    public void download(String fileName) throws IOException {
+        List<InetSocketAddress> sources = new ArrayList<>();
+        for (PeerRegistry.Entry holder : lookup(fileName)) {
+            InetSocketAddress address = holder.getAddress();
+            String key = peerKey(address.getAddress().getHostAddress(), holder.port);
+            sources.add(new InetSocketAddress(address.getAddress(), transferPortOf(key, holder.port)));
+        }
+
+        SwarmDownloader.Result result = swarmDownloader.download(fileName, sources,
+                new File(getHomeDirectory(), fileName).toPath());
+        System.out.printf("[Peer %s] Downloaded %s (%d bytes) from %d peers at %.1f MB/s%n",
+                getIpAddress(), fileName, result.bytes, sources.size(), result.megabytesPerSecond());
+        for (Map.Entry<InetSocketAddress, Long> source : result.bytesBySource.entrySet()) {
+            System.out.println("    " + source.getKey() + ": " + source.getValue() + " bytes");
+        }
+    }
+
+    /**
+     * **Console loop**: reads commands. "lookup <file>" lists the peers that have a file,
+     * "download <file>" fetches it from them.
+     */
+    private void readCommands() {
+        try (BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            while ((line = console.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("lookup ")) {
+                    String fileName = line.substring("lookup ".length()).trim();
+                    List<String> holders = new ArrayList<>();
+                    for (PeerRegistry.Entry holder : lookup(fileName)) {
+                        holders.add(holder.key);
+                    }
+                    System.out.println("[Peer " + getIpAddress() + "] " + fileName + " is on: "
+                            + (holders.isEmpty() ? "no active peer" : String.join(", ", holders)));
+                } else if (line.startsWith("download ")) {
+                    String fileName = line.substring("download ".length()).trim();
+                    try {
+                        download(fileName);
+                    } catch (IOException e) {
+                        System.out.println("[Peer " + getIpAddress() + "] Download failed: " + e.getMessage());
+                    }
+                } else if (!line.isEmpty()) {
+                    System.out.println("Commands: lookup <file>, download <file>");
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
-    
 
     /**
      * Retrieves the list of files in the node's home directory.
      */
     private String getFileListing() {
-        File folder = new File(getHomeDirectory());
+        if (directoryIndex == null) {
+            return "ERROR: Could not create home directory!";
+        }
+        return directoryIndex.getListing(); // Cached, rebuilt only after the directory changes
+    }
 
-        if (!folder.exists()) {
+    /**
+     * Creates the home directory if needed and starts indexing it, or returns null on failure.
+     */
+    private DirectoryIndex openDirectoryIndex() {
+        // If the directory doesn't exist, DirectoryIndex creates it
+        boolean missing = !new File(getHomeDirectory()).exists();
+        if (missing) {
             System.out.println("Home directory not found. Creating: " + getHomeDirectory());
-            boolean created = folder.mkdirs();
-            if (!created) {
-                return "ERROR: Could not create home directory!";
-            }
         }
 
-        StringBuilder fileList = new StringBuilder();
-        File[] files = folder.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                fileList.append(file.getName()).append(",");
+        try {
+            DirectoryIndex index = new DirectoryIndex(getHomeDirectory());
+            if (missing) {
+                System.out.println("Home directory created successfully!");
             }
+            return index;
+        } catch (IOException e) {
+            System.err.println("ERROR: Could not create home directory: " + e.getMessage());
+            return null;
         }
-        return fileList.length() > 0 ? fileList.toString() : "No files available.";
     }
 
     /**
      * **Main method**: Reads config file automatically.
      */
     public static void main(String[] args) {
-        new Peer();
+        Peer peer = new Peer();
+        Runtime.getRuntime().addShutdownHook(new Thread(peer::close));
     }
 }
 
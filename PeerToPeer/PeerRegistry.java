@@ -0,0 +1,173 @@
+package PeerToPeer;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Everything known about the other peers, keyed by node id and port so that several peers
+ * on one host stay separate.
+ *
+ * Each peer keeps its own listing; the merged file -> peers view is a FileIndex that is
+ * updated entry by entry as snapshots and deltas arrive, so a lookup is one concurrent map
+ * read and never waits for a heartbeat. Readers that want a consistent picture of every
+ * peer take a Snapshot: an immutable copy that is rebuilt only after something changed and
+ * is otherwise handed out without locking.
+ */
+public class PeerRegistry {
+
+    /**
+     * The live record of one peer.
+     */
+    public static class Entry {
+        public final String key; // nodeId:port
+        public final String nodeId;
+        public final int port;
+        private volatile InetSocketAddress address;
+        private volatile long lastSeen;
+        private volatile FileListing listing;
+
+        Entry(String key, String nodeId, int port, InetSocketAddress address) {
+            this.key = key;
+            this.nodeId = nodeId;
+            this.port = port;
+            this.address = address;
+        }
+
+        public InetSocketAddress getAddress() { return address; }
+        public long getLastSeen() { return lastSeen; }
+        public FileListing getListing() { return listing; }
+    }
+
+    /**
+     * Immutable view of every peer at one moment.
+     */
+    public static class Snapshot {
+        public final long version;
+        public final List<PeerView> peers;
+
+        Snapshot(long version, List<PeerView> peers) {
+            this.version = version;
+            this.peers = Collections.unmodifiableList(peers);
+        }
+    }
+
+    /**
+     * One peer inside a snapshot.
+     */
+    public static class PeerView {
+        public final String key;
+        public final InetSocketAddress address;
+        public final long lastSeen;
+        public final Set<String> files;
+
+        PeerView(Entry entry) {
+            this.key = entry.key;
+            this.address = entry.address;
+            this.lastSeen = entry.lastSeen;
+            FileListing listing = entry.listing;
+            this.files = listing != null ? Collections.unmodifiableSet(listing.getFiles()) : Collections.emptySet();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> keysByAddress = new ConcurrentHashMap<>(); // ip:port -> key
+    private final FileIndex files = new FileIndex();
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(0, new ArrayList<>()));
+
+    public static String key(String nodeId, int port) {
+        return nodeId + ":" + port;
+    }
+
+    /**
+     * Records that a message arrived from the peer and returns its entry.
+     */
+    public Entry touch(String nodeId, InetSocketAddress from) {
+        String key = key(nodeId, from.getPort());
+        Entry entry = entries.computeIfAbsent(key, k -> new Entry(k, nodeId, from.getPort(), from));
+        if (!from.equals(entry.address)) {
+            keysByAddress.remove(addressKey(entry.address), key);
+            entry.address = from;
+        }
+        keysByAddress.put(addressKey(from), key);
+        entry.lastSeen = System.currentTimeMillis();
+        version.incrementAndGet();
+        return entry;
+    }
+
+    public Entry get(String key) { return entries.get(key); }
+
+    /**
+     * Finds a peer by the ip:port its messages come from.
+     */
+    public Entry getByAddress(String ipAndPort) {
+        String key = keysByAddress.get(ipAndPort);
+        return key != null ? entries.get(key) : null;
+    }
+
+    /**
+     * Replaces a peer's listing, touching only the index entries that differ.
+     */
+    public void replaceListing(Entry entry, FileListing listing) {
+        synchronized (entry) {
+            entry.listing = listing;
+            files.replace(entry.key, listing.getFiles());
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Applies a delta heartbeat to a peer's listing. Returns the generation now held, or
+     * RESYNC if the peer has no listing here or the delta does not follow from it.
+     */
+    public long applyDelta(Entry entry, String deltaPayload) {
+        long held;
+        synchronized (entry) {
+            FileListing listing = entry.listing;
+            if (listing == null) {
+                return FileListing.RESYNC;
+            }
+            held = listing.applyDelta(deltaPayload, (name, added) -> files.record(entry.key, name, added));
+        }
+        if (held != FileListing.RESYNC) {
+            version.incrementAndGet();
+        }
+        return held;
+    }
+
+    /**
+     * Returns the peers that list the file, by key.
+     */
+    public Set<String> lookup(String fileName) {
+        return files.lookup(fileName);
+    }
+
+    /**
+     * Returns an immutable view of every peer, rebuilt only if something changed since the
+     * last call.
+     */
+    public Snapshot snapshot() {
+        Snapshot current = snapshot.get();
+        long now = version.get();
+        if (current.version == now) {
+            return current;
+        }
+
+        List<PeerView> peers = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            peers.add(new PeerView(entry));
+        }
+        peers.sort(Comparator.comparing(peer -> peer.key));
+        Snapshot rebuilt = new Snapshot(now, peers);
+        // A racing rebuild may have published a newer one; keep whichever is newer
+        snapshot.accumulateAndGet(rebuilt, (a, b) -> a.version >= b.version ? a : b);
+        return rebuilt;
+    }
+
+    private static String addressKey(InetSocketAddress address) {
+        return address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+}
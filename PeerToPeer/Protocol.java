@@ -1,15 +1,59 @@
 package PeerToPeer;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import PeerToPeer.*;
 
 public class Protocol implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    // Dynamically calculated HEADER_SIZE
-    private static final int HEADER_SIZE = Integer.BYTES * 3 + Long.BYTES + 1;  // version, nodeId, reserve, timestamp, mode
-
-    private int version; 
+    // First byte of every binary datagram. Java serialization streams always start with 0xAC,
+    // so nodes still sending ObjectOutputStream data can be told apart from the binary codec.
+    public static final byte WIRE_FORMAT = 0x02;
+    private static final byte LEGACY_STREAM_MAGIC = (byte) 0xAC;
+    // Anyone can send a datagram, so legacy streams may only hold a Protocol and its strings
+    private static final ObjectInputFilter LEGACY_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=2;maxrefs=16;maxarray=0;maxbytes=65536;" + Protocol.class.getName() + ";!*");
+
+    private static final Metrics.Histogram ENCODE_TIME = Metrics.get().histogram("protocol.encode", "ns");
+    private static final Metrics.Histogram DECODE_TIME = Metrics.get().histogram("protocol.decode", "ns");
+
+    // Fixed header: format, version, length, mode, timestamp, reserve, nodeId length
+    public static final int HEADER_SIZE = 1 + Integer.BYTES * 3 + 1 + Long.BYTES + Short.BYTES;
+
+    // Message types, carried in the low byte of reserve. 0 is the original full-listing message.
+    public static final int TYPE_FULL = 0;
+    public static final int TYPE_LISTING_SNAPSHOT = 1;
+    public static final int TYPE_LISTING_DELTA = 2;
+    public static final int TYPE_LISTING_ACK = 3;
+    public static final int TYPE_VIEW_SNAPSHOT = 4;
+    public static final int TYPE_VIEW_DELTA = 5;
+    public static final int TYPE_VIEW_ACK = 6;
+    public static final int TYPE_LOOKUP_REQUEST = 7;
+    public static final int TYPE_LOOKUP_RESPONSE = 8;
+    public static final int TYPE_MANIFEST_REQUEST = 9;
+    public static final int TYPE_MANIFEST_RESPONSE = 10;
+    public static final int TYPE_GOSSIP_PING = 11;
+    public static final int TYPE_GOSSIP_PING_REQ = 12;
+    public static final int TYPE_GOSSIP_ACK = 13;
+    public static final int TYPE_LISTING_PULL = 14;
+    public static final int TYPE_REDIRECT = 15; // Payload: host:port of the shard that owns the node
+    public static final int TYPE_SEARCH_REQUEST = 16; // Payload: tag, kind, limit, token, pattern on separate lines
+    public static final int TYPE_SEARCH_RESPONSE = 17; // Payload: tag, "more <token>"/"done"/"error <reason>", names
+    private static final int TYPE_MASK = 0xFF;
+
+    // Flags, carried in reserve above the message type
+    public static final int FLAG_COMPRESSED = 1 << 8; // Payload is deflated
+    public static final int FLAG_ACCEPTS_COMPRESSION = 1 << 9; // Sender can read compressed payloads
+
+    // Heartbeat sequence number, in the bits of reserve above the flags. Wraps within 1..SEQUENCE_MASK;
+    // 0 means the sender does not number its heartbeats.
+    static final int SEQUENCE_SHIFT = 10;
+    public static final int SEQUENCE_MASK = (1 << (Integer.SIZE - SEQUENCE_SHIFT)) - 1;
+
+    private int version;
     private int length; // Length of payload
     private String nodeId;
     private boolean mode; // true = P2P, false = Client-Server
@@ -18,7 +62,7 @@ public class Protocol implements Serializable {
     private String payload;
 
     public Protocol(int version, boolean mode, String nodeId, long timestamp, int reserve, String payload) {
-        this.version = version; 
+        this.version = version;
         this.mode = mode;
         this.nodeId = nodeId;
         this.timestamp = timestamp;
@@ -42,6 +86,25 @@ public class Protocol implements Serializable {
     public int getReserve() { return reserve; }
     public void setReserve(int reserve) { this.reserve = reserve; }
 
+    public int getType() { return reserve & TYPE_MASK; }
+    public void setType(int type) { this.reserve = (reserve & ~TYPE_MASK) | (type & TYPE_MASK); }
+
+    public boolean hasFlag(int flag) { return (reserve & flag) != 0; }
+    public int getSequence() { return reserve >>> SEQUENCE_SHIFT; }
+    public void setSequence(int sequence) {
+        this.reserve = (reserve & ((1 << SEQUENCE_SHIFT) - 1)) | (sequence & SEQUENCE_MASK) << SEQUENCE_SHIFT;
+    }
+
+    /**
+     * The sequence number after the given one, skipping 0.
+     */
+    public static int nextSequence(int sequence) {
+        return sequence % SEQUENCE_MASK + 1;
+    }
+    public void setFlag(int flag, boolean enabled) {
+        this.reserve = enabled ? (reserve | flag) : (reserve & ~flag);
+    }
+
     public String getPayload() { return payload; }
     public void setPayload(String payload) {
         this.payload = (payload != null) ? payload : "";
@@ -54,22 +117,126 @@ public class Protocol implements Serializable {
         return HEADER_SIZE + length;
     }
 
-    // Serialization - Converts an instance of Protocol into a byte array for UDP transmission
+    // Serialization - Encodes this Protocol into the fixed binary layout for UDP transmission
     public byte[] serialize() throws IOException {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-             ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            out.writeObject(this);
-            out.flush();
-            return bos.toByteArray();
+        return serialize(false);
+    }
+
+    // Only compress for receivers that advertised FLAG_ACCEPTS_COMPRESSION
+    public byte[] serialize(boolean compress) throws IOException {
+        long start = System.nanoTime();
+        byte[] id = (nodeId != null ? nodeId : "").getBytes(StandardCharsets.UTF_8);
+        byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+        if (id.length > Short.MAX_VALUE) {
+            throw new IOException("nodeId too long: " + id.length + " bytes");
+        }
+
+        int flags = reserve & ~FLAG_COMPRESSED;
+        byte[] compressed = compress ? PayloadCompression.compress(body) : null;
+        if (compressed != null) {
+            body = compressed;
+            flags |= FLAG_COMPRESSED;
         }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + id.length + body.length);
+        buffer.put(WIRE_FORMAT);
+        buffer.putInt(version);
+        buffer.putInt(body.length);
+        buffer.put((byte) (mode ? 1 : 0));
+        buffer.putLong(timestamp);
+        buffer.putInt(flags);
+        buffer.putShort((short) id.length);
+        buffer.put(id);
+        buffer.put(body);
+        ENCODE_TIME.recordSince(start);
+        return buffer.array();
     }
 
     // Deserialization - Converts a received UDP byte array back into a Protocol object
     public static Protocol deserialize(byte[] data) throws IOException, ClassNotFoundException {
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(data);
-             ObjectInputStream in = new ObjectInputStream(bis)) {
-            return (Protocol) in.readObject();
+        return deserialize(data, 0, data.length);
+    }
+
+    public static Protocol deserialize(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        if (length < 1) {
+            throw new IOException("Empty datagram");
+        }
+
+        // Older nodes still send Java-serialized objects
+        if (data[offset] == LEGACY_STREAM_MAGIC) {
+            try (ByteArrayInputStream bis = new ByteArrayInputStream(data, offset, length);
+                 ObjectInputStream in = new ObjectInputStream(bis)) {
+                in.setObjectInputFilter(LEGACY_FILTER);
+                return (Protocol) in.readObject();
+            }
+        }
+
+        long start = System.nanoTime();
+        Protocol decoded = decode(ByteBuffer.wrap(data, offset, length));
+        DECODE_TIME.recordSince(start);
+        return decoded;
+    }
+
+    // Decodes a binary Protocol starting at the buffer's position
+    public static Protocol decode(ByteBuffer buffer) throws IOException {
+        try {
+            byte format = buffer.get();
+            if (format != WIRE_FORMAT) {
+                throw new IOException("Unsupported wire format: " + format);
+            }
+
+            int version = buffer.getInt();
+            int payloadLength = buffer.getInt();
+            boolean mode = buffer.get() != 0;
+            long timestamp = buffer.getLong();
+            int reserve = buffer.getInt();
+            int idLength = buffer.getShort();
+
+            if (idLength < 0 || payloadLength < 0 || idLength + payloadLength > buffer.remaining()) {
+                throw new IOException("Truncated datagram: header declares " + (idLength + payloadLength)
+                        + " bytes, " + buffer.remaining() + " available");
+            }
+
+            String nodeId = readUtf8(buffer, idLength);
+            String payload;
+            if ((reserve & FLAG_COMPRESSED) != 0) {
+                payload = readCompressed(buffer, payloadLength);
+                reserve &= ~FLAG_COMPRESSED;
+            } else {
+                payload = readUtf8(buffer, payloadLength);
+            }
+            return new Protocol(version, mode, nodeId, timestamp, reserve, payload);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated datagram header", e);
+        }
+    }
+
+    private static String readUtf8(ByteBuffer buffer, int count) {
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), count, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + count);
+        } else {
+            byte[] bytes = new byte[count];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static String readCompressed(ByteBuffer buffer, int count) throws IOException {
+        byte[] compressed;
+        int offset;
+        if (buffer.hasArray()) {
+            compressed = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + count);
+        } else {
+            compressed = new byte[count];
+            offset = 0;
+            buffer.get(compressed);
         }
+        return new String(PayloadCompression.decompress(compressed, offset, count), StandardCharsets.UTF_8);
     }
 
     @Override
@@ -0,0 +1,213 @@
+package PeerToPeer;
+
+import java.net.SocketAddress;
+import java.util.*;
+
+/**
+ * Collects fragments produced by Fragmenter until a message is complete.
+ *
+ * Pending messages are bounded both in number and in bytes; the oldest ones are dropped
+ * first, and anything older than the timeout is discarded on the next arrival. Fragment
+ * copies and the reassembled message come from a BufferPool, so a receive loop that uses
+ * addPooled() and releases each message does not allocate per fragment.
+ */
+public class Reassembler {
+    private static final int DEFAULT_MAX_PENDING = 256;
+    private static final long DEFAULT_MAX_PENDING_BYTES = 4L * 1024 * 1024;
+    private static final long DEFAULT_TIMEOUT = 5000; // 5s to receive every fragment of a message
+    private static final int ENTRY_OVERHEAD = 128; // Bytes for a pending entry's key, map node and objects
+    private static final int PER_FRAGMENT_OVERHEAD = 8; // Part reference plus its length
+
+    private final int maxPending;
+    private final long maxPendingBytes;
+    private final long timeoutMillis;
+    private final int maxFragments; // Counts above this cannot come from a message we would keep
+    private final BufferPool pool;
+
+    /**
+     * A reassembled message in a pooled buffer; hand it back with release() once handled.
+     */
+    public static final class Message {
+        public final byte[] data;
+        public final int length;
+
+        Message(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    // Insertion order doubles as age order, so expiry only looks at the head
+    private final LinkedHashMap<Key, PendingMessage> pending = new LinkedHashMap<>();
+    private long pendingBytes;
+    private long droppedMessages;
+
+    public Reassembler() {
+        this(new BufferPool());
+    }
+
+    public Reassembler(BufferPool pool) {
+        this(DEFAULT_MAX_PENDING, DEFAULT_MAX_PENDING_BYTES, DEFAULT_TIMEOUT, pool);
+    }
+
+    public Reassembler(int maxPending, long maxPendingBytes, long timeoutMillis, BufferPool pool) {
+        this.maxPending = maxPending;
+        this.maxPendingBytes = maxPendingBytes;
+        this.timeoutMillis = timeoutMillis;
+        this.maxFragments = Fragmenter.maxFragments(maxPendingBytes);
+        this.pool = pool;
+    }
+
+    /**
+     * Adds one fragment. Returns the reassembled message once the last fragment arrives,
+     * otherwise null.
+     */
+    public byte[] add(SocketAddress source, byte[] data, int offset, int length) {
+        Message message = addPooled(source, data, offset, length);
+        if (message == null) {
+            return null;
+        }
+        byte[] complete = Arrays.copyOf(message.data, message.length);
+        release(message);
+        return complete;
+    }
+
+    /**
+     * add() without the final copy: the message stays in a pooled buffer, which the caller
+     * must release().
+     */
+    public synchronized Message addPooled(SocketAddress source, byte[] data, int offset, int length) {
+        long now = System.nanoTime();
+        expire(now);
+
+        // Header after the format byte: fragment id, index, count
+        int fragmentId = (data[offset + 1] & 0xFF) << 24 | (data[offset + 2] & 0xFF) << 16
+                | (data[offset + 3] & 0xFF) << 8 | (data[offset + 4] & 0xFF);
+        int index = (data[offset + 5] & 0xFF) << 8 | (data[offset + 6] & 0xFF);
+        int count = (data[offset + 7] & 0xFF) << 8 | (data[offset + 8] & 0xFF);
+        if (count == 0 || index >= count || count > maxFragments) {
+            return null;
+        }
+
+        Key key = new Key(source, fragmentId);
+        PendingMessage message = pending.get(key);
+        if (message == null) {
+            message = new PendingMessage(count, now);
+            pending.put(key, message);
+            pendingBytes += message.overhead; // The part arrays count even before any part arrives
+        } else if (message.parts.length != count) {
+            return null; // Inconsistent fragment, ignore it
+        }
+
+        if (message.parts[index] == null) {
+            int partLength = length - Fragmenter.FRAGMENT_HEADER_SIZE;
+            byte[] part = pool.acquire(partLength);
+            System.arraycopy(data, offset + Fragmenter.FRAGMENT_HEADER_SIZE, part, 0, partLength);
+            message.parts[index] = part;
+            message.lengths[index] = partLength;
+            message.received++;
+            message.size += partLength;
+            pendingBytes += partLength;
+        }
+
+        if (message.received < count) {
+            evictOverflow();
+            return null;
+        }
+
+        pending.remove(key);
+        pendingBytes -= message.size + message.overhead;
+
+        byte[] complete = pool.acquire(message.size);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(message.parts[i], 0, complete, position, message.lengths[i]);
+            position += message.lengths[i];
+        }
+        message.release(pool);
+        return new Message(complete, message.size);
+    }
+
+    /**
+     * Returns a message's buffer from addPooled() to the pool.
+     */
+    public void release(Message message) {
+        pool.release(message.data);
+    }
+
+    public synchronized int getPendingCount() { return pending.size(); }
+
+    public synchronized long getDroppedMessages() { return droppedMessages; }
+
+    private void expire(long now) {
+        long timeoutNanos = timeoutMillis * 1_000_000L;
+        Iterator<PendingMessage> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            PendingMessage message = iterator.next();
+            if (now - message.createdAt <= timeoutNanos) {
+                break;
+            }
+            drop(iterator, message);
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<PendingMessage> iterator = pending.values().iterator();
+        while (iterator.hasNext() && (pending.size() > maxPending || pendingBytes > maxPendingBytes)) {
+            drop(iterator, iterator.next());
+        }
+    }
+
+    private void drop(Iterator<PendingMessage> iterator, PendingMessage message) {
+        iterator.remove();
+        message.release(pool);
+        pendingBytes -= message.size + message.overhead;
+        droppedMessages++;
+    }
+
+    private static class PendingMessage {
+        final byte[][] parts;
+        final int[] lengths;
+        final long createdAt;
+        final long overhead;
+        int received;
+        int size;
+
+        PendingMessage(int count, long createdAt) {
+            this.parts = new byte[count][];
+            this.lengths = new int[count];
+            this.createdAt = createdAt;
+            this.overhead = ENTRY_OVERHEAD + (long) count * PER_FRAGMENT_OVERHEAD;
+        }
+
+        void release(BufferPool pool) {
+            for (int i = 0; i < parts.length; i++) {
+                pool.release(parts[i]);
+                parts[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Sender and fragment id; cheaper to build and hash than a string of both.
+     */
+    private static final class Key {
+        final SocketAddress source;
+        final int fragmentId;
+
+        Key(SocketAddress source, int fragmentId) {
+            this.source = source;
+            this.fragmentId = fragmentId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).fragmentId == fragmentId && ((Key) other).source.equals(source);
+        }
+
+        @Override
+        public int hashCode() {
+            return source.hashCode() * 31 + fragmentId;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package PeerToPeer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads one file from several peers at once.
+ *
+ * The file is split into fixed-size chunks, each checked against the SHA-256 list served
+ * by the first source that answers. Every source gets a few workers with their own
+ * connection, all pulling from one queue, so faster peers naturally take more chunks.
+ * Near the end a source much slower than the best one stops taking new chunks, so the
+ * tail of the file is not stuck behind it. Chunks are written straight into a
+ * preallocated ".part" file; a chunk that fails or does not verify goes back on the queue
+ * for a different source, and a source that keeps failing is dropped.
+ */
+public class SwarmDownloader {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_SOURCE_FAILURES = 3; // Consecutive failures before a source is dropped
+    private static final double SLOW_SOURCE_RATIO = 0.25; // Of the best rate, below which tail chunks are left
+    private static final long IDLE_WAIT = 50;
+
+    /**
+     * Outcome of a download, with what each source contributed.
+     */
+    public static class Result {
+        public final long bytes;
+        public final long elapsedNanos;
+        public final Map<InetSocketAddress, Long> bytesBySource;
+
+        Result(long bytes, long elapsedNanos, Map<InetSocketAddress, Long> bytesBySource) {
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.bytesBySource = bytesBySource;
+        }
+
+        public double megabytesPerSecond() { return bytes / 1e6 / (Math.max(1, elapsedNanos) / 1e9); }
+    }
+
+    private final int chunkSize;
+    private final int connectionsPerSource;
+    private final ExecutorService executor;
+
+    public SwarmDownloader(int chunkSize, int connectionsPerSource, ExecutorService executor) {
+        this.chunkSize = chunkSize;
+        this.connectionsPerSource = Math.max(1, connectionsPerSource);
+        this.executor = executor;
+    }
+
+    /**
+     * Downloads the file into target from the given sources. Blocks until every chunk is
+     * verified or no source is left that could provide a missing chunk.
+     */
+    public Result download(String name, List<InetSocketAddress> sources, Path target) throws IOException {
+        if (sources.isEmpty()) {
+            throw new IOException("No source has " + name);
+        }
+        long start = System.nanoTime();
+
+        FileTransferService.ChunkList chunks = null;
+        IOException lastError = null;
+        for (InetSocketAddress source : sources) {
+            try {
+                chunks = FileTransferService.fetchChunkList(source, name, chunkSize);
+                break;
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        if (chunks == null) {
+            throw new IOException("No source could list the chunks of " + name, lastError);
+        }
+
+        Path partial = target.resolveSibling(target.getFileName() + ".part");
+        try (RandomAccessFile file = new RandomAccessFile(partial.toFile(), "rw")) {
+            file.setLength(chunks.fileSize); // Preallocate so every chunk writes in place
+        }
+
+        Swarm swarm = new Swarm(name, chunks, sources);
+        try (FileChannel output = FileChannel.open(partial, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            List<Future<?>> workers = new ArrayList<>();
+            for (Source source : swarm.sources) {
+                for (int i = 0; i < connectionsPerSource; i++) {
+                    workers.add(executor.submit(() -> swarm.work(source, output)));
+                }
+            }
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    // Worker errors are handled inside; the chunk count below decides success
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    swarm.abort();
+                    throw new InterruptedIOException("Download of " + name + " interrupted");
+                }
+            }
+            output.force(false);
+        }
+
+        if (swarm.remaining() > 0) {
+            throw new IOException(swarm.remaining() + " chunks of " + name + " could not be fetched from any source");
+        }
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+
+        Map<InetSocketAddress, Long> bySource = new LinkedHashMap<>();
+        for (Source source : swarm.sources) {
+            bySource.put(source.address, source.bytes.get());
+        }
+        return new Result(chunks.fileSize, System.nanoTime() - start, bySource);
+    }
+
+    /**
+     * One peer and what has been seen of it during this download.
+     */
+    private static class Source {
+        final InetSocketAddress address;
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+        volatile int consecutiveFailures;
+        volatile boolean dropped;
+
+        Source(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        double rate() {
+            long elapsed = nanos.get();
+            return elapsed == 0 ? 0 : bytes.get() / (elapsed / 1e9);
+        }
+    }
+
+    /**
+     * Shared state of one download: the chunk queue and the sources pulling from it.
+     */
+    private class Swarm {
+        final String name;
+        final FileTransferService.ChunkList chunks;
+        final List<Source> sources = new ArrayList<>();
+        final Deque<Integer> queue = new ArrayDeque<>();
+        final Map<Integer, Set<Source>> failedSources = new HashMap<>();
+        int inFlight;
+        int verified;
+        boolean aborted;
+
+        Swarm(String name, FileTransferService.ChunkList chunks, List<InetSocketAddress> addresses) {
+            this.name = name;
+            this.chunks = chunks;
+            for (InetSocketAddress address : addresses) {
+                sources.add(new Source(address));
+            }
+            for (int chunk = 0; chunk < chunks.getChunkCount(); chunk++) {
+                queue.add(chunk);
+            }
+        }
+
+        synchronized int remaining() { return chunks.getChunkCount() - verified; }
+
+        synchronized void abort() {
+            aborted = true;
+            notifyAll();
+        }
+
+        void work(Source source, FileChannel output) {
+            SocketChannel connection = null;
+            try {
+                Integer chunk;
+                while ((chunk = take(source)) != null) {
+                    long start = System.nanoTime();
+                    boolean ok;
+                    try {
+                        if (connection == null) {
+                            connection = SocketChannel.open();
+                            connection.socket().connect(source.address, 5000);
+                        }
+                        long offset = chunks.offsetOf(chunk);
+                        int length = chunks.lengthOf(chunk);
+                        FileTransferService.Range range =
+                                FileTransferService.fetch(connection, name, offset, length, output, offset);
+                        ok = range.count == length && chunks.matches(chunk, digestOf(output, offset, length));
+                        if (ok) {
+                            source.bytes.addAndGet(length);
+                            source.nanos.addAndGet(System.nanoTime() - start);
+                        }
+                    } catch (IOException e) {
+                        ok = false;
+                        closeQuietly(connection);
+                        connection = null; // The stream position is unknown after a failure
+                    }
+                    finish(source, chunk, ok);
+                }
+            } finally {
+                closeQuietly(connection);
+            }
+        }
+
+        /**
+         * Returns the next chunk this source should fetch, or null when it has nothing
+         * left to do.
+         */
+        private synchronized Integer take(Source source) {
+            while (!aborted && !source.dropped) {
+                if (verified == chunks.getChunkCount()) {
+                    return null;
+                }
+                if (!queue.isEmpty() && !leaveForFasterSources(source)) {
+                    for (Iterator<Integer> it = queue.iterator(); it.hasNext(); ) {
+                        Integer chunk = it.next();
+                        Set<Source> failed = failedSources.get(chunk);
+                        if (failed == null || !failed.contains(source)) {
+                            it.remove();
+                            inFlight++;
+                            return chunk;
+                        }
+                    }
+                }
+                if (inFlight == 0 && !anyoneCanTake()) {
+                    return null; // The queue holds only chunks no remaining source can provide
+                }
+                try {
+                    wait(IDLE_WAIT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        private synchronized void finish(Source source, int chunk, boolean ok) {
+            inFlight--;
+            if (ok) {
+                verified++;
+                source.consecutiveFailures = 0;
+            } else {
+                failedSources.computeIfAbsent(chunk, c -> new HashSet<>()).add(source);
+                queue.addFirst(chunk); // Retry early, from someone else
+                if (++source.consecutiveFailures >= MAX_SOURCE_FAILURES) {
+                    source.dropped = true;
+                    System.err.println("[Swarm] Dropping " + source.address + " after repeated failures on " + name);
+                }
+            }
+            notifyAll();
+        }
+
+        /**
+         * Once fewer chunks remain than there are workers, only sources close to the best
+         * observed rate keep taking them.
+         */
+        private boolean leaveForFasterSources(Source source) {
+            if (queue.size() >= sources.size() * connectionsPerSource || source.rate() == 0) {
+                return false;
+            }
+            double best = 0;
+            for (Source other : sources) {
+                if (!other.dropped) {
+                    best = Math.max(best, other.rate());
+                }
+            }
+            return source.rate() < best * SLOW_SOURCE_RATIO;
+        }
+
+        private boolean anyoneCanTake() {
+            for (Integer chunk : queue) {
+                Set<Source> failed = failedSources.getOrDefault(chunk, Collections.emptySet());
+                for (Source source : sources) {
+                    if (!source.dropped && !failed.contains(source)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Hashes a chunk as written, reading it back through the page cache.
+     */
+    private static byte[] digestOf(FileChannel file, long offset, int length) throws IOException {
+        MessageDigest digest = FileManifest.sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, 64 * 1024));
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int n = file.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Short chunk at " + offset);
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += n;
+        }
+        return digest.digest();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
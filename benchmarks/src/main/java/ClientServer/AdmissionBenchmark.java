@@ -0,0 +1,55 @@
+package ClientServer;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * What a shed datagram costs Server.handleDatagram: one sender far over its rate
+ * (source), or a client repeating one numbered heartbeat with no rate limits
+ * (duplicate). Compare with HeartbeatIngestBenchmark for an admitted heartbeat.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AdmissionBenchmark {
+
+    @Param({"source", "duplicate"})
+    public String shed;
+
+    private Server server;
+    private InetSocketAddress address;
+    private byte[] heartbeat;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Properties config = new Properties();
+        config.setProperty("server_ip", "127.0.0.1");
+        config.setProperty("server_port", "0");
+        config.setProperty("log_heartbeats", "false");
+        if (shed.equals("duplicate")) {
+            config.setProperty("admission_source_rate", "0");
+        }
+        server = new Server(config);
+
+        address = new InetSocketAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, 1}), 5001);
+        Protocol message = new Protocol(1, false, "client", System.currentTimeMillis(), 0, "notes.txt,photo.jpg,song.mp3,");
+        message.setSequence(1);
+        heartbeat = message.serialize();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void flood() throws IOException {
+        server.handleDatagram(address, heartbeat, 0, heartbeat.length);
+    }
+}
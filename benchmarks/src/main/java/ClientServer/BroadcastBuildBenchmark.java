@@ -0,0 +1,78 @@
+package ClientServer;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Building one round of broadcastUpdates: picking and encoding the update for every
+ * client, without sending it. Clients either all get the full text update or keep a view
+ * replica and report one of a few recent epochs, which is the incremental path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBuildBenchmark {
+    private static final int DISTINCT_EPOCHS = 8; // Epochs reported by view-replica clients
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int clients;
+
+    @Param({"false", "true"})
+    public boolean viewReplicas;
+
+    private Server server;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ClassNotFoundException {
+        Properties config = new Properties();
+        config.setProperty("server_ip", "127.0.0.1");
+        config.setProperty("server_port", "0");
+        config.setProperty("log_heartbeats", "false");
+        config.setProperty("admission_source_rate", "0"); // Setup sends far faster than any client
+        config.setProperty("admission_global_rate", "0");
+        server = new Server(config);
+
+        for (int i = 0; i < clients; i++) {
+            String listing = "notes-" + i + ".txt,photo-" + i + ".jpg,song-" + i + ".mp3,";
+            deliver(clientAddress(i), new Protocol(1, false, "client", System.currentTimeMillis(), 0, listing));
+        }
+        if (viewReplicas) {
+            // Every join bumped the epoch once, so the current epoch is the client count
+            for (int i = 0; i < clients; i++) {
+                long held = Math.max(1, clients - i % DISTINCT_EPOCHS);
+                Protocol ack = new Protocol(1, false, "client", System.currentTimeMillis(), 0, Long.toString(held));
+                ack.setType(Protocol.TYPE_VIEW_ACK);
+                deliver(clientAddress(i), ack);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public List<BroadcastFanout.Delivery> buildDeliveries() throws IOException {
+        return server.buildDeliveries(Collections.emptyList());
+    }
+
+    private void deliver(InetSocketAddress from, Protocol message) throws IOException, ClassNotFoundException {
+        byte[] data = message.serialize();
+        server.handleDatagram(from, data, 0, data.length);
+    }
+
+    /**
+     * A distinct 10.x.y.z address per client, since the server keys clients by IP.
+     */
+    private static InetSocketAddress clientAddress(int i) throws UnknownHostException {
+        byte[] ip = {10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+        return new InetSocketAddress(InetAddress.getByAddress(ip), 5001);
+    }
+}
@@ -0,0 +1,63 @@
+package ClientServer;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A heartbeat and its reply over loopback on one thread: encode, send, receive, decode,
+ * and the same back. Shows the fixed per-datagram cost under everything else.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatagramRoundTripBenchmark {
+
+    @Param({"64", "1024", "1400"})
+    public int payloadBytes;
+
+    private DatagramSocket client;
+    private DatagramSocket server;
+    private Protocol heartbeat;
+    private Protocol ack;
+    private final byte[] buffer = new byte[Fragmenter.MAX_DATAGRAM_SIZE + Protocol.HEADER_SIZE];
+
+    @Setup
+    public void setUp() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        client = new DatagramSocket(0, loopback);
+        server = new DatagramSocket(0, loopback);
+        client.setSoTimeout(1000);
+        server.setSoTimeout(1000);
+        heartbeat = new Protocol(1, false, "client", System.currentTimeMillis(), 0,
+                ProtocolCodecBenchmark.listingText(payloadBytes - Protocol.HEADER_SIZE - "client".length()));
+        ack = new Protocol(1, false, "server", System.currentTimeMillis(), 0, "1");
+        ack.setType(Protocol.TYPE_LISTING_ACK);
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public Protocol roundTrip() throws IOException, ClassNotFoundException {
+        byte[] request = heartbeat.serialize();
+        client.send(new DatagramPacket(request, request.length, server.getLocalSocketAddress()));
+
+        DatagramPacket received = new DatagramPacket(buffer, buffer.length);
+        server.receive(received);
+        Protocol.deserialize(received.getData(), received.getOffset(), received.getLength());
+        byte[] reply = ack.serialize();
+        server.send(new DatagramPacket(reply, reply.length, received.getSocketAddress()));
+
+        DatagramPacket answer = new DatagramPacket(buffer, buffer.length);
+        client.receive(answer);
+        return Protocol.deserialize(answer.getData(), answer.getOffset(), answer.getLength());
+    }
+}
@@ -0,0 +1,67 @@
+package ClientServer;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One pass of the liveness check in monitorClients. Heartbeat deadlines are spread over
+ * 30 seconds, as the clients' random delays spread them, and every expired node
+ * heartbeats again straight away so the table stays the same size.
+ *
+ * wheelTick is the current timing wheel advanced by one tick of virtual time; fullScan is
+ * the original loop over every client comparing its last timestamp to a fixed timeout.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpiryScanBenchmark {
+    private static final int TICK_MILLIS = 250;
+    private static final int HEARTBEAT_SPREAD = 30000; // ms
+    private static final long TIMEOUT = 30000;
+
+    @Param({"10", "1000", "100000"})
+    public int nodes;
+
+    private TimingWheel<String> wheel;
+    private long now;
+    private final Random random = new Random(42);
+    private ConcurrentHashMap<String, Long> lastHeartbeat;
+    private long scanClock;
+
+    @Setup
+    public void setUp() {
+        now = System.nanoTime();
+        wheel = new TimingWheel<>(TICK_MILLIS, 256, node -> wheel.schedule(node, HEARTBEAT_SPREAD, now));
+        lastHeartbeat = new ConcurrentHashMap<>();
+        scanClock = System.currentTimeMillis();
+        for (int i = 0; i < nodes; i++) {
+            String node = "10.0." + (i >>> 8) + "." + (i & 255);
+            wheel.schedule(node, random.nextInt(HEARTBEAT_SPREAD), now);
+            lastHeartbeat.put(node, scanClock - random.nextInt(HEARTBEAT_SPREAD));
+        }
+    }
+
+    @Benchmark
+    public int wheelTick() {
+        now += TICK_MILLIS * 1_000_000L;
+        wheel.advance(now);
+        return wheel.size();
+    }
+
+    @Benchmark
+    public int fullScan() {
+        scanClock += TICK_MILLIS;
+        List<String> inactive = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : lastHeartbeat.entrySet()) {
+            if (scanClock - entry.getValue() > TIMEOUT) {
+                inactive.add(entry.getKey());
+                entry.setValue(scanClock); // Heartbeats again, as in wheelTick
+            }
+        }
+        return inactive.size();
+    }
+}
@@ -0,0 +1,65 @@
+package ClientServer;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The heartbeat's file listing for home directories of different sizes: the cached
+ * DirectoryIndex listing the Client uses now, and the directory scan it used to do on
+ * every heartbeat.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileListingBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    private Path home;
+    private DirectoryIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        home = Files.createTempDirectory("listing-bench");
+        for (int i = 0; i < entries; i++) {
+            Files.createFile(home.resolve("file-" + i + ".txt"));
+        }
+        index = new DirectoryIndex(home.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+        try (Stream<Path> paths = Files.walk(home)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public String cachedListing() {
+        return index.getListing();
+    }
+
+    /**
+     * The original getFileListing: list the directory and join the names.
+     */
+    @Benchmark
+    public String directoryScan() {
+        StringBuilder fileList = new StringBuilder();
+        File[] files = home.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                fileList.append(file.getName()).append(",");
+            }
+        }
+        return fileList.length() > 0 ? fileList.toString() : FileListing.EMPTY_LISTING;
+    }
+}
@@ -0,0 +1,75 @@
+package ClientServer;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One page of FileSearch results over a large index of generated names ("word-word-n.ext"):
+ * a common prefix, a common and a rare substring, a glob, and the page after a continuation
+ * token.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class FileSearchBenchmark {
+    private static final String[] EXTENSIONS = {"txt", "jpg", "mp3", "pdf", "docx", "png"};
+    private static final int WORDS = 2000;
+    private static final int PAGE = 100;
+
+    @Param({"100000", "1000000"})
+    public int names;
+
+    private FileSearch search;
+    private String[] words;
+    private String secondPageToken;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(7);
+        words = new String[WORDS];
+        String syllables = "bacadafagalamanapasatavazo";
+        for (int i = 0; i < WORDS; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int j = 0, length = 2 + random.nextInt(3); j < length; j++) {
+                int at = random.nextInt(syllables.length() / 2) * 2;
+                word.append(syllables, at, at + 2);
+            }
+            words[i] = word.toString() + i;
+        }
+        search = new FileSearch();
+        for (int i = 0; i < names; i++) {
+            search.update(words[random.nextInt(WORDS)] + "-" + words[random.nextInt(WORDS)] + "-" + i + "."
+                    + EXTENSIONS[random.nextInt(EXTENSIONS.length)], true);
+        }
+        secondPageToken = search.search(FileSearch.Kind.SUBSTRING, words[1], PAGE, null).next;
+    }
+
+    @Benchmark
+    public FileSearch.Page prefix() {
+        return search.search(FileSearch.Kind.PREFIX, words[0] + "-", PAGE, null);
+    }
+
+    @Benchmark
+    public FileSearch.Page commonSubstring() {
+        return search.search(FileSearch.Kind.SUBSTRING, words[1], PAGE, null);
+    }
+
+    @Benchmark
+    public FileSearch.Page rareSubstring() {
+        return search.search(FileSearch.Kind.SUBSTRING, "-" + (names / 2) + ".", PAGE, null);
+    }
+
+    @Benchmark
+    public FileSearch.Page glob() {
+        return search.search(FileSearch.Kind.GLOB, "*" + words[2] + "-*.mp3", PAGE, null);
+    }
+
+    @Benchmark
+    public FileSearch.Page nextPage() {
+        return search.search(FileSearch.Kind.SUBSTRING, words[1], PAGE, secondPageToken);
+    }
+}
@@ -0,0 +1,71 @@
+package ClientServer;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Server.handleDatagram for a stream of heartbeats from many clients, as a receive loop
+ * calls it. With changeEvery=0 every heartbeat repeats the client's previous listing, the
+ * steady state; otherwise a client's listing changes on every changeEvery-th heartbeat.
+ * Run with -prof gc to see the allocation per heartbeat.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeartbeatIngestBenchmark {
+
+    @Param({"1000", "100000"})
+    public int clients;
+
+    @Param({"0", "10"})
+    public int changeEvery;
+
+    private Server server;
+    private InetSocketAddress[] addresses;
+    private byte[][][] heartbeats; // Per client, two listings to alternate between
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Properties config = new Properties();
+        config.setProperty("server_ip", "127.0.0.1");
+        config.setProperty("server_port", "0");
+        config.setProperty("log_heartbeats", "false");
+        config.setProperty("admission_source_rate", "0"); // Setup sends far faster than any client
+        config.setProperty("admission_global_rate", "0");
+        server = new Server(config);
+
+        addresses = new InetSocketAddress[clients];
+        heartbeats = new byte[clients][2][];
+        for (int i = 0; i < clients; i++) {
+            byte[] ip = {10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+            addresses[i] = new InetSocketAddress(InetAddress.getByAddress(ip), 5001);
+            for (int variant = 0; variant < 2; variant++) {
+                String listing = "notes-" + i + ".txt,photo-" + i + ".jpg,song-" + i + "-v" + variant + ".mp3,";
+                heartbeats[i][variant] = new Protocol(1, false, "client", System.currentTimeMillis(), 0, listing).serialize();
+            }
+            server.handleDatagram(addresses[i], heartbeats[i][0], 0, heartbeats[i][0].length);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void heartbeat() throws IOException {
+        long n = sequence++;
+        int client = (int) (n % clients);
+        long round = n / clients;
+        int variant = changeEvery > 0 ? (int) ((round / changeEvery) & 1) : 0;
+        byte[] data = heartbeats[client][variant];
+        server.handleDatagram(addresses[client], data, 0, data.length);
+    }
+}
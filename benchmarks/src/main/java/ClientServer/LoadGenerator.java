@@ -0,0 +1,538 @@
+package ClientServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Runs a Server and thousands of simulated clients in one JVM, all on loopback, to find
+ * where the server stops keeping up.
+ *
+ * Every simulated client has its own DatagramChannel (its own port, so the server is run
+ * with node_key=address) and a synthetic listing. One thread drives them all: a single
+ * selector for the replies, and a queue of heartbeat due times. Churn stops running
+ * clients and starts new ones on fresh ports, so the server sees real leaves and joins.
+ * A stopped client keeps its socket and still counts what arrives, since the server goes
+ * on broadcasting to it until it expires.
+ *
+ * A sample of clients act as observers and parse every update they receive, which gives
+ * the view propagation delay: from a client's first heartbeat (or its last one, for a
+ * leave) to the moment an observer's view shows the change. The report also shows the
+ * server's receive rate, datagrams lost in each direction, and broadcast completeness,
+ * the share of broadcast messages the server sent that arrived whole.
+ *
+ * With shards=N, N servers run as a cluster on consecutive loopback ports. Each client
+ * starts at a random shard and follows the redirect to its owner, and observers see the
+ * other shards' clients through the shards' view sync; the receive rate is the total.
+ *
+ * With flood=R, flood_sources sockets also send R datagrams a second between them:
+ * numbered heartbeats whose listing changes every time, each sent twice, so every one the
+ * server lets through costs a decode and an index update. This shows whether admission
+ * control keeps the real clients' liveness steady. The total line is followed by what the server shed and how
+ * many nodes it expired; without churn every expiry is a false one.
+ *
+ * Arguments are key=value, as in the config files; keys starting with "server." are
+ * passed to the server(s):
+ *   clients=1000 interval=1000 files=20 churn=0 duration=60 report=5 observers=20
+ *   view=false compression=false receive_buffer=0 max_drop=-1 min_completeness=-1 shards=1
+ *   flood=0 flood_sources=4 server.broadcast_interval=5000
+ * receive_buffer sets SO_RCVBUF on the client sockets (0 keeps the OS default, as the real
+ * Client does); large full-text updates arrive as one burst of fragments per client.
+ * The process exits with 1 if max_drop (%) or min_completeness (%) is set and missed.
+ */
+public class LoadGenerator {
+    private final int clientCount;
+    private final long intervalNanos; // Mean heartbeat interval; each gap is uniform in [0, 2 * interval)
+    private final int fileCount;
+    private final double churnPerSecond; // Clients replaced per second
+    private final long durationNanos;
+    private final long reportNanos;
+    private final int observerCount;
+    private final boolean viewReplicas;
+    private final boolean compression;
+    private final int receiveBufferSize;
+    private final double maxDropPercent;
+    private final double minCompletenessPercent;
+    private final int shardCount;
+    private final double floodPerSecond;
+    private final int floodSources;
+    private final Properties serverConfig = new Properties();
+
+    private final List<InetSocketAddress> shards = new ArrayList<>();
+    private Selector selector;
+    private final Random random = new Random();
+    private final List<SimulatedClient> running = new ArrayList<>();
+    private final List<SimulatedClient> stopped = new ArrayList<>();
+    private final PriorityQueue<SimulatedClient> dueHeartbeats =
+            new PriorityQueue<>(Comparator.comparingLong((SimulatedClient client) -> client.nextHeartbeat));
+    private final Map<String, Long> joinedAt = new HashMap<>(); // nodeId -> first heartbeat sent
+    private final Map<String, Long> leftAt = new HashMap<>(); // nodeId -> last heartbeat sent
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final List<DatagramChannel> flooders = new ArrayList<>();
+    private Protocol floodHeartbeat; // Renumbered for every copy sent
+    private long floodSent;
+
+    private final Metrics.Histogram joinDelay = new Metrics.Histogram("ms");
+    private final Metrics.Histogram leaveDelay = new Metrics.Histogram("ms");
+    private long datagramsSent;
+    private long sendsRefused; // Client socket buffer full
+    private long datagramsReceived;
+    private long updatesReceived; // Whole broadcast messages, after reassembly
+    private long joins;
+    private long leaves;
+
+    private final Metrics metrics = Metrics.get();
+    private final Metrics.Counter serverReceived = metrics.counter("packets.received");
+    private final Metrics.Counter serverSent = metrics.counter("packets.sent");
+    private final Metrics.Counter serverRecipients = metrics.counter("broadcast.recipients");
+    private final Metrics.Counter shardSync = metrics.counter("cluster.sync.sent"); // Between servers, not to clients
+    private final Metrics.Counter redirects = metrics.counter("cluster.redirects");
+    private final Metrics.Counter nodesExpired = metrics.counter("nodes.expired");
+    private final Metrics.Counter shedSource = metrics.counter("admission.shed.source");
+    private final Metrics.Counter shedGlobal = metrics.counter("admission.shed.global");
+    private final Metrics.Counter shedDuplicate = metrics.counter("admission.shed.duplicate");
+    private final Metrics.Counter shedStale = metrics.counter("admission.shed.stale");
+
+    public LoadGenerator(Map<String, String> options) {
+        clientCount = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        intervalNanos = Long.parseLong(options.getOrDefault("interval", "1000")) * 1_000_000L;
+        fileCount = Integer.parseInt(options.getOrDefault("files", "20"));
+        churnPerSecond = Double.parseDouble(options.getOrDefault("churn", "0"));
+        durationNanos = Long.parseLong(options.getOrDefault("duration", "60")) * 1_000_000_000L;
+        reportNanos = Long.parseLong(options.getOrDefault("report", "5")) * 1_000_000_000L;
+        observerCount = Integer.parseInt(options.getOrDefault("observers", "20"));
+        viewReplicas = Boolean.parseBoolean(options.getOrDefault("view", "false"));
+        compression = Boolean.parseBoolean(options.getOrDefault("compression", "false"));
+        receiveBufferSize = Integer.parseInt(options.getOrDefault("receive_buffer", "0"));
+        maxDropPercent = Double.parseDouble(options.getOrDefault("max_drop", "-1"));
+        minCompletenessPercent = Double.parseDouble(options.getOrDefault("min_completeness", "-1"));
+        shardCount = Math.max(1, Integer.parseInt(options.getOrDefault("shards", "1")));
+        floodPerSecond = Double.parseDouble(options.getOrDefault("flood", "0"));
+        floodSources = Math.max(1, Integer.parseInt(options.getOrDefault("flood_sources", "4")));
+
+        serverConfig.setProperty("server_ip", "127.0.0.1");
+        serverConfig.setProperty("server_port", "0");
+        serverConfig.setProperty("node_key", "address");
+        serverConfig.setProperty("broadcast_interval", "5000");
+        serverConfig.setProperty("log_heartbeats", "false");
+        serverConfig.setProperty("compression", String.valueOf(compression));
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getKey().startsWith("server.")) {
+                serverConfig.setProperty(option.getKey().substring("server.".length()), option.getValue());
+            }
+        }
+    }
+
+    /**
+     * One simulated client: a socket, a listing and what it has seen of the cluster.
+     */
+    private class SimulatedClient {
+        final DatagramChannel channel;
+        final String nodeId; // As the server keys it
+        final byte[][] heartbeat; // Encoded once, possibly in fragments
+        final Reassembler reassembler = new Reassembler();
+        final ViewReplica viewReplica = viewReplicas ? new ViewReplica() : null;
+        final Set<String> visible; // Observers only: nodes active in the last update
+        InetSocketAddress server; // Where heartbeats go; a redirect moves it to the owning shard
+        long nextHeartbeat;
+        boolean stopped;
+
+        SimulatedClient(boolean observer, Fragmenter fragmenter) throws IOException {
+            channel = DatagramChannel.open();
+            if (receiveBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            channel.configureBlocking(false);
+            int port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            nodeId = "127.0.0.1:" + port;
+            visible = observer ? new HashSet<>() : null;
+            server = shards.get(random.nextInt(shards.size()));
+
+            List<String> files = new ArrayList<>();
+            for (int i = 0; i < fileCount; i++) {
+                files.add("c" + port + "-file-" + i + ".dat");
+            }
+            Protocol message = new Protocol(1, false, nodeId, System.currentTimeMillis(), 0, FileListing.join(files));
+            message.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compression);
+            heartbeat = fragmenter.split(message.serialize(compression)).toArray(new byte[0][]);
+            channel.register(selector, SelectionKey.OP_READ, this);
+        }
+    }
+
+    public boolean run() throws IOException {
+        List<Server> servers = startServers();
+        selector = Selector.open();
+        Fragmenter fragmenter = new Fragmenter();
+
+        System.out.printf("[Load] %d clients, heartbeat every %d ms on average, %d files each, churn %.1f/s, %s updates, "
+                        + "%d shard(s)%n", clientCount, intervalNanos / 1_000_000L, fileCount, churnPerSecond,
+                viewReplicas ? "view" : "full-text", shardCount);
+        long start = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            startClient(i < observerCount, fragmenter, start);
+        }
+        if (floodPerSecond > 0) {
+            startFlood();
+        }
+
+        long end = start + durationNanos;
+        long nextReport = start + reportNanos;
+        long churnGap = churnPerSecond > 0 ? (long) (1e9 / churnPerSecond) : Long.MAX_VALUE;
+        long nextChurn = churnPerSecond > 0 ? start + churnGap : Long.MAX_VALUE;
+        Snapshot previous = new Snapshot(start);
+        Snapshot first = previous;
+
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            long wakeUp = Math.min(Math.min(nextReport, nextChurn), end);
+            SimulatedClient due = dueHeartbeats.peek();
+            if (due != null) {
+                wakeUp = Math.min(wakeUp, due.nextHeartbeat);
+            }
+            if (floodPerSecond > 0) {
+                wakeUp = Math.min(wakeUp, now + 1_000_000L);
+            }
+            long waitMillis = (wakeUp - now) / 1_000_000L;
+            if (waitMillis > 0) {
+                selector.select(waitMillis);
+            } else {
+                selector.selectNow();
+            }
+            receiveAll();
+
+            now = System.nanoTime();
+            while ((due = dueHeartbeats.peek()) != null && due.nextHeartbeat <= now) {
+                dueHeartbeats.poll();
+                if (!due.stopped) {
+                    sendHeartbeat(due, now);
+                }
+            }
+            if (floodPerSecond > 0) {
+                flood(now - start);
+            }
+            while (nextChurn <= now) {
+                replaceRandomClient(fragmenter, now);
+                nextChurn += churnGap;
+            }
+            if (now >= nextReport) {
+                Snapshot current = new Snapshot(now);
+                report(previous, current, "");
+                previous = current;
+                nextReport += reportNanos;
+            }
+        }
+
+        Snapshot last = new Snapshot(System.nanoTime());
+        boolean ok = report(first, last, "total ");
+        if (shardCount > 1) {
+            System.out.printf("[Load] %d redirect(s), %d shard sync datagram(s)%n", redirects.get(), shardSync.get());
+        }
+        if (floodPerSecond > 0) {
+            System.out.printf("[Load] flood: %d sent; shed %d over source rate, %d over global budget, %d duplicate, "
+                            + "%d stale%n", floodSent, shedSource.get(), shedGlobal.get(), shedDuplicate.get(),
+                    shedStale.get());
+        }
+        System.out.printf("[Load] %d node(s) expired, %d leave(s)%n", nodesExpired.get(), leaves);
+        for (Server server : servers) {
+            server.close();
+        }
+        for (SimulatedClient client : running) {
+            client.channel.close();
+        }
+        for (SimulatedClient client : stopped) {
+            client.channel.close();
+        }
+        for (DatagramChannel flooder : flooders) {
+            flooder.close();
+        }
+        return ok;
+    }
+
+    /**
+     * Starts one server, or a cluster of shardCount servers on free loopback ports.
+     */
+    private List<Server> startServers() throws IOException {
+        List<Server> servers = new ArrayList<>();
+        if (shardCount == 1) {
+            servers.add(new Server(serverConfig));
+        } else {
+            StringBuilder shardList = new StringBuilder();
+            for (int i = 0; i < shardCount; i++) {
+                try (DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+                    shardList.append(i > 0 ? "," : "").append("127.0.0.1:").append(probe.getLocalPort());
+                }
+            }
+            for (InetSocketAddress shard : ShardRing.parse(shardList.toString())) {
+                Properties config = new Properties();
+                config.putAll(serverConfig);
+                config.setProperty("server_port", Integer.toString(shard.getPort()));
+                config.setProperty("cluster_shards", shardList.toString());
+                servers.add(new Server(config));
+            }
+        }
+        for (Server server : servers) {
+            server.start();
+            shards.add(new InetSocketAddress(server.getIpAddress(), server.getPort()));
+        }
+        return servers;
+    }
+
+    private void startClient(boolean observer, Fragmenter fragmenter, long now) throws IOException {
+        SimulatedClient client = new SimulatedClient(observer, fragmenter);
+        client.nextHeartbeat = now + (long) (random.nextDouble() * intervalNanos); // Spread the first wave
+        running.add(client);
+        dueHeartbeats.add(client);
+    }
+
+    /**
+     * Stops one running client (a leave) and starts a new one on a fresh port (a join).
+     * Observers are left alone so the sample stays the same.
+     */
+    private void replaceRandomClient(Fragmenter fragmenter, long now) throws IOException {
+        if (running.size() <= observerCount) {
+            return;
+        }
+        int index = observerCount + random.nextInt(running.size() - observerCount);
+        SimulatedClient leaving = running.remove(index);
+        leaving.stopped = true;
+        stopped.add(leaving);
+        leaves++;
+        startClient(false, fragmenter, now);
+    }
+
+    private void sendHeartbeat(SimulatedClient client, long now) throws IOException {
+        if (!joinedAt.containsKey(client.nodeId)) {
+            joinedAt.put(client.nodeId, now);
+            joins++;
+        }
+        for (byte[] datagram : client.heartbeat) {
+            send(client, datagram);
+        }
+        leftAt.put(client.nodeId, now); // If it stops now, this was its last heartbeat
+        client.nextHeartbeat = now + (long) (random.nextDouble() * 2 * intervalNanos);
+        dueHeartbeats.add(client);
+    }
+
+    private void startFlood() throws IOException {
+        for (int i = 0; i < floodSources; i++) {
+            DatagramChannel flooder = DatagramChannel.open();
+            flooder.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            flooder.configureBlocking(false);
+            flooders.add(flooder);
+        }
+        floodHeartbeat = new Protocol(1, false, "flood", System.currentTimeMillis(), 0, "");
+    }
+
+    /**
+     * Sends the flood datagrams due by now, round robin over the flooding sockets.
+     */
+    private void flood(long elapsedNanos) throws IOException {
+        long due = (long) (elapsedNanos / 1e9 * floodPerSecond) - floodSent;
+        byte[] datagram = null;
+        for (long i = 0; i < due; i++) {
+            long copy = floodSent / 2; // Each heartbeat goes out twice, from the same socket
+            DatagramChannel flooder = flooders.get((int) (copy % flooders.size()));
+            if (datagram == null || floodSent % 2 == 0) {
+                floodHeartbeat.setSequence(Protocol.nextSequence((int) (copy / flooders.size())));
+                floodHeartbeat.setPayload("flood-" + copy + ".dat,");
+                datagram = floodHeartbeat.serialize();
+            }
+            if (flooder.send(ByteBuffer.wrap(datagram), shards.get(0)) > 0) {
+                datagramsSent++;
+            } else {
+                sendsRefused++;
+            }
+            floodSent++;
+        }
+    }
+
+    private void send(SimulatedClient client, byte[] datagram) throws IOException {
+        if (client.channel.send(ByteBuffer.wrap(datagram), client.server) > 0) {
+            datagramsSent++;
+        } else {
+            sendsRefused++;
+        }
+    }
+
+    private void receiveAll() throws IOException {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            SimulatedClient client = (SimulatedClient) key.attachment();
+            if (!key.isValid()) {
+                continue;
+            }
+            SocketAddress from;
+            while (true) {
+                receiveBuffer.clear();
+                from = client.channel.receive(receiveBuffer);
+                if (from == null) {
+                    break;
+                }
+                datagramsReceived++;
+                receiveBuffer.flip();
+                byte[] data = new byte[receiveBuffer.remaining()];
+                receiveBuffer.get(data);
+                if (Fragmenter.isFragment(data, 0, data.length)) {
+                    data = client.reassembler.add(from, data, 0, data.length);
+                    if (data == null) {
+                        continue;
+                    }
+                }
+                try {
+                    handleUpdate(client, Protocol.deserialize(data));
+                } catch (IOException | ClassNotFoundException e) {
+                    System.err.println("[Load] Undecodable update: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleUpdate(SimulatedClient client, Protocol update) throws IOException {
+        int type = update.getType();
+        if (type == Protocol.TYPE_REDIRECT) {
+            // Move to the owning shard and heartbeat there now, as the real Client does
+            client.server = ShardRing.parse(update.getPayload()).get(0);
+            if (!client.stopped) {
+                for (byte[] datagram : client.heartbeat) {
+                    send(client, datagram);
+                }
+            }
+            return;
+        }
+        if (type != Protocol.TYPE_FULL && type != Protocol.TYPE_VIEW_SNAPSHOT && type != Protocol.TYPE_VIEW_DELTA) {
+            return; // Lookup answers and the like are not part of the broadcast
+        }
+        updatesReceived++;
+        if (client.stopped) {
+            return; // Gone as far as the server should know; it only counts toward completeness
+        }
+
+        String text = update.getPayload();
+        if (client.viewReplica != null) {
+            if (type != Protocol.TYPE_FULL) {
+                client.viewReplica.apply(update);
+                text = client.viewReplica.render();
+            }
+            // Report the epoch held so the next broadcast is incremental
+            Protocol ack = new Protocol(1, false, client.nodeId, System.currentTimeMillis(), 0,
+                    Long.toString(client.viewReplica.getEpoch()));
+            ack.setType(Protocol.TYPE_VIEW_ACK);
+            ack.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, compression);
+            send(client, ack.serialize());
+        }
+        if (client.visible != null) {
+            observe(client, text);
+        }
+    }
+
+    /**
+     * Diffs the active nodes in an update against the observer's last view and records how
+     * long each change took to get here.
+     */
+    private void observe(SimulatedClient observer, String text) {
+        long now = System.nanoTime();
+        Set<String> active = new HashSet<>();
+        for (String line : text.split("\n")) {
+            int open = line.indexOf("Node (");
+            int close = line.indexOf("): active");
+            if (open >= 0 && close > open) {
+                active.add(line.substring(open + 6, close));
+            }
+        }
+
+        for (String nodeId : active) {
+            if (!observer.visible.contains(nodeId)) {
+                Long joined = joinedAt.get(nodeId);
+                if (joined != null) {
+                    joinDelay.record((now - joined) / 1_000_000L);
+                }
+            }
+        }
+        for (String nodeId : observer.visible) {
+            if (!active.contains(nodeId)) {
+                Long left = leftAt.get(nodeId);
+                if (left != null) {
+                    leaveDelay.record((now - left) / 1_000_000L);
+                }
+            }
+        }
+        observer.visible.clear();
+        observer.visible.addAll(active);
+    }
+
+    /**
+     * Counter readings at one moment, so reports can show rates over an interval.
+     */
+    private class Snapshot {
+        final long nanos;
+        final long clientSent = datagramsSent;
+        final long clientReceived = datagramsReceived;
+        final long clientUpdates = updatesReceived;
+        final long received = serverReceived.get() - shardSync.get(); // Shards count each other's sync too
+        final long sent = serverSent.get() - shardSync.get();
+        final long recipients = serverRecipients.get();
+
+        Snapshot(long nanos) {
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Prints one report line and returns whether the configured limits were met.
+     */
+    private boolean report(Snapshot from, Snapshot to, String label) {
+        double seconds = (to.nanos - from.nanos) / 1e9;
+        long up = to.clientSent - from.clientSent;
+        long down = to.sent - from.sent;
+        long broadcasts = to.recipients - from.recipients;
+        double upDrop = percentLost(up, to.received - from.received);
+        double downDrop = percentLost(down, to.clientReceived - from.clientReceived);
+        double completeness = broadcasts == 0 ? 100 : 100.0 * (to.clientUpdates - from.clientUpdates) / broadcasts;
+
+        System.out.printf("[Load] %s%.0fs: %d running, %d joins, %d leaves, server recv %.0f/s, "
+                        + "drop up %.2f%% down %.2f%%, refused %d, broadcast complete %.1f%%, "
+                        + "join seen p50 %d p99 %d ms, leave seen p50 %d p99 %d ms%n",
+                label, seconds, running.size(), joins, leaves, (to.received - from.received) / seconds,
+                upDrop, downDrop, sendsRefused, Math.min(100, completeness),
+                joinDelay.percentile(0.5), joinDelay.percentile(0.99),
+                leaveDelay.percentile(0.5), leaveDelay.percentile(0.99));
+
+        boolean ok = true;
+        if (maxDropPercent >= 0 && Math.max(upDrop, downDrop) > maxDropPercent) {
+            System.out.printf("[Load] Drop rate above %.2f%%%n", maxDropPercent);
+            ok = false;
+        }
+        if (minCompletenessPercent >= 0 && completeness < minCompletenessPercent) {
+            System.out.printf("[Load] Broadcast completeness below %.1f%%%n", minCompletenessPercent);
+            ok = false;
+        }
+        return ok;
+    }
+
+    /**
+     * Datagrams still in flight at the end of an interval count as lost, so short intervals
+     * overstate drops slightly; the total line is the one to check.
+     */
+    private static double percentLost(long sent, long received) {
+        return sent <= 0 ? 0 : Math.max(0, 100.0 * (sent - received) / sent);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                System.err.println("Arguments are key=value, e.g. clients=2000 churn=5 server.server_engine=nio");
+                System.exit(2);
+            }
+            options.put(arg.substring(0, equals).trim(), arg.substring(equals + 1).trim());
+        }
+        boolean ok = new LoadGenerator(options).run();
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,66 @@
+package ClientServer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Protocol.serialize and deserialize across payload sizes, plain and compressed. The
+ * payload is listing text, which is what heartbeats and broadcasts carry. inspectUnchanged
+ * is what the server does with a repeated heartbeat instead: read the header through a
+ * ProtocolView and compare the payload bytes without decoding them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolCodecBenchmark {
+
+    @Param({"0", "100", "1400", "16384", "65536"})
+    public int payloadBytes;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private Protocol message;
+    private byte[] encoded;
+    private final ProtocolView view = new ProtocolView();
+    private byte[] rawPayload;
+
+    @Setup
+    public void setUp() throws IOException {
+        message = new Protocol(1, false, "192.168.1.20", System.currentTimeMillis(), 0, listingText(payloadBytes));
+        message.setFlag(Protocol.FLAG_ACCEPTS_COMPRESSION, true);
+        encoded = message.serialize(compressed);
+        rawPayload = view.wrap(encoded, 0, encoded.length).copyRawPayload();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return message.serialize(compressed);
+    }
+
+    @Benchmark
+    public Protocol deserialize() throws IOException, ClassNotFoundException {
+        return Protocol.deserialize(encoded);
+    }
+
+    @Benchmark
+    public boolean inspectUnchanged() throws IOException {
+        return view.wrap(encoded, 0, encoded.length).payloadMatches(rawPayload);
+    }
+
+    /**
+     * Comma-separated file names, cut to exactly the given number of bytes.
+     */
+    static String listingText(int bytes) {
+        StringBuilder text = new StringBuilder(bytes + 32);
+        for (int i = 0; text.length() < bytes; i++) {
+            text.append("file-").append(i).append(".txt,");
+        }
+        text.setLength(bytes);
+        return text.toString();
+    }
+}